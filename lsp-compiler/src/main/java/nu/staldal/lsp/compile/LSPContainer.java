@@ -72,7 +72,25 @@ public abstract class LSPContainer extends LSPNode
 
     public void addChild(LSPNode newChild)
     {
-        children.add(newChild);
+        int last = children.size()-1;
+        if ((newChild instanceof LSPText) && last >= 0
+                && (children.get(last) instanceof LSPText))
+        {
+            // merge adjacent text
+            LSPText lastText = (LSPText)children.get(last);
+            children.set(last, new LSPText(
+                lastText.getValue() + ((LSPText)newChild).getValue(), 
+                lastText));
+        }
+        else
+        {
+            children.add(newChild);
+        }
+    }
+
+    public void removeAllChildren()
+    {
+        children.clear();
     }
 
     public LSPNode replaceChild(LSPNode newChild, int index)
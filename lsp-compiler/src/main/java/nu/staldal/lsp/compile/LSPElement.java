@@ -176,6 +176,11 @@ public class LSPElement extends LSPContainer
 	}
 
 
+	public void setAttributeValue(int index, LSPExpr value)
+	{
+		attrValue.set(index, value);
+	}
+
 	public void addNamespaceMapping(String prefix, String URI)
 	{
 		namespacePrefixes.add(prefix);
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.compiler;
+
+import java.util.*;
+import nu.staldal.lsp.compile.*;
+import nu.staldal.lsp.expr.*;
+import nu.staldal.lsp.compiledexpr.*;
+
+
+/**
+ * Estimate of the bytecode size {@link LSPJVMCompiler} generates for an 
+ * LSP node, used to decide where to split a page into several methods
+ * without compiling it first.
+ *
+ * The estimate errs on the large side. Results are cached per node, 
+ * so an instance should only be used for one tree.
+ */
+final class LSPCodeSize
+{
+	/**
+	 * Size of a node besides its contents, e.g. of an 
+	 * {@link LSPSimpleContainer} besides its children.
+	 */
+	static final int NODE_OVERHEAD = 1;
+
+	private final IdentityHashMap<LSPNode,Integer> sizes = 
+		new IdentityHashMap<LSPNode,Integer>();
+
+	
+	int estimate(LSPNode node)
+	{
+		if (node == null)
+			return 0;
+		
+		Integer size = sizes.get(node);
+		if (size == null)
+		{
+			size = Integer.valueOf(compute(node));
+			sizes.put(node, size);
+		}
+		return size.intValue();
+	}
+
+	
+	private int compute(LSPNode node)
+	{
+		// line number NOP, removed, but may be a branch target 
+		int size = NODE_OVERHEAD;
+		
+		if (node instanceof LSPText)
+		{
+			size += 12;
+		}
+		else if (node instanceof LSPElement)
+		{
+			LSPElement el = (LSPElement)node;
+			size += 60 + 12*el.numberOfNamespaceMappings()
+				+ estimate(el.getNamespaceURIExpr())
+				+ estimate(el.getLocalNameExpr());
+			for (int i = 0; i < el.numberOfAttributes(); i++)
+			{
+				size += 40 + estimate(el.getAttributeNamespaceURI(i))
+					+ estimate(el.getAttributeLocalName(i))
+					+ estimate(el.getAttributeValue(i));
+			}
+			if (node instanceof LSPExtElement)
+				size += 40;
+			size += childrenSize(el);
+		}
+		else if (node instanceof LSPContainer)
+		{
+			size += childrenSize((LSPContainer)node);
+		}
+		else if (node instanceof LSPTemplate)
+		{
+			size += 20 + estimate(((LSPTemplate)node).getExpr());
+		}
+		else if (node instanceof LSPIf)
+		{
+			LSPIf el = (LSPIf)node;
+			size += 5 + estimate(el.getTest()) + estimate(el.getBody());
+		}
+		else if (node instanceof LSPChoose)
+		{
+			LSPChoose el = (LSPChoose)node;
+			for (int i = 0; i < el.getNWhens(); i++)
+			{
+				size += 8 + estimate(el.getWhenTest(i)) 
+					+ estimate(el.getWhenBody(i));
+			}
+			size += estimate(el.getOtherwise());
+		}
+		else if (node instanceof LSPForEach)
+		{
+			LSPForEach el = (LSPForEach)node;
+			size += 40 + estimate(el.getList()) + estimate(el.getBody());
+			if (el.getStatusObject() != null)
+				size += 15;
+		}
+		else if (node instanceof LSPLet)
+		{
+			LSPLet el = (LSPLet)node;
+			for (int i = 0; i < el.getValues().length; i++)
+			{
+				size += 5 + estimate(el.getValues()[i]);
+			}
+			size += estimate(el.getBody());
+		}
+		else if (node instanceof LSPCache)
+		{
+			LSPCache el = (LSPCache)node;
+			size += 60 + estimate(el.getKey()) + estimate(el.getBody());
+		}
+		else if (node instanceof LSPFlush)
+		{
+			size += 5;
+		}
+		else if (node instanceof LSPProcessingInstruction)
+		{
+			LSPProcessingInstruction el = (LSPProcessingInstruction)node;
+			size += 40 + estimate(el.getName()) + estimate(el.getData());
+		}
+		else
+		{
+			size += 100;
+		}
+		
+		return size;
+	}
+	
+
+	private int childrenSize(LSPContainer el)
+	{
+		int size = 0;
+		for (int i = 0; i < el.numberOfChildren(); i++)
+		{
+			size += estimate(el.getChild(i));
+		}
+		return size;
+	}
+	
+	
+	int estimate(LSPExpr expr)
+	{
+		if (expr == null)
+		{
+			return 0;
+		}
+		else if (expr instanceof StringLiteral || expr instanceof NumberLiteral)
+		{
+			return 6;
+		}
+		else if (expr instanceof VariableReference)
+		{
+			return 10;
+		}
+		else if (expr instanceof TupleExpr)
+		{
+			TupleExpr te = (TupleExpr)expr;
+			return 12 + estimate(te.getBase()) + estimate(te.getKey());
+		}
+		else if (expr instanceof BinaryExpr)
+		{
+			BinaryExpr be = (BinaryExpr)expr;
+			return 20 + estimate(be.getLeft()) + estimate(be.getRight());
+		}
+		else if (expr instanceof UnaryExpr)
+		{
+			return 8 + estimate(((UnaryExpr)expr).getLeft());
+		}
+		else if (expr instanceof ConditionalExpr)
+		{
+			ConditionalExpr ce = (ConditionalExpr)expr;
+			return 16 + estimate(ce.getTest()) + estimate(ce.getThen())
+				+ estimate(ce.getElse());
+		}
+		else if (expr instanceof BuiltInFunctionCall)
+		{
+			BuiltInFunctionCall fc = (BuiltInFunctionCall)expr;
+			int size = 30;
+			for (int i = 0; i < fc.numberOfArgs(); i++)
+				size += 8 + estimate(fc.getArg(i));
+			return size;
+		}
+		else if (expr instanceof ExtensionFunctionCall)
+		{
+			ExtensionFunctionCall fc = (ExtensionFunctionCall)expr;
+			int size = 40;
+			for (int i = 0; i < fc.numberOfArgs(); i++)
+				size += 10 + estimate(fc.getArg(i));
+			return size;
+		}
+		else
+		{
+			return 50;
+		}
+	}
+}
@@ -95,6 +95,7 @@ public class LSPCompiler
     private boolean html;
     private boolean acceptUnbound;
     private String encloseURL;
+    private int methodSizeLimit;
     
 
     /**
@@ -112,6 +113,7 @@ public class LSPCompiler
         html = false;
         acceptUnbound = false;
         encloseURL = null;
+        methodSizeLimit = LSPJVMCompiler.DEFAULT_METHOD_SIZE_LIMIT;
     }
     
     
@@ -165,6 +167,19 @@ public class LSPCompiler
     }
 
     
+    /**
+     * Set the estimated bytecode size above which a page is split into
+     * several methods. Methods larger than 8000 bytes are not JIT compiled 
+     * by HotSpot, so the default is a bit below that.
+     * 
+     * @param methodSizeLimit  size in bytes
+     */    
+    public void setMethodSizeLimit(int methodSizeLimit)
+    {
+        this.methodSizeLimit = methodSizeLimit;    
+    }
+
+    
     /**
 	 * Set enclose to use. Set to <code>null</code> to not use any enclose.
 	 * 
@@ -272,7 +287,7 @@ public class LSPCompiler
 		currentSourceElement = null;
         outputProperties = null;
 
-        LSPNode compiledTree = compileNode(tree);
+        LSPNode compiledTree = LSPConstantFolder.foldTree(compileNode(tree));
         
         if (outputProperties == null)
             outputProperties = new Properties();
@@ -303,7 +318,7 @@ public class LSPCompiler
 			importedFiles, compileDynamic,
 			extLibsInPage, outputProperties, 
             out, acceptUnbound,
-            (encloseURL != null));
+            (encloseURL != null), methodSizeLimit);
 
 		outputProperties = null;
         tb = null;
@@ -709,6 +724,14 @@ public class LSPCompiler
 			{
 				return process_let(el);
 			}
+			else if (el.getLocalName().equals("cache"))
+			{
+				return process_cache(el);
+			}
+			else if (el.getLocalName().equals("flush"))
+			{
+				return process_flush(el);
+			}
 			else if (el.getLocalName().equals("element"))
 			{
 				return process_element(el);
@@ -1332,6 +1355,47 @@ public class LSPCompiler
 	}
 	
 	
+	private LSPNode process_cache(Element el)
+		throws SAXException
+	{
+        removeWhitespace(el);
+
+		String _key = getAttr("key", el, false);
+		LSPExpr key = (_key == null) 
+			? new StringLiteral("") 
+			: processTemplateExpr(el, _key);
+		
+		String _ttl = getAttr("ttl", el, false);
+		int ttl = 0;
+		if (_ttl != null)
+		{
+			try {
+				ttl = Integer.parseInt(_ttl.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				ttl = -1;
+			}
+			if (ttl < 0) throw fixSourceException(el,
+				"ttl must be a non-negative integer: " + _ttl);
+		}
+
+		return new LSPCache(key, ttl, compileChildren(el), el);
+	}
+	
+	
+	private LSPNode process_flush(Element el)
+		throws SAXException
+	{
+        removeWhitespace(el);
+
+		if (el.numberOfChildren() > 0)
+			throw fixSourceException(el, "<lsp:flush> must be empty");
+
+		return new LSPFlush(el);
+	}
+	
+	
 	private LSPExpr compileExpr(Node el, LSPExpr expr)
 		throws SAXException
 	{
@@ -65,6 +65,7 @@ public class LSPCompilerAntTask extends Task
 	private boolean force;
 	private boolean html;
     private boolean acceptUnbound;
+    private int methodSizeLimit;
 
 	
 	/**
@@ -87,6 +88,7 @@ public class LSPCompilerAntTask extends Task
 		force = false;
         html = false;
         acceptUnbound= false;
+        methodSizeLimit = 0;
     }
 
 	
@@ -147,6 +149,17 @@ public class LSPCompilerAntTask extends Task
 		this.acceptUnbound = acceptUnbound;
 	}
 
+    /**
+     * Estimated bytecode size above which a page is split into several 
+     * methods, default is to keep methods small enough to be JIT compiled.
+     * 
+	 * @param methodSizeLimit
+	 */
+	public void setMethodSizeLimit(int methodSizeLimit)
+	{
+		this.methodSizeLimit = methodSizeLimit;
+	}
+
 	/**
      * Path to search for enclose and included files. 
      * 
@@ -201,6 +214,7 @@ public class LSPCompilerAntTask extends Task
 
         compiler.setHtml(html);
         compiler.setAcceptUnbound(acceptUnbound);
+        if (methodSizeLimit > 0) compiler.setMethodSizeLimit(methodSizeLimit);
 		
 		compiler.setTargetDir(destdir);
 				
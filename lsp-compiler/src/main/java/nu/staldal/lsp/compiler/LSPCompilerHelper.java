@@ -497,4 +497,16 @@ public class LSPCompilerHelper
     {
         compiler.setAcceptUnbound(acceptUnbound);    
     }
+
+    
+    /**
+     * Set the estimated bytecode size above which a page is split into
+     * several methods.
+     * 
+     * @param methodSizeLimit  size in bytes 
+     */
+    public void setMethodSizeLimit(int methodSizeLimit)
+    {
+        compiler.setMethodSizeLimit(methodSizeLimit);    
+    }
 }
@@ -0,0 +1,616 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.compiler;
+
+import java.util.*;
+import org.xml.sax.SAXException;
+import nu.staldal.lsp.LSPValues;
+import nu.staldal.lsp.expr.*;
+import nu.staldal.lsp.compile.*;
+import nu.staldal.lsp.compiledexpr.*;
+
+
+/**
+ * Constant folding and dead branch elimination on a compiled LSP tree.
+ *
+ * Expressions with only literal operands are evaluated at compile time, 
+ * <code>lsp:if</code> and <code>lsp:choose</code> branches with constant 
+ * tests are resolved, and constant templates are turned into static text.
+ *<p>
+ * Values are computed with {@link LSPValues}, like the compiled page 
+ * would compute them at runtime.
+ */
+final class LSPConstantFolder
+{
+	private LSPConstantFolder()
+	{
+		// never invoked
+	}
+
+	
+	/**
+	 * Fold a compiled LSP tree. 
+	 * Containers and elements are modified in place.
+	 *
+	 * @param node  the tree
+	 *
+	 * @return the folded tree
+	 */
+	static LSPNode foldTree(LSPNode node)
+		throws SAXException
+	{
+		LSPNode newNode = fold(node);
+		
+		return (newNode != null) ? newNode : new LSPSimpleContainer(0, node);
+	}
+
+	
+	/**
+	 * @return the folded node, or <code>null</code> if it produces nothing 
+	 */
+	private static LSPNode fold(LSPNode node)
+		throws SAXException
+	{
+		if (node instanceof LSPElement)
+		{
+			LSPElement el = (LSPElement)node;
+			for (int i = 0; i<el.numberOfAttributes(); i++)
+			{
+				el.setAttributeValue(i, fold(el.getAttributeValue(i)));
+			}
+			foldChildren(el);
+			return el;
+		}
+		else if (node instanceof LSPContainer)
+		{
+			LSPContainer container = (LSPContainer)node;
+			foldChildren(container);
+			return container;
+		}
+		else if (node instanceof LSPIf)
+		{
+			LSPIf theIf = (LSPIf)node;
+			LSPExpr test = fold(theIf.getTest());
+			LSPNode body = foldTree(theIf.getBody());
+			
+			Object value = literalValue(test);
+			if (value == null)
+				return new LSPIf(test, body, theIf);
+			else if (LSPValues.convertToBoolean(value))
+				return body;
+			else
+				return null;
+		}
+		else if (node instanceof LSPChoose)
+		{
+			return foldChoose((LSPChoose)node);
+		}
+		else if (node instanceof LSPForEach)
+		{
+			LSPForEach forEach = (LSPForEach)node;
+			return new LSPForEach(fold(forEach.getList()), 
+				forEach.getVariable(), forEach.getStatusObject(), 
+				foldTree(forEach.getBody()), forEach);
+		}
+		else if (node instanceof LSPLet)
+		{
+			LSPLet let = (LSPLet)node;
+			LSPExpr[] values = let.getValues();
+			LSPExpr[] newValues = new LSPExpr[values.length];
+			for (int i = 0; i<values.length; i++)
+			{
+				newValues[i] = fold(values[i]);
+			}
+			return new LSPLet(let.getVars(), newValues, 
+				foldTree(let.getBody()), let);
+		}
+		else if (node instanceof LSPCache)
+		{
+			LSPCache cache = (LSPCache)node;
+			return new LSPCache(fold(cache.getKey()), cache.getTTL(),
+				foldTree(cache.getBody()), cache);
+		}
+		else if (node instanceof LSPTemplate)
+		{
+			LSPTemplate template = (LSPTemplate)node;
+			LSPExpr expr = fold(template.getExpr());
+			
+			Object value = literalValue(expr);
+			if (value != null && !template.isDisableOutputEscaping())
+				return new LSPText(stripCR(LSPValues.convertToString(value)), template);
+			else				
+				return new LSPTemplate(expr, template, 
+					template.isDisableOutputEscaping());
+		}
+		else if (node instanceof LSPProcessingInstruction)
+		{
+			LSPProcessingInstruction pi = (LSPProcessingInstruction)node;
+			return new LSPProcessingInstruction(fold(pi.getName()), 
+				foldTree(pi.getData()), pi);
+		}
+		else
+		{
+			return node;
+		}
+	}
+
+	
+	private static void foldChildren(LSPContainer container)
+		throws SAXException
+	{
+		ArrayList<LSPNode> children = 
+			new ArrayList<LSPNode>(container.numberOfChildren());
+		for (int i = 0; i<container.numberOfChildren(); i++)
+		{
+			children.add(container.getChild(i));
+		}
+		
+		container.removeAllChildren();
+		for (LSPNode child : children)
+		{
+			LSPNode newChild = fold(child);
+			if (newChild == null)
+			{
+				// dead branch, drop it 
+			}
+			else if (newChild instanceof LSPSimpleContainer)
+			{
+				// splice in, so that adjacent text can be merged
+				LSPSimpleContainer body = (LSPSimpleContainer)newChild;
+				for (int j = 0; j<body.numberOfChildren(); j++)
+				{
+					container.addChild(body.getChild(j));
+				}
+			}
+			else
+			{
+				container.addChild(newChild);
+			}
+		}
+	}
+	
+	
+	private static LSPNode foldChoose(LSPChoose choose)
+		throws SAXException
+	{
+		ArrayList<LSPExpr> tests = new ArrayList<LSPExpr>(choose.getNWhens());
+		ArrayList<LSPNode> bodies = new ArrayList<LSPNode>(choose.getNWhens());
+		LSPNode otherwise = 
+			(choose.getOtherwise() != null) ? foldTree(choose.getOtherwise()) : null;
+		
+		for (int i = 0; i<choose.getNWhens(); i++)
+		{
+			LSPExpr test = fold(choose.getWhenTest(i));
+			LSPNode body = foldTree(choose.getWhenBody(i));
+			
+			Object value = literalValue(test);
+			if (value == null)
+			{
+				tests.add(test);
+				bodies.add(body);
+			}
+			else if (LSPValues.convertToBoolean(value))
+			{
+				// always taken, the rest can never be reached
+				otherwise = body;
+				break;
+			}
+			else
+			{
+				// never taken
+			}
+		}
+
+		if (tests.isEmpty())
+			return otherwise;
+
+		LSPChoose newChoose = new LSPChoose(tests.size(), choose);
+		for (int i = 0; i<tests.size(); i++)
+		{
+			newChoose.addWhen(tests.get(i), bodies.get(i));
+		}
+		if (otherwise != null) 
+			newChoose.setOtherwise(otherwise);
+		return newChoose;
+	}
+
+	
+	/**
+	 * Fold an expression.
+	 *
+	 * @param expr  the expression, may be <code>null</code>
+	 *
+	 * @return the folded expression
+	 */
+	static LSPExpr fold(LSPExpr expr)
+		throws SAXException
+	{
+		if (expr instanceof BinaryExpr)
+		{
+			return foldBinary((BinaryExpr)expr);
+		}
+		else if (expr instanceof UnaryExpr)
+		{
+			LSPExpr left = fold(((UnaryExpr)expr).getLeft());
+			Object value = literalValue(left);
+			if (value != null)
+				return new NumberLiteral(-LSPValues.convertToNumber(value));
+			else
+				return new UnaryExpr(left);
+		}
+		else if (expr instanceof ConditionalExpr)
+		{
+			ConditionalExpr cond = (ConditionalExpr)expr;
+			LSPExpr test = fold(cond.getTest());
+			LSPExpr thenExpr = fold(cond.getThen());
+			LSPExpr elseExpr = fold(cond.getElse());
+			
+			Object value = literalValue(test);
+			if (value == null)
+				return new ConditionalExpr(test, thenExpr, elseExpr);
+			else if (LSPValues.convertToBoolean(value))
+				return thenExpr;
+			else
+				return elseExpr;
+		}
+		else if (expr instanceof BuiltInFunctionCall)
+		{
+			return foldFunction((BuiltInFunctionCall)expr);
+		}
+		else if (expr instanceof ExtensionFunctionCall)
+		{
+			ExtensionFunctionCall call = (ExtensionFunctionCall)expr;
+			ExtensionFunctionCall newCall = new ExtensionFunctionCall(
+				call.getClassName(), call.getName(), call.numberOfArgs());
+			for (int i = 0; i<call.numberOfArgs(); i++)
+			{
+				newCall.addArgument(fold(call.getArg(i)));
+			}
+			return newCall;
+		}
+		else if (expr instanceof TupleExpr)
+		{
+			return new TupleExpr(fold(((TupleExpr)expr).getBase()), 
+								 fold(((TupleExpr)expr).getKey()));
+		}
+		else
+		{
+			return expr;
+		}
+	}
+	
+
+	private static LSPExpr foldBinary(BinaryExpr expr)
+		throws SAXException
+	{
+		LSPExpr left = fold(expr.getLeft());
+		LSPExpr right = fold(expr.getRight());
+		Object l = literalValue(left);
+		Object r = literalValue(right);
+
+		switch (expr.getOp())
+		{
+		case BinaryExpr.OR:
+			// right side is never evaluated if left side is true
+			if (l != null && LSPValues.convertToBoolean(l))
+				return toLiteral(Boolean.TRUE);
+			else if (l != null)
+				return asBoolean(right);
+			break;
+
+		case BinaryExpr.AND:
+			// right side is never evaluated if left side is false
+			if (l != null && !LSPValues.convertToBoolean(l))
+				return toLiteral(Boolean.FALSE);
+			else if (l != null)
+				return asBoolean(right);
+			break;
+		}
+		
+		if (l == null || r == null)
+			return new BinaryExpr(left, right, expr.getOp());
+		
+		switch (expr.getOp())
+		{
+		case BinaryExpr.EQ:
+			return toLiteral(Boolean.valueOf(literalEquals(l, r)));
+		case BinaryExpr.NE:
+			return toLiteral(Boolean.valueOf(!literalEquals(l, r)));
+		case BinaryExpr.LT:
+			return toLiteral(Boolean.valueOf(
+				LSPValues.convertToNumber(l) < LSPValues.convertToNumber(r)));
+		case BinaryExpr.LE:
+			return toLiteral(Boolean.valueOf(
+				LSPValues.convertToNumber(l) <= LSPValues.convertToNumber(r)));
+		case BinaryExpr.GT:
+			return toLiteral(Boolean.valueOf(
+				LSPValues.convertToNumber(l) > LSPValues.convertToNumber(r)));
+		case BinaryExpr.GE:
+			return toLiteral(Boolean.valueOf(
+				LSPValues.convertToNumber(l) >= LSPValues.convertToNumber(r)));
+		case BinaryExpr.PLUS:
+			return new NumberLiteral(LSPValues.convertToNumber(l) + LSPValues.convertToNumber(r));
+		case BinaryExpr.MINUS:
+			return new NumberLiteral(LSPValues.convertToNumber(l) - LSPValues.convertToNumber(r));
+		case BinaryExpr.TIMES:
+			return new NumberLiteral(LSPValues.convertToNumber(l) * LSPValues.convertToNumber(r));
+		case BinaryExpr.DIV:
+			return new NumberLiteral(LSPValues.convertToNumber(l) / LSPValues.convertToNumber(r));
+		case BinaryExpr.MOD:
+			return new NumberLiteral(LSPValues.convertToNumber(l) % LSPValues.convertToNumber(r));
+		default: 
+			// let LSPJVMCompiler report it
+			return new BinaryExpr(left, right, expr.getOp());
+		}
+	}
+	
+	
+	/**
+	 * Same semantics as the code generated by LSPJVMCompiler, 
+	 * which depends on the static types of the operands.
+	 */
+	private static boolean literalEquals(Object l, Object r)
+		throws SAXException
+	{
+		if (l instanceof Boolean && r instanceof Boolean)
+			return l.equals(r);
+		else if (l instanceof Double && r instanceof Double)
+			return Double.compare((Double)l, (Double)r) == 0;
+		else if (l instanceof String && r instanceof String)
+			return l.equals(r);
+		else
+			return LSPValues.compareEqual(l, r);
+	}
+	
+	
+	private static LSPExpr asBoolean(LSPExpr expr)
+		throws SAXException
+	{
+		Object value = literalValue(expr);
+		if (value != null)
+			return toLiteral(Boolean.valueOf(LSPValues.convertToBoolean(value)));
+		
+		BuiltInFunctionCall call = new BuiltInFunctionCall("boolean", 1);
+		call.addArgument(expr);
+		return call;
+	}
+	
+
+	private static LSPExpr foldFunction(BuiltInFunctionCall expr)
+		throws SAXException
+	{
+		String name = expr.getName();
+		int n = expr.numberOfArgs();
+
+		ArrayList<LSPExpr> args = new ArrayList<LSPExpr>(n);
+		boolean allLiteral = true;
+		for (int i = 0; i<n; i++)
+		{
+			LSPExpr arg = fold(expr.getArg(i));
+			args.add(arg);
+			if (literalValue(arg) == null) allLiteral = false;
+		}
+		
+		if (name.equals("concat") && n >= 2)
+		{
+			return foldConcat(args);
+		}
+		
+		if (allLiteral)
+		{
+			Object value = evalFunction(name, args);
+			if (value != null) return toLiteral(value);
+		}
+
+		BuiltInFunctionCall call = new BuiltInFunctionCall(name, n);
+		for (LSPExpr arg : args)
+		{
+			call.addArgument(arg);
+		}
+		return call;
+	}
+	
+
+	private static LSPExpr foldConcat(ArrayList<LSPExpr> args)
+		throws SAXException
+	{
+		ArrayList<LSPExpr> newArgs = new ArrayList<LSPExpr>(args.size());
+		StringBuilder sb = null;
+		for (LSPExpr arg : args)
+		{
+			Object value = literalValue(arg);
+			if (value != null)
+			{
+				// merge adjacent literals
+				if (sb == null) sb = new StringBuilder();
+				sb.append(LSPValues.convertToString(value));
+			}
+			else
+			{
+				if (sb != null) 
+				{
+					newArgs.add(new StringLiteral(sb.toString()));
+					sb = null;
+				}
+				newArgs.add(arg);
+			}
+		}
+		if (sb != null) newArgs.add(new StringLiteral(sb.toString()));
+		
+		if (newArgs.size() == 1 && newArgs.get(0) instanceof StringLiteral)
+			return newArgs.get(0);
+		
+		BuiltInFunctionCall call = new BuiltInFunctionCall("concat", 
+			newArgs.size());
+		for (LSPExpr arg : newArgs)
+		{
+			call.addArgument(arg);
+		}
+		return call;
+	}
+	
+	
+	/**
+	 * @return the value, or <code>null</code> if the function cannot 
+	 *  be evaluated at compile time 
+	 */
+	private static Object evalFunction(String name, ArrayList<LSPExpr> args)
+		throws SAXException
+	{
+		int n = args.size();
+		Object a = (n > 0) ? literalValue(args.get(0)) : null; 
+		Object b = (n > 1) ? literalValue(args.get(1)) : null; 
+		Object c = (n > 2) ? literalValue(args.get(2)) : null; 
+		
+		if (name.equals("string") && n == 1)
+			return LSPValues.convertToString(a);
+		else if (name.equals("starts-with") && n == 2)
+			return Boolean.valueOf(
+				LSPValues.convertToString(a).startsWith(LSPValues.convertToString(b)));
+		else if (name.equals("contains") && n == 2)
+			return Boolean.valueOf(
+				LSPValues.fnContains(LSPValues.convertToString(a), LSPValues.convertToString(b)));
+		else if (name.equals("substring-before") && n == 2)
+			return LSPValues.fnSubstringBefore(LSPValues.convertToString(a), 
+				LSPValues.convertToString(b));
+		else if (name.equals("substring-after") && n == 2)
+			return LSPValues.fnSubstringAfter(LSPValues.convertToString(a), 
+				LSPValues.convertToString(b));
+		else if (name.equals("substring") && n == 2)
+			return LSPValues.fnSubstring(LSPValues.convertToString(a), LSPValues.convertToNumber(b));
+		else if (name.equals("substring") && n == 3)
+			return LSPValues.fnSubstring(LSPValues.convertToString(a), LSPValues.convertToNumber(b), 
+				LSPValues.convertToNumber(c));
+		else if (name.equals("string-length") && n == 1)
+			return Double.valueOf(LSPValues.convertToString(a).length());
+		else if (name.equals("normalize-space") && n == 1)
+			return LSPValues.fnNormalizeSpace(LSPValues.convertToString(a));
+		else if (name.equals("translate") && n == 3)
+			return LSPValues.fnTranslate(LSPValues.convertToString(a), LSPValues.convertToString(b), 
+				LSPValues.convertToString(c));
+		else if (name.equals("boolean") && n == 1)
+			return Boolean.valueOf(LSPValues.convertToBoolean(a));
+		else if (name.equals("not") && n == 1)
+			return Boolean.valueOf(!LSPValues.convertToBoolean(a));
+		else if (name.equals("number") && n == 1)
+			return Double.valueOf(LSPValues.convertToNumber(a));
+		else if (name.equals("floor") && n == 1)
+			return Double.valueOf(Math.floor(LSPValues.convertToNumber(a)));
+		else if (name.equals("ceiling") && n == 1)
+			return Double.valueOf(Math.ceil(LSPValues.convertToNumber(a)));
+		else if (name.equals("round") && n == 1)
+			return Double.valueOf(LSPValues.fnRound(LSPValues.convertToNumber(a)));
+		else
+			return null;
+	}
+	
+
+	/**
+	 * @return the value of a literal expression as String, Double or Boolean,
+	 * or <code>null</code> if not a literal 
+	 */
+	private static Object literalValue(LSPExpr expr)
+	{
+		if (expr instanceof StringLiteral)
+		{
+			return ((StringLiteral)expr).getValue();
+		}
+		else if (expr instanceof NumberLiteral)
+		{
+			return Double.valueOf(((NumberLiteral)expr).getValue());
+		}
+		else if (expr instanceof BuiltInFunctionCall
+				&& ((BuiltInFunctionCall)expr).numberOfArgs() == 0)
+		{
+			String name = ((BuiltInFunctionCall)expr).getName(); 
+			if (name.equals("true"))
+				return Boolean.TRUE;
+			else if (name.equals("false"))
+				return Boolean.FALSE;
+			else
+				return null;
+		}
+		else
+		{
+			return null;
+		}
+	}
+	
+	
+	private static LSPExpr toLiteral(Object value)
+	{
+		if (value instanceof String)
+			return new StringLiteral((String)value);
+		else if (value instanceof Double)
+			return new NumberLiteral(((Double)value).doubleValue());
+		else
+			return new BuiltInFunctionCall(
+				((Boolean)value).booleanValue() ? "true" : "false", 0);
+	}
+	
+	
+	private static String stripCR(String s)
+	{
+		if (s.indexOf('\r') < 0) return s;
+
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i<s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '\r')
+			{
+				if ((i+1)<s.length() && (s.charAt(i+1) == '\n'))
+				{
+					// convert CR+LF to LF - skip this CR
+				}
+				else
+				{
+					sb.append('\n'); // convert alone CR to LF
+				}
+			}
+			else
+			{
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.compiler;
+
+import java.util.*;
+import nu.staldal.lsp.expr.*;
+import nu.staldal.lsp.compiledexpr.*;
+
+
+/**
+ * Static type inference for LSP expressions.
+ *
+ * The inferred type is the class of the value the compiled expression
+ * leaves on the operand stack: <code>String</code>, <code>Double</code>, 
+ * <code>Boolean</code>, <code>Collection</code>, <code>Map</code> or 
+ * <code>Object</code> when unknown until runtime. It is used by 
+ * {@link LSPJVMCompiler} to keep <code>double</code> and <code>boolean</code> 
+ * values unboxed when both operands are statically known.
+ */
+final class LSPExprTypes
+{
+	private static final Map<String,Class<?>> functionTypes =
+		new HashMap<String,Class<?>>();
+	
+	static
+	{
+		String[] stringFunctions = { "string", "concat", 
+			"substring-before", "substring-after", "substring", 
+			"normalize-space", "translate" }; 
+		for (String f : stringFunctions) functionTypes.put(f, String.class);
+
+		String[] booleanFunctions = { "starts-with", "contains", "boolean",
+			"not", "true", "false", "isset", "haselement", "isnull" }; 
+		for (String f : booleanFunctions) functionTypes.put(f, Boolean.class);
+		
+		String[] numberFunctions = { "string-length", "number", "floor", 
+			"ceiling", "round", "count" }; 
+		for (String f : numberFunctions) functionTypes.put(f, Double.class);
+		
+		functionTypes.put("seq", Collection.class);
+	}
+	
+	
+	private LSPExprTypes() {}
+	
+
+	/**
+	 * Infer the static type of an expression.
+	 *
+	 * @param expr  the expression
+	 *
+	 * @return the type, never <code>null</code>
+	 */
+	static Class<?> inferType(LSPExpr expr)
+	{
+		if (expr instanceof StringLiteral)
+		{
+			return String.class;
+		}
+		else if (expr instanceof NumberLiteral)
+		{
+			return Double.class;
+		}
+		else if (expr instanceof BinaryExpr)
+		{
+			switch (((BinaryExpr)expr).getOp())
+			{
+			case BinaryExpr.PLUS:
+			case BinaryExpr.MINUS:
+			case BinaryExpr.TIMES:
+			case BinaryExpr.DIV:
+			case BinaryExpr.MOD:
+				return Double.class;
+				
+			default:
+				return Boolean.class;
+			}
+		}
+		else if (expr instanceof UnaryExpr)
+		{
+			return Double.class;
+		}
+		else if (expr instanceof BuiltInFunctionCall)
+		{
+			Class<?> type = 
+				functionTypes.get(((BuiltInFunctionCall)expr).getName());
+			return (type != null) ? type : Object.class;
+		}
+		else if (expr instanceof ConditionalExpr)
+		{
+			ConditionalExpr cond = (ConditionalExpr)expr;
+			Class<?> thenType = inferType(cond.getThen());
+			Class<?> elseType = inferType(cond.getElse());
+			return (thenType == elseType) ? thenType : Object.class;
+		}
+		else
+		{
+			return Object.class;
+		}
+	}
+	
+	
+	/**
+	 * Check if an expression can be compiled to a primitive 
+	 * <code>double</code> or <code>boolean</code> without boxing.
+	 *
+	 * @param expr  the expression
+	 *
+	 * @return <code>true</code> if the expression is an operator 
+	 * or literal of type <code>Double</code> or <code>Boolean</code>
+	 */
+	static boolean isPrimitive(LSPExpr expr)
+	{
+		Class<?> type = inferType(expr);
+		if (type != Double.class && type != Boolean.class) return false;
+
+		return expr instanceof NumberLiteral 
+			|| expr instanceof BinaryExpr
+			|| expr instanceof UnaryExpr
+			|| expr instanceof ConditionalExpr;
+	}
+}
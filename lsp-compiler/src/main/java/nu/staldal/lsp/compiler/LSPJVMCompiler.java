@@ -46,6 +46,7 @@ import java.util.*;
 import org.xml.sax.*;
 
 import nu.staldal.util.Environment;
+import nu.staldal.xodus.StaticText;
 import nu.staldal.lsp.*;
 import nu.staldal.lsp.expr.*;
 import nu.staldal.lsp.compile.*;
@@ -69,6 +70,8 @@ class LSPJVMCompiler implements Constants
 	private static final String EXT_LIBS_URLS = "_extLibsURLs";
 	private static final String EXT_LIBS_CLASS_NAMES = "_extLibsClassNames";
 	private static final String COMPILE_DEPENDENT_FILES = "_compileDependentFiles"; 
+	private static final String TEXT_FIELD_PREFIX = "_text"; 
+	private static final String TUPLE_FIELD_PREFIX = "_tuple"; 
 
 	// private static final int PARAM_this = 0;
 	private static final int PARAM_origSax = 1;
@@ -76,8 +79,19 @@ class LSPJVMCompiler implements Constants
 	private static final int PARAM_extLibs = 3;
 	private static final int PARAM_sax = 4;
 	private static final int PARAM_attrs = 5;
-    
+	private static final int PARAM_out = 6; // only in _executeDirect
+
+	private static final String[] NO_VARS = new String[0];
+
+	/**
+	 * Default for the estimated bytecode size above which the children of 
+	 * a node are moved to separate methods. HotSpot does not JIT compile 
+	 * methods larger than 8000 bytes.
+	 */
+	static final int DEFAULT_METHOD_SIZE_LIMIT = 7000;
+
     private boolean acceptUnbound;
+    private int methodSizeLimit;
     
 	private String className = null;
 	private ClassGen classGen = null;
@@ -87,7 +101,34 @@ class LSPJVMCompiler implements Constants
     private int[] maxLineNumber = null;
 	
 	private int splitNumber;
-    
+	private LSPCodeSize codeSize = null;
+
+	// true while compiling code which writes to LSPOutput out, 
+	// false inside nodes which redirect sax
+	private boolean direct = false;
+
+	// static text -> name of the static StaticText field holding it, 
+	// in order of creation 
+	private LinkedHashMap<String,String> textFields = null;
+
+	// tuple access with constant key -> name of the static TupleAccessSite 
+	// field for it, in order of creation
+	private LinkedHashMap<TupleExpr,String> tupleFields = null;
+
+	// variables bound by <lsp:let> and <lsp:for-each> in the method currently
+	// being compiled, stored in JVM local variable slots, innermost last
+	private ArrayList<String> slotVarNames = null;
+	private ArrayList<LocalVariableGen> slotVars = null;
+
+	// for-each status objects which are never materialized: int loop counter 
+	// slot (bound in slotVars under the status name) -> LSPForEachSource slot
+	private IdentityHashMap<LocalVariableGen,LocalVariableGen> statusSlots = null;
+
+	/**
+	 * Number of each lsp:cache element, the same in both top methods.
+	 */
+	private IdentityHashMap<LSPCache,Integer> cacheIds = null;
+
 
     LSPJVMCompiler()
     {
@@ -111,12 +152,19 @@ class LSPJVMCompiler implements Constants
     void compileToByteCode(String pageName, LSPNode theTree, 
 		    HashMap<String,String> importedFiles, boolean compileDynamic,
             HashMap<String,String> extLibsInPage, Properties outputProperties, 
-            OutputStream out, boolean acceptUnbound, boolean hasEnclose)
+            OutputStream out, boolean acceptUnbound, boolean hasEnclose,
+            int methodSizeLimit)
         throws IOException, SAXException
 	{
         this.acceptUnbound = acceptUnbound;
+        this.methodSizeLimit = methodSizeLimit;
         
 		splitNumber = 0;
+		codeSize = new LSPCodeSize();
+		textFields = new LinkedHashMap<String,String>();
+		tupleFields = new LinkedHashMap<TupleExpr,String>();
+		statusSlots = new IdentityHashMap<LocalVariableGen,LocalVariableGen>();
+		cacheIds = new IdentityHashMap<LSPCache,Integer>();
 		
 		className = "_LSP_"+pageName;		
 		
@@ -211,6 +259,18 @@ class LSPJVMCompiler implements Constants
 			extLibsClassNames.add(ent.getValue());
 		}
 		
+				
+		direct = false;
+		classGen.addMethod(createTopMethod("_execute", theTree));
+		direct = true;
+		try {
+			classGen.addMethod(createTopMethod("_executeDirect", theTree));
+		}
+		finally
+		{
+			direct = false;
+		}
+
 		instrList = new InstructionList();
 		MethodGen staticInit = new MethodGen(ACC_STATIC, Type.VOID, Type.NO_ARGS, 
 			new String[] {}, "<clinit>", className, instrList, constGen);
@@ -250,35 +310,37 @@ class LSPJVMCompiler implements Constants
 		} }		
 		instrList.append(instrFactory.createFieldAccess(className, COMPILE_DEPENDENT_FILES, new ArrayType(Type.STRING, 1), PUTSTATIC));
 		
-		instrList.append(instrFactory.createReturn(Type.VOID));
-		staticInit.setMaxStack();
-		staticInit.setMaxLocals();
-		classGen.addMethod(staticInit.getMethod());
-		instrList.dispose();
-		staticInit = null;
-				
-		Method theMethod;
-		int methodLength;
-
-		try {
-            theMethod = createExecuteMethod("_execute", theTree, 0);
-			methodLength = theMethod.getCode().getCode().length;
-		}
-		catch (ClassGenException e)
+		for (Map.Entry<String,String> ent : textFields.entrySet())
 		{
-			theMethod = null;
-			methodLength = Integer.MAX_VALUE;
+			instrList.append(instrFactory.createNew(StaticText.class.getName()));
+			instrList.append(InstructionConstants.DUP);
+			instrList.append(new PUSH(constGen, ent.getKey()));
+			instrList.append(instrFactory.createInvoke(
+				StaticText.class.getName(), "<init>", 
+				Type.VOID, new Type[] { Type.STRING }, INVOKESPECIAL));
+			instrList.append(instrFactory.createFieldAccess(className, ent.getValue(), Type.getType(StaticText.class), PUTSTATIC));
 		}
+		textFields = null;
 
-		if (methodLength > 65535)
+		for (Map.Entry<TupleExpr,String> ent : tupleFields.entrySet())
 		{
-			theMethod = createExecuteMethod("_execute", theTree, 1);
-			methodLength = theMethod.getCode().getCode().length;
-			if (methodLength > 65535)
-				throw new LSPException("Generated method too large: " + methodLength);
+			instrList.append(instrFactory.createNew(TupleAccessSite.class.getName()));
+			instrList.append(InstructionConstants.DUP);
+			instrList.append(new PUSH(constGen, 
+				((StringLiteral)ent.getKey().getKey()).getValue()));
+			instrList.append(instrFactory.createInvoke(
+				TupleAccessSite.class.getName(), "<init>", 
+				Type.VOID, new Type[] { Type.STRING }, INVOKESPECIAL));
+			instrList.append(instrFactory.createFieldAccess(className, ent.getValue(), Type.getType(TupleAccessSite.class), PUTSTATIC));
 		}
+		tupleFields = null;
 		
-		classGen.addMethod(theMethod);
+		instrList.append(instrFactory.createReturn(Type.VOID));
+		staticInit.setMaxStack();
+		staticInit.setMaxLocals();
+		classGen.addMethod(staticInit.getMethod());
+		instrList.dispose();
+		staticInit = null;
         
         sourceMap.append("*L\n");
 
@@ -318,28 +380,176 @@ class LSPJVMCompiler implements Constants
 		
 		return fieldGen.getField();
 	}
+
+
+	/**
+	 * Get the static StaticText field holding the given static text, 
+	 * creating it if necessary. Equal texts share one field. 
+	 */
+	private String getTextField(String text)
+	{
+		String fieldName = textFields.get(text);
+		if (fieldName == null)
+		{
+			fieldName = TEXT_FIELD_PREFIX + textFields.size();
+			FieldGen fieldGen = new FieldGen(
+				ACC_PRIVATE | ACC_STATIC | ACC_FINAL,
+				Type.getType(StaticText.class),
+				fieldName,
+				constGen);
+			classGen.addField(fieldGen.getField());
+			textFields.put(text, fieldName);
+		}
+		return fieldName;
+	}
+
+
+	/**
+	 * Get the static TupleAccessSite field for the given tuple access, 
+	 * creating it if necessary. The same expression compiled into both 
+	 * _execute and _executeDirect shares one field. 
+	 */
+	private String getTupleField(TupleExpr expr)
+	{
+		String fieldName = tupleFields.get(expr);
+		if (fieldName == null)
+		{
+			fieldName = TUPLE_FIELD_PREFIX + tupleFields.size();
+			FieldGen fieldGen = new FieldGen(
+				ACC_PRIVATE | ACC_STATIC | ACC_FINAL,
+				Type.getType(TupleAccessSite.class),
+				fieldName,
+				constGen);
+			classGen.addField(fieldGen.getField());
+			tupleFields.put(expr, fieldName);
+		}
+		return fieldName;
+	}
 	
 		
-	private Method createExecuteMethod(String methodName, LSPNode theTree, int split)
+	private Method createTopMethod(String methodName, LSPNode theTree)
+		throws SAXException
+	{
+		int split = splitFor(theTree);
+		Method theMethod;
+		int methodLength;
+
+		try {
+            theMethod = createExecuteMethod(methodName, theTree, split, NO_VARS);
+			methodLength = theMethod.getCode().getCode().length;
+		}
+		catch (ClassGenException e)
+		{
+			theMethod = null;
+			methodLength = Integer.MAX_VALUE;
+		}
+
+		if (methodLength > 65535 && split == 0)
+		{
+			// the estimate was too low
+			theMethod = createExecuteMethod(methodName, theTree, 1, NO_VARS);
+			methodLength = theMethod.getCode().getCode().length;
+		}
+		if (methodLength > 65535)
+			throw new LSPException("Generated method too large: " + methodLength);
+		
+		return theMethod;
+	}
+	
+	
+	/**
+	 * @return 1 if the children of the node should be compiled into 
+	 *         separate methods, 0 otherwise
+	 */
+	private int splitFor(LSPNode theNode)
+	{
+		return (codeSize.estimate(theNode) > methodSizeLimit) ? 1 : 0;
+	}
+	
+
+	private Type[] executeMethodArgTypes()
+	{
+		if (direct)
+			return new Type[] { Type.getType(ContentHandler.class),
+								Type.getType(Environment.class),
+								Type.getType(Map.class),     
+								Type.getType(ContentHandler.class),     
+								Type.getType(org.xml.sax.helpers.AttributesImpl.class),
+								Type.getType(LSPOutput.class) };
+		else
+			return new Type[] { Type.getType(ContentHandler.class),
+								Type.getType(Environment.class),
+								Type.getType(Map.class),     
+								Type.getType(ContentHandler.class),     
+								Type.getType(org.xml.sax.helpers.AttributesImpl.class) };
+	}
+
+
+	/**
+	 * @param nVars  number of variables passed on from local variable
+	 *               slots of the calling method
+	 */
+	private Type[] executeMethodArgTypes(int nVars)
+	{
+		Type[] fixed = executeMethodArgTypes();
+		Type[] types = new Type[fixed.length + nVars];
+		System.arraycopy(fixed, 0, types, 0, fixed.length);
+		Arrays.fill(types, fixed.length, types.length, Type.OBJECT);
+		return types;
+	}
+
+
+	/**
+	 * @param varNames  variables passed as extra arguments,
+	 *                  bound in local variable slots in the method
+	 */
+	private Method createExecuteMethod(String methodName, LSPNode theTree, int split,
+			String[] varNames)
         throws SAXException, ClassGenException
 	{
 		InstructionList instrList = new InstructionList();
-		
+
+		String[] fixedArgNames = direct
+			? new String[] { "sax", "env", "extLibs", "_sax", "_attrs", "out" }
+			: new String[] { "sax", "env", "extLibs", "_sax", "_attrs" };
+		String[] argNames = new String[fixedArgNames.length + varNames.length];
+		System.arraycopy(fixedArgNames, 0, argNames, 0, fixedArgNames.length);
+		for (int i = 0; i<varNames.length; i++)
+			argNames[fixedArgNames.length+i] = varNames[i].replace('.', '_');
+
 		MethodGen methodGen = new MethodGen(ACC_PROTECTED|ACC_FINAL,
-								  Type.VOID,		// return types	
-								  new Type[] { Type.getType(ContentHandler.class),
-											   Type.getType(Environment.class),
-											   Type.getType(Map.class),     
-											   Type.getType(ContentHandler.class),     
-											   Type.getType(org.xml.sax.helpers.AttributesImpl.class) },     
-								  new String[] { "sax", "env", 
-								  				 "extLibs", "_sax", "_attrs" }, // arg names
-								  methodName,		// method name 
+								  Type.VOID,		// return types
+								  executeMethodArgTypes(varNames.length),
+								  argNames,
+								  methodName,		// method name
 								  className,     	// class name
 								  instrList, constGen);
-	
-		compileNode(theTree, methodGen, instrList,  split);		
-		
+
+		// local variable slots are not visible across methods,
+		// except those passed as arguments
+		ArrayList<String> outerSlotVarNames = slotVarNames;
+		ArrayList<LocalVariableGen> outerSlotVars = slotVars;
+		slotVarNames = new ArrayList<String>();
+		slotVars = new ArrayList<LocalVariableGen>();
+		for (LocalVariableGen arg : methodGen.getLocalVariables())
+		{
+			// this is slot 0, then the fixed arguments
+			int i = arg.getIndex() - 1 - fixedArgNames.length;
+			if (i >= 0)
+			{
+				slotVarNames.add(varNames[i]);
+				slotVars.add(arg);
+			}
+		}
+		try {
+			compileNode(theTree, methodGen, instrList,  split);
+		}
+		finally
+		{
+			slotVarNames = outerSlotVarNames;
+			slotVars = outerSlotVars;
+		}
+
 		// code at end
 		instrList.append(instrFactory.createReturn(Type.VOID));
 
@@ -359,16 +569,17 @@ class LSPJVMCompiler implements Constants
 	}
 
 
-	private Method createSplitMethod(LSPNode theNode)
+	private Method createSplitMethod(LSPNode theNode, String[] varNames)
 		throws SAXException	
 	{
 		String methodName = "_executeSplit" + (splitNumber++);
 		
+		int split = splitFor(theNode);
 		Method theMethod;
 		int methodLength;
 
 		try {
-			theMethod = createExecuteMethod(methodName, theNode, 0);
+			theMethod = createExecuteMethod(methodName, theNode, split, varNames);
 			methodLength = theMethod.getCode().getCode().length;
 		}
 		catch (ClassGenException e)
@@ -377,23 +588,71 @@ class LSPJVMCompiler implements Constants
 			methodLength = Integer.MAX_VALUE;
 		}
 
-		if (methodLength > 65535)
+		if (methodLength > 65535 && split == 0)
 		{
+			// the estimate was too low
             try {
-                theMethod = createExecuteMethod(methodName, theNode, 1);
+                theMethod = createExecuteMethod(methodName, theNode, 1, varNames);
                 methodLength = theMethod.getCode().getCode().length;
             }
             catch (ClassGenException e)
             {
 				throw new LSPException("Generated split method too large: " + e.getMessage());
             }
-			if (methodLength > 65535)
-				throw new LSPException("Generated split method too large: " + methodLength);
 		}
+		if (methodLength > 65535)
+			throw new LSPException("Generated split method too large: " + methodLength);
 		
         return theMethod;
    	}
-	
+
+
+	/**
+	 * Store the value on top of the stack in a new local variable slot
+	 * and bind the given variable name to it.
+	 */
+	private void bindSlotVariable(String varName,
+			MethodGen methodGen, InstructionList instrList)
+	{
+		LocalVariableGen slot = methodGen.addLocalVariable(
+			varName.replace('.', '_'), Type.OBJECT, null, null);
+		slot.setStart(instrList.append(new ASTORE(slot.getIndex())));
+
+		slotVarNames.add(varName);
+		slotVars.add(slot);
+	}
+
+
+	/**
+	 * Unbind all variables bound in local variable slots since
+	 * the scope was at the given size.
+	 */
+	private void unbindSlotVariables(int scopeSize, InstructionList instrList)
+	{
+		InstructionHandle endOfScope = instrList.append(InstructionConstants.NOP);
+
+		for (int i = slotVars.size()-1; i >= scopeSize; i--)
+		{
+			slotVars.remove(i).setEnd(endOfScope);
+			slotVarNames.remove(i);
+		}
+	}
+
+
+	/**
+	 * @return <code>null</code> if the variable is not bound in a local
+	 * 		   variable slot, i.e. it must be looked up in the Environment
+	 */
+	private LocalVariableGen lookupSlotVariable(String varName)
+	{
+		for (int i = slotVarNames.size()-1; i >= 0; i--)
+		{
+			if (slotVarNames.get(i).equals(varName))
+				return slotVars.get(i);
+		}
+		return null;
+	}
+
 
 	private void compileNode(LSPNode node, 
 			MethodGen methodGen, InstructionList instrList, 
@@ -444,6 +703,10 @@ class LSPJVMCompiler implements Constants
                 compileNode((LSPTemplate)node, methodGen, instrList, split);
             else if (node instanceof LSPProcessingInstruction)
                 compileNode((LSPProcessingInstruction)node, methodGen, instrList, split);
+            else if (node instanceof LSPCache)
+                compileNode((LSPCache)node, methodGen, instrList, split);
+            else if (node instanceof LSPFlush)
+                compileNode((LSPFlush)node, methodGen, instrList);
             else
                 throw new SAXParseException("Unrecognized LSPNode: "
                     + node.getClass().getName(), node);
@@ -456,62 +719,131 @@ class LSPJVMCompiler implements Constants
 			int split)
 		throws SAXException
 	{
-		for (int i = 0; i < el.numberOfChildren(); i++)
+		if (split == 0)
 		{
-			LSPNode child = el.getChild(i);
-			if (split > 0)
+			for (int i = 0; i < el.numberOfChildren(); i++)
 			{
-				Method splitMethod = createSplitMethod(child);
-                
-                if (splitMethod.getCode().getCode().length > 20)
-                {                
-                    classGen.addMethod(splitMethod);
-    
-                    instrList.append(instrFactory.createThis());
-                    instrList.append(instrFactory.createLoad(
-                        Type.getType(org.xml.sax.ContentHandler.class),
-                        PARAM_origSax));
-                    instrList.append(instrFactory.createLoad(
-                        Type.getType(Environment.class),
-                        PARAM_env));
-                    instrList.append(instrFactory.createLoad(
-                        Type.getType(Map.class),
-                        PARAM_extLibs));
-                    instrList.append(instrFactory.createLoad(
-                        Type.getType(org.xml.sax.ContentHandler.class),
-                        PARAM_sax));
+				compileNode(el.getChild(i), methodGen, instrList, 0);
+			}
+			return;
+		}
+		
+		int i = 0;
+		while (i < el.numberOfChildren())
+		{
+			// as many consecutive children as fits in one method, counting 
+			// the container wrapping them, or the group would be split again
+			int size = LSPCodeSize.NODE_OVERHEAD + codeSize.estimate(el.getChild(i));
+			int j = i+1;
+			while (j < el.numberOfChildren() 
+					&& size + codeSize.estimate(el.getChild(j)) <= methodSizeLimit)
+			{
+				size += codeSize.estimate(el.getChild(j));
+				j++;
+			}
+
+			LSPNode child;
+			if (j == i+1)
+			{
+				child = el.getChild(i);
+			}
+			else
+			{
+				LSPSimpleContainer group = new LSPSimpleContainer(j-i, el.getChild(i));
+				for (int k = i; k < j; k++)
+					group.addChild(el.getChild(k));
+				child = group;
+			}
+			i = j;
+			
+			// variables in local slots are passed on to the split method
+			String[] varNames = visibleSlotVariables();
+			Method splitMethod = createSplitMethod(child, varNames);
+            
+            if (splitMethod.getCode().getCode().length > 20)
+            {                
+                classGen.addMethod(splitMethod);
+
+                instrList.append(instrFactory.createThis());
+                instrList.append(instrFactory.createLoad(
+                    Type.getType(org.xml.sax.ContentHandler.class),
+                    PARAM_origSax));
+                instrList.append(instrFactory.createLoad(
+                    Type.getType(Environment.class),
+                    PARAM_env));
+                instrList.append(instrFactory.createLoad(
+                    Type.getType(Map.class),
+                    PARAM_extLibs));
+                instrList.append(instrFactory.createLoad(
+                    Type.getType(org.xml.sax.ContentHandler.class),
+                    PARAM_sax));
+                instrList.append(instrFactory.createLoad(
+                    Type.getType(org.xml.sax.helpers.AttributesImpl.class),
+                    PARAM_attrs));
+                if (direct)
+                {
                     instrList.append(instrFactory.createLoad(
-                        Type.getType(org.xml.sax.helpers.AttributesImpl.class),
-                        PARAM_attrs));
-                        
-                    instrList.append(instrFactory.createInvoke(
-                        className,
-                        splitMethod.getName(), Type.VOID, 
-                        new Type[] { Type.getType(ContentHandler.class),
-                                     Type.getType(Environment.class),
-                                     Type.getType(Map.class),     
-                                     Type.getType(ContentHandler.class),     
-                                     Type.getType(org.xml.sax.helpers.AttributesImpl.class) },     
-                        INVOKEVIRTUAL));
+                        Type.getType(LSPOutput.class),
+                        PARAM_out));
                 }
-                else
+                for (int k = 0; k<varNames.length; k++)
                 {
-                    compileNode(child, methodGen, instrList, 0);
+                    instrList.append(new ALOAD(
+                        lookupSlotVariable(varNames[k]).getIndex()));
                 }
-			}				
-			else
-			{
-				compileNode(child, methodGen, instrList, split);
-			}
+                    
+                instrList.append(instrFactory.createInvoke(
+                    className,
+                    splitMethod.getName(), Type.VOID, 
+                    executeMethodArgTypes(varNames.length),
+                    INVOKEVIRTUAL));
+            }
+            else
+            {
+                compileNode(child, methodGen, instrList, 0);
+            }
 		}
 	}
 
 	
+	/**
+	 * @return names of the variables bound in local variable slots,
+	 *         without shadowed ones, outermost first
+	 */
+	private String[] visibleSlotVariables()
+		throws SAXException
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		for (int i = slotVarNames.size()-1; i >= 0; i--)
+		{
+			String name = slotVarNames.get(i);
+			if (names.contains(name))
+				continue;
+			if (statusSlots.containsKey(slotVars.get(i)))
+				throw new LSPException("Internal error in LSP compiler: "
+					+ "status object " + name + " not materialized");
+			names.add(0, name);
+		}
+
+		// a method has at most 255 argument slots, including this
+		if (1 + executeMethodArgTypes().length + names.size() > 255)
+			throw new LSPException("Too many variables in scope: " + names.size());
+
+		return names.toArray(new String[names.size()]);
+	}
+
+
 	private void compileNode(LSPElement el,
 			MethodGen methodGen, InstructionList instrList, 
 			int split)
         throws SAXException
     {
+		if (direct)
+		{
+			compileElementDirect(el, methodGen, instrList, split);
+			return;
+		}
+		
 		for (int i = 0; i < el.numberOfNamespaceMappings(); i++)
 		{
 			instrList.append(instrFactory.createLoad(
@@ -754,45 +1086,257 @@ class LSPJVMCompiler implements Constants
 		}
     }
 
-    
-	private void compileNode(LSPExtElement el,
+
+
+	private void compileElementDirect(LSPElement el,
 			MethodGen methodGen, InstructionList instrList, 
-			int split)	
+			int split)
         throws SAXException
-    {		
-		// LSPExtLib extLib = (LSPExtLib)extLibs.get(el.getClassName());
-		instrList.append(instrFactory.createLoad(
-			Type.getType(Map.class), PARAM_extLibs));
-		instrList.append(new PUSH(constGen, el.getClassName()));
-		instrList.append(instrFactory.createInvoke(
-			Map.class.getName(),
-			"get",
-			Type.OBJECT,
-			new Type[] { Type.OBJECT },
-			INVOKEINTERFACE));
+    {
+		for (int i = 0; i < el.numberOfNamespaceMappings(); i++)
+		{
+			instrList.append(instrFactory.createLoad(
+				Type.getType(org.xml.sax.ContentHandler.class),
+				PARAM_sax));
 
-		instrList.append(InstructionConstants.DUP); // DUP extLib		  		
-			
-		// ContentHandler in = extLib.beforeElement(sax);
-		instrList.append(instrFactory.createLoad(
-			Type.getType(org.xml.sax.ContentHandler.class),
-			PARAM_sax));
-		instrList.append(instrFactory.createInvoke(
-			LSPExtLib.class.getName(),
-			"beforeElement",
-			Type.getType(ContentHandler.class),
-			new Type[] { Type.getType(ContentHandler.class) },
-			INVOKEINTERFACE));
+			String[] m = el.getNamespaceMapping(i);
 
+			// sax.startPrefixMapping(m[0], m[1]);			
+			instrList.append(new PUSH(constGen, m[0]));
+			instrList.append(new PUSH(constGen, m[1]));
+			instrList.append(instrFactory.createInvoke(
+				ContentHandler.class.getName(),
+				"startPrefixMapping",
+				Type.VOID,
+				new Type[] { Type.STRING, Type.STRING },
+				INVOKEINTERFACE));
+		}
+		
+		LocalVariableGen _nsURI = methodGen.addLocalVariable("nsURI",
+        	Type.STRING, null, null);			
+		LocalVariableGen _localName = methodGen.addLocalVariable("localName",
+        	Type.STRING, null, null);			
+		
 		instrList.append(instrFactory.createLoad(
-			Type.getType(org.xml.sax.ContentHandler.class),
+			Type.getType(LSPOutput.class), PARAM_out));
+
+		if (el.getLocalName() == null)
+		{
+			// String nsURI = evalExprAsString(el.getNamespaceURIExpr());
+			if (el.getNamespaceURIExpr() != null)
+				compileExprAsString(el.getNamespaceURIExpr(), methodGen, instrList);
+			else
+				instrList.append(new PUSH(constGen, ""));
+			instrList.append(InstructionConstants.DUP); 			
+			_nsURI.setStart(instrList.append(new ASTORE(_nsURI.getIndex())));		  					
+			
+			LSPExpr localNameExpr = el.getLocalNameExpr(); 
+			
+			if ((localNameExpr instanceof StringLiteral)
+					&& 	((StringLiteral)localNameExpr).getValue().indexOf(':') > -1)
+				throw new SAXParseException("<lsp:element> may not use QName", el);
+
+			// String localName = evalExprAsString(el.getLocalNameExpr());
+			compileExprAsString(localNameExpr, methodGen, instrList);
+			instrList.append(InstructionConstants.DUP); 			
+			_localName.setStart(instrList.append(new ASTORE(_localName.getIndex())));		  		
+		}
+		else
+		{
+			// String nsURI = el.getNamespaceURI();
+			instrList.append(new PUSH(constGen, el.getNamespaceURI()));
+			instrList.append(InstructionConstants.DUP); 			
+			_nsURI.setStart(instrList.append(new ASTORE(_nsURI.getIndex())));		  					
+
+			// String localName = el.getLocalName();
+			instrList.append(new PUSH(constGen, el.getLocalName()));
+			instrList.append(InstructionConstants.DUP); 			
+			_localName.setStart(instrList.append(new ASTORE(_localName.getIndex())));		  		
+		}
+		
+		// out.startTag(nsURI, localName);
+		instrList.append(instrFactory.createInvoke(
+			LSPOutput.class.getName(),
+			"startTag",
+			Type.VOID,
+			new Type[] { Type.STRING, Type.STRING },
+			INVOKEINTERFACE));
+
+		for (int i = 0; i < el.numberOfAttributes(); i++)
+		{
+			LSPExpr localExpr = el.getAttributeLocalName(i);
+			
+			if ((localExpr instanceof StringLiteral)
+					&& ((StringLiteral)localExpr).getValue().length() == 0)
+				continue;
+			
+			instrList.append(instrFactory.createLoad(
+				Type.getType(LSPOutput.class), PARAM_out));
+
+			// String URL = evalExprAsString(el.getAttributeNamespaceURI(i));
+			compileExprAsString(el.getAttributeNamespaceURI(i), methodGen, instrList);
+						
+			if ((localExpr instanceof StringLiteral)
+					&& 	((StringLiteral)localExpr).getValue().indexOf(':') > -1)
+				throw new SAXParseException("<lsp:attribute> may not use QName", el);
+
+			if ((localExpr instanceof StringLiteral)
+					&& 	((StringLiteral)localExpr).getValue().equals("xmlns"))
+				throw new SAXParseException("<lsp:attribute> may not add xmlns", el);
+				
+			// String local = evalExprAsString(el.getAttributeLocalName(i));
+			compileExprAsString(localExpr, methodGen, instrList);
+			
+			BranchInstruction skipEmptyName = null; 
+			BranchInstruction skipFalse = null; 
+
+			if (!(localExpr instanceof StringLiteral))
+			{
+				// if (local.length() == 0) continue; // ignore attributes with empty name
+				instrList.append(InstructionConstants.DUP);
+				instrList.append(instrFactory.createInvoke(
+					String.class.getName(), "length", 
+					Type.INT, Type.NO_ARGS, INVOKEVIRTUAL));
+				BranchInstruction shortBranch = instrFactory.createBranchInstruction(
+					IFNE, null);
+				instrList.append(shortBranch);
+				instrList.append(InstructionConstants.POP2);
+				instrList.append(InstructionConstants.POP);
+				skipEmptyName = instrFactory.createBranchInstruction(GOTO, null);
+				instrList.append(skipEmptyName);
+				shortBranch.setTarget(instrList.append(InstructionConstants.NOP));
+			}				
+			
+			// String value = evalExprAsString(el.getAttributeValue(i));
+            Class<?> valueType = compileExpr(
+                el.getAttributeValue(i), methodGen, instrList);
+            if (valueType == Boolean.class)
+            {
+                try {
+                    instrList.delete(instrList.getEnd());
+                }
+                catch (TargetLostException e)
+                {
+                    throw new LSPException("Internal error in LSP compiler: " + e.getMessage());	
+                }
+                
+				// if (!value) continue; else value = local;
+				BranchInstruction shortBranch = instrFactory.createBranchInstruction(
+					IFNE, null);
+				instrList.append(shortBranch);
+				instrList.append(InstructionConstants.POP2);
+				instrList.append(InstructionConstants.POP);
+				skipFalse = instrFactory.createBranchInstruction(GOTO, null);
+				instrList.append(skipFalse);
+				shortBranch.setTarget(instrList.append(InstructionConstants.DUP));
+            }            
+            else if (valueType == String.class)
+            {
+                
+            }
+            else
+            {
+                instrList.append(instrFactory.createInvoke(
+                    LSPPageBase.class.getName(),
+                    "convertToString",
+                    Type.STRING,
+                    new Type[] { Type.OBJECT },
+                    INVOKESTATIC));
+            }
+
+			// out.attribute(URI, local, value);
+			instrList.append(instrFactory.createInvoke(
+				LSPOutput.class.getName(),
+				"attribute",
+				Type.VOID,
+				new Type[] { Type.STRING, Type.STRING, Type.STRING },
+				INVOKEINTERFACE));
+			
+			if (skipEmptyName != null || skipFalse != null)
+			{
+				InstructionHandle next = instrList.append(InstructionConstants.NOP);
+				if (skipEmptyName != null) skipEmptyName.setTarget(next);
+				if (skipFalse != null) skipFalse.setTarget(next);
+			}
+		}
+		
+		compileChildren(el, methodGen, instrList, split);
+
+		// out.endTag(nsURI, localName);
+		instrList.append(instrFactory.createLoad(
+			Type.getType(LSPOutput.class), PARAM_out));
+		instrList.append(new ALOAD(_nsURI.getIndex()));		  		
+		InstructionHandle endOfVars = 
+			instrList.append(new ALOAD(_localName.getIndex()));
+		_nsURI.setEnd(endOfVars);
+		_localName.setEnd(endOfVars);
+		instrList.append(instrFactory.createInvoke(
+			LSPOutput.class.getName(),
+			"endTag",
+			Type.VOID,
+			new Type[] { Type.STRING, Type.STRING },
+			INVOKEINTERFACE));
+				
+		for (int i = 0; i < el.numberOfNamespaceMappings(); i++)
+		{
+			instrList.append(instrFactory.createLoad(
+				Type.getType(org.xml.sax.ContentHandler.class),
+				PARAM_sax));
+
+			String[] m = el.getNamespaceMapping(i);
+			
+			// sax.endPrefixMapping(m[0]);
+			instrList.append(new PUSH(constGen, m[0]));
+			instrList.append(instrFactory.createInvoke(
+				ContentHandler.class.getName(),
+				"endPrefixMapping",
+				Type.VOID,
+				new Type[] { Type.STRING },
+				INVOKEINTERFACE));
+		}
+    }
+    
+	private void compileNode(LSPExtElement el,
+			MethodGen methodGen, InstructionList instrList, 
+			int split)	
+        throws SAXException
+    {		
+		// LSPExtLib extLib = (LSPExtLib)extLibs.get(el.getClassName());
+		instrList.append(instrFactory.createLoad(
+			Type.getType(Map.class), PARAM_extLibs));
+		instrList.append(new PUSH(constGen, el.getClassName()));
+		instrList.append(instrFactory.createInvoke(
+			Map.class.getName(),
+			"get",
+			Type.OBJECT,
+			new Type[] { Type.OBJECT },
+			INVOKEINTERFACE));
+
+		instrList.append(InstructionConstants.DUP); // DUP extLib		  		
+			
+		// ContentHandler in = extLib.beforeElement(sax);
+		instrList.append(instrFactory.createLoad(
+			Type.getType(org.xml.sax.ContentHandler.class),
+			PARAM_sax));
+		instrList.append(instrFactory.createInvoke(
+			LSPExtLib.class.getName(),
+			"beforeElement",
+			Type.getType(ContentHandler.class),
+			new Type[] { Type.getType(ContentHandler.class) },
+			INVOKEINTERFACE));
+
+		instrList.append(instrFactory.createLoad(
+			Type.getType(org.xml.sax.ContentHandler.class),
 			PARAM_sax));
 		instrList.append(InstructionConstants.SWAP);		  		
 		instrList.append(instrFactory.createStore(
 			Type.getType(org.xml.sax.ContentHandler.class),
 			PARAM_sax));
 
+		boolean wasDirect = direct;
+		direct = false;
 		compileNode((LSPElement)el, methodGen, instrList, split);
+		direct = wasDirect;
 
 		instrList.append(instrFactory.createStore(
 			Type.getType(org.xml.sax.ContentHandler.class),
@@ -836,28 +1380,57 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList, 
 			int split)	
     {
-        String chars = text.getValue();
-        
+		if (direct)
+		{
+			// out.staticText(_textN);
+			instrList.append(instrFactory.createLoad(
+				Type.getType(LSPOutput.class), PARAM_out));
+			instrList.append(instrFactory.createFieldAccess(className, 
+				getTextField(text.getValue()), Type.getType(StaticText.class), 
+				GETSTATIC));
+			instrList.append(instrFactory.createInvoke(
+				LSPOutput.class.getName(),
+				"staticText",
+				Type.VOID,
+				new Type[] { Type.getType(StaticText.class) },
+				INVOKEINTERFACE));
+			return;
+		}
+		
 		instrList.append(instrFactory.createLoad(
 			Type.getType(org.xml.sax.ContentHandler.class),
 			PARAM_sax));
 
-		// sax.characters(chars, 0, chars.length);
-		instrList.append(new PUSH(constGen, chars));
+		// outputStaticText(sax, _textN);
+		instrList.append(instrFactory.createFieldAccess(className, 
+			getTextField(text.getValue()), Type.getType(StaticText.class), 
+			GETSTATIC));
 		instrList.append(instrFactory.createInvoke(
-			String.class.getName(), "toCharArray", 
-			new ArrayType(Type.CHAR, 1), Type.NO_ARGS, INVOKEVIRTUAL));
-		instrList.append(new PUSH(constGen, 0));
-		instrList.append(new PUSH(constGen, chars.length()));
-		instrList.append(instrFactory.createInvoke(
-			ContentHandler.class.getName(),
-			"characters",
+			LSPPageBase.class.getName(),
+			"outputStaticText",
 			Type.VOID,
-			new Type[] { new ArrayType(Type.CHAR, 1), Type.INT, Type.INT },
-			INVOKEINTERFACE));
+			new Type[] { Type.getType(ContentHandler.class), 
+						 Type.getType(StaticText.class) },
+			INVOKESTATIC));
     }
 
 
+	private void compileNode(LSPFlush el,
+			MethodGen methodGen, InstructionList instrList)	
+	{
+		// flush(sax);
+		instrList.append(instrFactory.createLoad(
+			Type.getType(ContentHandler.class),
+			PARAM_sax));
+		instrList.append(instrFactory.createInvoke(
+			LSPPageBase.class.getName(),
+			"flush",
+			Type.VOID,
+			new Type[] { Type.getType(ContentHandler.class) },
+			INVOKESTATIC));
+	}
+
+
 	private void compileNode(LSPProcessingInstruction el,
 			MethodGen methodGen, InstructionList instrList, 
 			int split)	
@@ -874,7 +1447,10 @@ class LSPJVMCompiler implements Constants
 			Type.getType(org.xml.sax.ContentHandler.class),
 			PARAM_sax));
 
+		boolean wasDirect = direct;
+		direct = false;
 		compileNode(el.getData(), methodGen, instrList, split);
+		direct = wasDirect;
 
 		instrList.append(instrFactory.createLoad(
 			Type.getType(org.xml.sax.ContentHandler.class),
@@ -984,195 +1560,450 @@ class LSPJVMCompiler implements Constants
 	}
 
 
-	private void compileNode(LSPForEach el,
+	private void compileNode(LSPForEach el,
+			MethodGen methodGen, InstructionList instrList, 
+			int split)	
+		throws SAXException
+	{
+		// LSPForEachSource theSource = LSPForEachSource.forValue(evalExpr(el.getList()));
+		compileExpr(el.getList(), methodGen, instrList);
+		instrList.append(instrFactory.createInvoke(
+			LSPForEachSource.class.getName(),
+			"forValue",
+			Type.getType(LSPForEachSource.class),
+			new Type[] { Type.OBJECT },
+			INVOKESTATIC));
+		LocalVariableGen sourceSlot = methodGen.addLocalVariable(
+			"_source", Type.getType(LSPForEachSource.class), null, null);
+		sourceSlot.setStart(instrList.append(new ASTORE(sourceSlot.getIndex())));
+
+		// int i = 0;
+		LocalVariableGen indexSlot = methodGen.addLocalVariable(
+			"_index", Type.INT, null, null);
+		instrList.append(InstructionConstants.ICONST_0);
+		indexSlot.setStart(instrList.append(new ISTORE(indexSlot.getIndex())));
+		
+		int scopeSize = slotVars.size();
+
+		LocalVariableGen statusSlot = null;
+		if (el.getStatusObject() != null && split == 0
+				&& !statusEscapes(el.getStatusObject(), el.getBody()))
+		{
+			// $status.index etc. are computed from the loop counter
+			slotVarNames.add(el.getStatusObject());
+			slotVars.add(indexSlot);
+			statusSlots.put(indexSlot, sourceSlot);
+		}
+		else if (el.getStatusObject() != null)
+		{
+			// statusVar = new LSPForEachStatus(theSource);
+			instrList.append(instrFactory.createNew(
+				(ObjectType)Type.getType(LSPForEachStatus.class)));
+			instrList.append(InstructionConstants.DUP);
+			instrList.append(new ALOAD(sourceSlot.getIndex()));
+			instrList.append(instrFactory.createInvoke(
+				LSPForEachStatus.class.getName(),
+				"<init>", Type.VOID, 
+				new Type[] { Type.getType(LSPForEachSource.class) }, 
+				INVOKESPECIAL));			
+			bindSlotVariable(el.getStatusObject(), methodGen, instrList);
+			statusSlot = slotVars.get(slotVars.size()-1);
+		}            
+		
+		// while (theSource.hasElement(i))
+		BranchInstruction loopStart = 
+			instrFactory.createBranchInstruction(GOTO, null); 		
+		instrList.append(loopStart);		
+		InstructionHandle atStartOfLoop = 
+			instrList.append(InstructionConstants.NOP);
+
+		if (statusSlot != null)
+		{
+            // status.next();
+            instrList.append(new ALOAD(statusSlot.getIndex()));
+            instrList.append(instrFactory.createInvoke(
+                LSPForEachStatus.class.getName(),
+                "next",
+                Type.VOID,
+                Type.NO_ARGS,
+                INVOKEVIRTUAL));            
+        }            
+            
+		// var = theSource.element(i);
+		instrList.append(new ALOAD(sourceSlot.getIndex()));
+		instrList.append(new ILOAD(indexSlot.getIndex()));
+		instrList.append(instrFactory.createInvoke(
+			LSPForEachSource.class.getName(),
+			"element",
+			Type.OBJECT,
+			new Type[] { Type.INT },
+			INVOKEVIRTUAL));
+		bindSlotVariable(el.getVariable(), methodGen, instrList);
+
+		compileNode(el.getBody(), methodGen, instrList, split);
+
+		unbindSlotVariables(scopeSize, instrList);
+		
+		// i++;
+		instrList.append(new IINC(indexSlot.getIndex(), 1));
+
+		// end while				
+		loopStart.setTarget(
+			instrList.append(new ALOAD(sourceSlot.getIndex())));
+		instrList.append(new ILOAD(indexSlot.getIndex()));
+		instrList.append(instrFactory.createInvoke(
+			LSPForEachSource.class.getName(),
+			"hasElement",
+			Type.BOOLEAN,
+			new Type[] { Type.INT },
+			INVOKEVIRTUAL));
+		InstructionHandle endOfLoop = instrList.append(
+			instrFactory.createBranchInstruction(IFNE, atStartOfLoop));
+		
+		sourceSlot.setEnd(endOfLoop);
+		indexSlot.setEnd(endOfLoop);
+		statusSlots.remove(indexSlot);
+	}
+
+
+	/**
+	 * Check if a for-each status variable is used in the body in any other 
+	 * way than reading one of its fields with a constant key, e.g. 
+	 * <code>$status.index</code>. Conservative, a shadowing binding
+	 * of the same name counts as use.
+	 */
+	private static boolean statusEscapes(String statusName, LSPNode node)
+	{
+		if (node == null || node instanceof LSPText)
+		{
+			return false;
+		}
+		else if (node instanceof LSPElement)
+		{
+			LSPElement el = (LSPElement)node;
+			if (statusEscapes(statusName, el.getNamespaceURIExpr())
+					|| statusEscapes(statusName, el.getLocalNameExpr()))
+				return true;
+			for (int i = 0; i < el.numberOfAttributes(); i++)
+			{
+				if (statusEscapes(statusName, el.getAttributeNamespaceURI(i))
+						|| statusEscapes(statusName, el.getAttributeLocalName(i))
+						|| statusEscapes(statusName, el.getAttributeValue(i)))
+					return true;
+			}
+			return childrenEscape(statusName, el);
+		}
+		else if (node instanceof LSPContainer)
+		{
+			return childrenEscape(statusName, (LSPContainer)node);
+		}
+		else if (node instanceof LSPTemplate)
+		{
+			return statusEscapes(statusName, ((LSPTemplate)node).getExpr());
+		}
+		else if (node instanceof LSPIf)
+		{
+			LSPIf el = (LSPIf)node;
+			return statusEscapes(statusName, el.getTest())
+				|| statusEscapes(statusName, el.getBody());
+		}
+		else if (node instanceof LSPChoose)
+		{
+			LSPChoose el = (LSPChoose)node;
+			for (int i = 0; i < el.getNWhens(); i++)
+			{
+				if (statusEscapes(statusName, el.getWhenTest(i))
+						|| statusEscapes(statusName, el.getWhenBody(i)))
+					return true;
+			}
+			return statusEscapes(statusName, el.getOtherwise());
+		}
+		else if (node instanceof LSPForEach)
+		{
+			LSPForEach el = (LSPForEach)node;
+			return statusName.equals(el.getVariable()) 
+				|| statusName.equals(el.getStatusObject())
+				|| statusEscapes(statusName, el.getList())
+				|| statusEscapes(statusName, el.getBody());
+		}
+		else if (node instanceof LSPLet)
+		{
+			LSPLet el = (LSPLet)node;
+			for (int i = 0; i < el.getVars().length; i++)
+			{
+				if (statusName.equals(el.getVars()[i])
+						|| statusEscapes(statusName, el.getValues()[i]))
+					return true;
+			}
+			return statusEscapes(statusName, el.getBody());
+		}
+		else if (node instanceof LSPCache)
+		{
+			LSPCache el = (LSPCache)node;
+			return statusEscapes(statusName, el.getKey())
+				|| statusEscapes(statusName, el.getBody());
+		}
+		else if (node instanceof LSPFlush)
+		{
+			return false;
+		}
+		else if (node instanceof LSPProcessingInstruction)
+		{
+			LSPProcessingInstruction el = (LSPProcessingInstruction)node;
+			return statusEscapes(statusName, el.getName())
+				|| statusEscapes(statusName, el.getData());
+		}
+		else
+		{
+			return true;
+		}
+	}
+
+
+	private static boolean childrenEscape(String statusName, LSPContainer el)
+	{
+		for (int i = 0; i < el.numberOfChildren(); i++)
+		{
+			if (statusEscapes(statusName, el.getChild(i)))
+				return true;
+		}
+		return false;
+	}
+
+
+	private static boolean statusEscapes(String statusName, LSPExpr expr)
+	{
+		if (expr == null || expr instanceof StringLiteral 
+				|| expr instanceof NumberLiteral)
+		{
+			return false;
+		}
+		else if (expr instanceof VariableReference)
+		{
+			return statusName.equals(((VariableReference)expr).getName());
+		}
+		else if (expr instanceof TupleExpr)
+		{
+			TupleExpr te = (TupleExpr)expr;
+			if (te.getBase() instanceof VariableReference 
+					&& statusName.equals(((VariableReference)te.getBase()).getName()))
+				return !isStatusField(te.getKey());
+			return statusEscapes(statusName, te.getBase())
+				|| statusEscapes(statusName, te.getKey());
+		}
+		else if (expr instanceof BinaryExpr)
+		{
+			BinaryExpr be = (BinaryExpr)expr;
+			return statusEscapes(statusName, be.getLeft())
+				|| statusEscapes(statusName, be.getRight());
+		}
+		else if (expr instanceof UnaryExpr)
+		{
+			return statusEscapes(statusName, ((UnaryExpr)expr).getLeft());
+		}
+		else if (expr instanceof ConditionalExpr)
+		{
+			ConditionalExpr ce = (ConditionalExpr)expr;
+			return statusEscapes(statusName, ce.getTest())
+				|| statusEscapes(statusName, ce.getThen())
+				|| statusEscapes(statusName, ce.getElse());
+		}
+		else if (expr instanceof BuiltInFunctionCall)
+		{
+			BuiltInFunctionCall fc = (BuiltInFunctionCall)expr;
+			for (int i = 0; i < fc.numberOfArgs(); i++)
+			{
+				if (statusEscapes(statusName, fc.getArg(i)))
+					return true;
+			}
+			return false;
+		}
+		else if (expr instanceof ExtensionFunctionCall)
+		{
+			ExtensionFunctionCall fc = (ExtensionFunctionCall)expr;
+			for (int i = 0; i < fc.numberOfArgs(); i++)
+			{
+				if (statusEscapes(statusName, fc.getArg(i)))
+					return true;
+			}
+			return false;
+		}
+		else
+		{
+			return true;
+		}
+	}
+
+
+	private static boolean isStatusField(LSPExpr key)
+	{
+		if (!(key instanceof StringLiteral))
+			return false;
+		
+		String name = ((StringLiteral)key).getValue();
+		return name.equals("index") || name.equals("first") || name.equals("last")
+			|| name.equals("even") || name.equals("odd");
+	}
+		
+
+	/**
+	 * Output each part of a concat() directly, without building the String.
+	 */
+	private void compileConcatOutput(BuiltInFunctionCall expr, 
+			boolean disableOutputEscaping, 
+			MethodGen methodGen, InstructionList instrList)
+		throws SAXException
+	{
+		// boolean afterCR = false;
+		instrList.append(new PUSH(constGen, 0));
+		
+		for (int i = 0; i<expr.numberOfArgs(); i++)
+		{
+			if (direct && !disableOutputEscaping)
+			{
+				// afterCR = outputPartWithoutCR(out, evalExprAsString(arg), afterCR);
+				instrList.append(instrFactory.createLoad(
+					Type.getType(LSPOutput.class), PARAM_out));
+				instrList.append(InstructionConstants.SWAP);		  		
+				compileExprAsString(expr.getArg(i), methodGen, instrList);
+				instrList.append(InstructionConstants.SWAP);		  		
+				instrList.append(instrFactory.createInvoke(
+					LSPPageBase.class.getName(),
+					"outputPartWithoutCR",
+					Type.BOOLEAN,
+					new Type[] { Type.getType(LSPOutput.class), Type.STRING, 
+						Type.BOOLEAN },
+					INVOKESTATIC));		
+			}
+			else
+			{
+				// afterCR = outputPartWithoutCR(sax, evalExprAsString(arg), 
+				//		disableOutputEscaping, afterCR);
+				instrList.append(instrFactory.createLoad(
+					Type.getType(ContentHandler.class),
+					PARAM_sax));
+				instrList.append(InstructionConstants.SWAP);		  		
+				compileExprAsString(expr.getArg(i), methodGen, instrList);
+				instrList.append(InstructionConstants.SWAP);		  		
+				instrList.append(new PUSH(constGen, 
+					disableOutputEscaping ? 1 : 0));
+				instrList.append(InstructionConstants.SWAP);		  		
+				instrList.append(instrFactory.createInvoke(
+					LSPPageBase.class.getName(),
+					"outputPartWithoutCR",
+					Type.BOOLEAN,
+					new Type[] { Type.getType(ContentHandler.class), Type.STRING, 
+						Type.BOOLEAN, Type.BOOLEAN },
+					INVOKESTATIC));		
+			}
+		}
+		
+		instrList.append(InstructionConstants.POP);
+	}
+
+
+	private void compileNode(LSPCache el,
 			MethodGen methodGen, InstructionList instrList, 
-			int split)	
-		throws SAXException
+			int split)
+        throws SAXException
 	{
-		// final Collection theList = evalExprAsList(el.getList());
-		compileExprAsList(el.getList(), methodGen, instrList);
-
-		// Iterator theIter = theList.listIterator();
-		instrList.append(instrFactory.createInvoke(
-			Collection.class.getName(),
-			"iterator",
-			Type.getType(Iterator.class),
-			Type.NO_ARGS,
-			INVOKEINTERFACE));
-            
-		if (el.getStatusObject() != null)
-		{
-			instrList.append(InstructionConstants.DUP); // DUP theIter	
-
-			// new LSPForEachStatus(theIter);
-			instrList.append(instrFactory.createNew(
-				(ObjectType)Type.getType(LSPForEachStatus.class)));
-			instrList.append(InstructionConstants.DUP_X1);			
-			instrList.append(InstructionConstants.SWAP);
-			instrList.append(instrFactory.createInvoke(
-				LSPForEachStatus.class.getName(),
-				"<init>", Type.VOID, 
-				new Type[] { Type.getType(Iterator.class) }, 
-				INVOKESPECIAL));			
-
-            instrList.append(InstructionConstants.SWAP);	
-		}            
-		
-		// while (theIter.hasNext())
-		BranchInstruction loopStart = 
-			instrFactory.createBranchInstruction(GOTO, null); 		
-		instrList.append(loopStart);		
-		InstructionHandle atStartOfLoop = 
-			instrList.append(InstructionConstants.NOP);
-
-		if (el.getStatusObject() != null)
+		Integer cacheId = cacheIds.get(el);
+		if (cacheId == null)
 		{
-            instrList.append(InstructionConstants.SWAP);
-            
-            // status.next();
-            instrList.append(InstructionConstants.DUP); // DUP status
-            instrList.append(instrFactory.createInvoke(
-                LSPForEachStatus.class.getName(),
-                "next",
-                Type.VOID,
-                Type.NO_ARGS,
-                INVOKEVIRTUAL));            
-
-			instrList.append(InstructionConstants.SWAP);
-        }            
-            
-		// Object o = theIter.next();
-		instrList.append(InstructionConstants.DUP); // DUP theIter
-		instrList.append(instrFactory.createInvoke(
-			Iterator.class.getName(),
-			"next",
-			Type.OBJECT,
-			Type.NO_ARGS,
-			INVOKEINTERFACE));
-				
-		// env.pushFrame();
-		instrList.append(instrFactory.createLoad(
-			Type.getType(Environment.class), PARAM_env));
-			
-		instrList.append(instrFactory.createInvoke(
-			Environment.class.getName(),
-			"pushFrame",
-			Type.VOID,
-			Type.NO_ARGS,
-			INVOKEVIRTUAL));		
+			cacheId = Integer.valueOf(cacheIds.size());
+			cacheIds.put(el, cacheId);
+		}
 		
-		String var = el.getVariable();
+		// String key = evalExprAsString(el.getKey());
+		compileExprAsString(el.getKey(), methodGen, instrList);
+		LocalVariableGen keySlot = methodGen.addLocalVariable(
+			"_key", Type.STRING, null, null);
+		keySlot.setStart(instrList.append(new ASTORE(keySlot.getIndex())));
 		
-		// env.bind(var, o);
+		// if (!outputCachedFragment(cacheId, key, sax)) 
+		instrList.append(instrFactory.createThis());
+		instrList.append(new PUSH(constGen, cacheId.intValue()));
+		instrList.append(new ALOAD(keySlot.getIndex()));
 		instrList.append(instrFactory.createLoad(
-			Type.getType(Environment.class), PARAM_env));
-		instrList.append(InstructionConstants.SWAP);
-		instrList.append(new PUSH(constGen, var));		
-		instrList.append(InstructionConstants.SWAP);		
+			Type.getType(ContentHandler.class), PARAM_sax));
 		instrList.append(instrFactory.createInvoke(
-			Environment.class.getName(),
-			"bind",
-			Type.OBJECT,
-			new Type[] { Type.OBJECT, Type.OBJECT },
+			LSPPageBase.class.getName(),
+			"outputCachedFragment",
+			Type.BOOLEAN,
+			new Type[] { Type.INT, Type.STRING, 
+				Type.getType(ContentHandler.class) },
 			INVOKEVIRTUAL));
-		instrList.append(InstructionConstants.POP); // discard return value
-			
-		if (el.getStatusObject() != null)
-		{
-            instrList.append(InstructionConstants.SWAP);
-            instrList.append(InstructionConstants.DUP);
+		BranchInstruction branchHit = instrFactory.createBranchInstruction(
+			IFNE, null);
+		instrList.append(branchHit);
 
-            instrList.append(instrFactory.createLoad(
-                Type.getType(Environment.class), PARAM_env));
+		// render the body to a new LSPFragment instead of sax
+		LocalVariableGen saxSlot = methodGen.addLocalVariable(
+			"_cacheSax", Type.getType(ContentHandler.class), null, null);
+		instrList.append(instrFactory.createLoad(
+			Type.getType(ContentHandler.class), PARAM_sax));
+		saxSlot.setStart(instrList.append(new ASTORE(saxSlot.getIndex())));
+		instrList.append(instrFactory.createNew(LSPFragment.class.getName()));
+		instrList.append(InstructionConstants.DUP);
+		instrList.append(instrFactory.createInvoke(
+			LSPFragment.class.getName(), "<init>", Type.VOID, 
+			Type.NO_ARGS, INVOKESPECIAL));
+		instrList.append(instrFactory.createStore(
+			Type.getType(ContentHandler.class), PARAM_sax));
 
-            instrList.append(InstructionConstants.SWAP);
-            instrList.append(new PUSH(constGen, el.getStatusObject()));		
-            instrList.append(InstructionConstants.SWAP);		
-                
-            instrList.append(instrFactory.createInvoke(
-				Environment.class.getName(),
-				"bind",
-				Type.OBJECT,
-				new Type[] { Type.OBJECT, Type.OBJECT },
-				INVOKEVIRTUAL));
-			instrList.append(InstructionConstants.POP); // discard return value
-            instrList.append(InstructionConstants.SWAP);
-		}
-		
+		boolean wasDirect = direct;
+		direct = false;
 		compileNode(el.getBody(), methodGen, instrList, split);
+		direct = wasDirect;
 		
-		// env.popFrame();
+		// storeCachedFragment(cacheId, key, (LSPFragment)sax, ttl, _cacheSax);
+		instrList.append(instrFactory.createThis());
+		instrList.append(new PUSH(constGen, cacheId.intValue()));
+		instrList.append(new ALOAD(keySlot.getIndex()));
 		instrList.append(instrFactory.createLoad(
-			Type.getType(Environment.class), PARAM_env));
+			Type.getType(ContentHandler.class), PARAM_sax));
+		instrList.append(instrFactory.createCheckCast(
+			(ReferenceType)Type.getType(LSPFragment.class)));
+		instrList.append(new PUSH(constGen, el.getTTL()));
+		instrList.append(new ALOAD(saxSlot.getIndex()));
 		instrList.append(instrFactory.createInvoke(
-			Environment.class.getName(),
-			"popFrame",
+			LSPPageBase.class.getName(),
+			"storeCachedFragment",
 			Type.VOID,
-			Type.NO_ARGS,
-			INVOKEVIRTUAL));				
+			new Type[] { Type.INT, Type.STRING, 
+				Type.getType(LSPFragment.class), Type.INT,
+				Type.getType(ContentHandler.class) },
+			INVOKEVIRTUAL));
 
-		// end while				
-		loopStart.setTarget(
-			instrList.append(InstructionConstants.DUP)); // DUP theIter
-		instrList.append(instrFactory.createInvoke(
-			Iterator.class.getName(),
-			"hasNext",
-			Type.BOOLEAN,
-			Type.NO_ARGS,
-			INVOKEINTERFACE));
-		instrList.append(instrFactory.createBranchInstruction(
-				IFNE, atStartOfLoop));
+		// sax = _cacheSax;
+		instrList.append(new ALOAD(saxSlot.getIndex()));
+		instrList.append(instrFactory.createStore(
+			Type.getType(ContentHandler.class), PARAM_sax));
 		
-		instrList.append(InstructionConstants.POP); // POP theIter
-		if (el.getStatusObject() != null)
-		{
-            instrList.append(InstructionConstants.POP); // POP status
-        }
+		InstructionHandle end = instrList.append(InstructionConstants.NOP);
+		branchHit.setTarget(end);
+		saxSlot.setEnd(end);
+		keySlot.setEnd(end);
 	}
-		
+
 
 	private void compileNode(LSPLet el,
 			MethodGen methodGen, InstructionList instrList, 
 			int split)	
 		throws SAXException
 	{
-        // env.pushFrame();
-		instrList.append(instrFactory.createLoad(
-			Type.getType(Environment.class), PARAM_env));
-		instrList.append(instrFactory.createInvoke(
-			Environment.class.getName(),
-			"pushFrame",
-			Type.VOID,
-			Type.NO_ARGS,
-			INVOKEVIRTUAL));		
-		
+		int scopeSize = slotVars.size();
+
 		for (int i = 0; i<el.getVars().length; i++)
 		{
-			// env.bind(el.getVars()[i], evalExpr(el.getValues()[i]));
-			instrList.append(instrFactory.createLoad(
-				Type.getType(Environment.class), PARAM_env));
-			instrList.append(new PUSH(constGen, el.getVars()[i])); 
+			// var = evalExpr(el.getValues()[i]);
 			compileExpr(el.getValues()[i], methodGen, instrList);
-			instrList.append(instrFactory.createInvoke(
-				Environment.class.getName(),
-				"bind",
-				Type.OBJECT,
-				new Type[] { Type.OBJECT, Type.OBJECT },
-				INVOKEVIRTUAL));
-			instrList.append(InstructionConstants.POP); // discard return value			
+			bindSlotVariable(el.getVars()[i], methodGen, instrList);
 		}
-		
+
 		compileNode(el.getBody(), methodGen, instrList, split);
-		
-		// env.popFrame();
-		instrList.append(instrFactory.createLoad(
-			Type.getType(Environment.class), PARAM_env));
-		instrList.append(instrFactory.createInvoke(
-			Environment.class.getName(),
-			"popFrame",
-			Type.VOID,
-			Type.NO_ARGS,
-			INVOKEVIRTUAL));				
+
+		unbindSlotVariables(scopeSize, instrList);
 	}
 
 
@@ -1183,35 +2014,33 @@ class LSPJVMCompiler implements Constants
 	{
 		LSPExpr expr = el.getExpr();
 
-		// Object o = evalExpr(expr);
-		Class<?> type = compileExpr(expr, methodGen, instrList);
-		
-		if (type == String.class)
+		if (expr instanceof BuiltInFunctionCall
+				&& ((BuiltInFunctionCall)expr).getName().equals("concat")
+				&& ((BuiltInFunctionCall)expr).numberOfArgs() >= 2)
 		{
-			// outputStringWithoutCR(sax, text, disableOutputEscaping);
+			compileConcatOutput((BuiltInFunctionCall)expr, 
+				el.isDisableOutputEscaping(), methodGen, instrList);
+			return;
+		}
+
+		// String text = evalExprAsString(expr);
+		compileExprAsString(expr, methodGen, instrList);
+	
+		if (direct && !el.isDisableOutputEscaping())
+		{
+			// outputStringWithoutCR(out, text);
 			instrList.append(instrFactory.createLoad(
-				Type.getType(org.xml.sax.ContentHandler.class),
-				PARAM_sax));
-			instrList.append(InstructionConstants.SWAP);
-			instrList.append(new PUSH(constGen,
-                el.isDisableOutputEscaping() ? 1 : 0));
+				Type.getType(LSPOutput.class), PARAM_out));
+			instrList.append(InstructionConstants.SWAP);		  		
 			instrList.append(instrFactory.createInvoke(
 				LSPPageBase.class.getName(),
 				"outputStringWithoutCR",
 				Type.VOID,
-				new Type[] { Type.getType(ContentHandler.class), Type.STRING, Type.BOOLEAN },
+				new Type[] { Type.getType(LSPOutput.class), Type.STRING },
 				INVOKESTATIC));		
 		}
 		else
 		{
-			// String text = convertToString(o);		
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(),
-				"convertToString",
-				Type.STRING,
-				new Type[] { Type.OBJECT },
-				INVOKESTATIC));		
-	
 			// outputStringWithoutCR(sax, text, disableOutputEscaping);
 			instrList.append(instrFactory.createLoad(
 				Type.getType(org.xml.sax.ContentHandler.class),
@@ -1256,16 +2085,7 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList)
 		throws SAXException
 	{
-		Class<?> type = compileExpr(expr, methodGen, instrList);
-		if (type != String.class)
-		{
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(),
-				"convertToString",
-				Type.STRING,
-				new Type[] { Type.OBJECT },
-				INVOKESTATIC));
-		}
+		compileSubExprAsString(expr, methodGen, instrList);
 	}
 
 
@@ -1275,26 +2095,7 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList)
 		throws SAXException
 	{
-		Class<?> type = compileExpr(expr, methodGen, instrList);
-		if (type != Double.class)
-		{
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(),
-				"convertToNumber",
-				Type.DOUBLE,
-				new Type[] { Type.OBJECT },
-				INVOKESTATIC));
-		}
-		else
-		{
-			try {
-				instrList.delete(instrList.getEnd());
-			}
-			catch (TargetLostException e)
-			{
-				throw new LSPException("Internal error in LSP compiler: " + e.getMessage());	
-			}
-		}	
+		compileSubExprAsNumberValue(expr, methodGen, instrList);
 	}
 
 	
@@ -1303,26 +2104,7 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList)
 		throws SAXException
 	{
-		Class<?> type = compileExpr(expr, methodGen, instrList);
-		if (type != Boolean.class)
-		{
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(),
-				acceptUnbound ? "convertToBooleanAcceptNull" : "convertToBoolean",
-				Type.BOOLEAN,
-				new Type[] { Type.OBJECT },
-				INVOKESTATIC));
-		}
-		else
-		{
-			try {
-				instrList.delete(instrList.getEnd());
-			}
-			catch (TargetLostException e)
-			{
-				throw new LSPException("Internal error in LSP compiler: " + e.getMessage());	
-			}
-		}
+		compileSubExprAsBooleanValue(expr, methodGen, instrList);
 	}
 
 
@@ -1434,7 +2216,21 @@ class LSPJVMCompiler implements Constants
 
 	private Class<?> compileSubExpr(VariableReference expr,
 			MethodGen methodGen, InstructionList instrList)
+		throws SAXException
 	{
+		LocalVariableGen slot = lookupSlotVariable(expr.getName());
+		if (slot != null)
+		{
+			if (statusSlots.containsKey(slot))
+				throw new LSPException("Internal error in LSP compiler: "
+					+ "status object " + expr.getName() + " not materialized");
+
+			// Object o = var;
+			instrList.append(new ALOAD(slot.getIndex()));
+
+			return Object.class;
+		}
+
 		instrList.append(instrFactory.createLoad(
 			Type.getType(Environment.class), PARAM_env));
 		// String varName = expr.getName();
@@ -1454,14 +2250,40 @@ class LSPJVMCompiler implements Constants
 	private Class<?> compileSubExpr(BinaryExpr expr,
 			MethodGen methodGen, InstructionList instrList)
 		throws SAXException
+	{
+		Class<?> type = compileBinaryExprValue(expr, methodGen, instrList);
+		if (type == Double.class)
+		{
+			instrList.append(instrFactory.createInvoke(
+				LSPPageBase.class.getName(), "doubleValueOf",
+				Type.getType(Double.class),
+				new Type[] { Type.DOUBLE },
+				INVOKESTATIC));
+		}
+		else
+		{
+			instrList.append(instrFactory.createInvoke(
+				Boolean.class.getName(), "valueOf",
+				Type.getType(Boolean.class),
+				new Type[] { Type.BOOLEAN },
+				INVOKESTATIC));
+		}
+		return type;
+	}
+
+
+	// leaves a double value for Double.class, boolean value for Boolean.class
+	private Class<?> compileBinaryExprValue(BinaryExpr expr,
+			MethodGen methodGen, InstructionList instrList)
+		throws SAXException
 	{
 		switch (expr.getOp())
 		{
 		case BinaryExpr.OR: {
 			// if (evalExprAsBoolean(expr.getLeft()))
-			//	return Boolean.TRUE;
+			//	return true;
 			// else
-			//	return Boolean.valueOf(evalExprAsBoolean(expr.getRight()));
+			//	return evalExprAsBoolean(expr.getRight());
 			compileSubExprAsBooleanValue(expr.getLeft(), methodGen, instrList);
 			BranchInstruction branch1 = instrFactory.createBranchInstruction(
 				IFEQ, null);
@@ -1473,20 +2295,14 @@ class LSPJVMCompiler implements Constants
 			branch1.setTarget(instrList.append(InstructionConstants.NOP));
 			compileSubExprAsBooleanValue(expr.getRight(), methodGen, instrList);
 			branch2.setTarget(instrList.append(InstructionConstants.NOP));
-
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));			
 			return Boolean.class;
 			} 
 
 		case BinaryExpr.AND: {
 			// if (!evalExprAsBoolean(expr.getLeft()))
-			//	return Boolean.FALSE;
+			//	return false;
 			// else
-			// 	return Boolean.valueOf(evalExprAsBoolean(expr.getRight()));
+			// 	return evalExprAsBoolean(expr.getRight());
 			compileSubExprAsBooleanValue(expr.getLeft(), methodGen, instrList);
 			BranchInstruction branch1 = instrFactory.createBranchInstruction(
 				IFNE, null);
@@ -1498,40 +2314,59 @@ class LSPJVMCompiler implements Constants
 			branch1.setTarget(instrList.append(InstructionConstants.NOP));
 			compileSubExprAsBooleanValue(expr.getRight(), methodGen, instrList);
 			branch2.setTarget(instrList.append(InstructionConstants.NOP));
-
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));			
 			return Boolean.class;
 			} 
 
 		case BinaryExpr.EQ:
 		case BinaryExpr.NE:	{
-			// Object left = evalExpr(expr.getLeft());
-			Class<?> leftType = compileSubExpr(expr.getLeft(), methodGen, instrList);
-			// Object right = evalExpr(expr.getRight());
-			Class<?> rightType = compileSubExpr(expr.getRight(), methodGen, instrList);
+			Class<?> leftType = LSPExprTypes.inferType(expr.getLeft());
+			Class<?> rightType = LSPExprTypes.inferType(expr.getRight());
 
 			if (leftType == Boolean.class && rightType == Boolean.class)
 			{
-				instrList.append(instrFactory.createInvoke(
-					Boolean.class.getName(), "equals",
-					Type.BOOLEAN,
-					new Type[] { Type.OBJECT },
-					INVOKEVIRTUAL));
+				// boolean res = !(left ^ right);
+				compileSubExprAsBooleanValue(expr.getLeft(), methodGen, instrList);
+				compileSubExprAsBooleanValue(expr.getRight(), methodGen, instrList);
+				instrList.append(InstructionConstants.IXOR);
+				instrList.append(new PUSH(constGen, 1));
+				instrList.append(InstructionConstants.IXOR);
 			}
 			else if (leftType == Double.class && rightType == Double.class)
 			{
-				instrList.append(instrFactory.createInvoke(
-					Double.class.getName(), "equals",
-					Type.BOOLEAN,
-					new Type[] { Type.OBJECT },
-					INVOKEVIRTUAL));								
+				compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
+				compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
+				if (expr.getLeft() instanceof ConditionalExpr
+						|| expr.getRight() instanceof ConditionalExpr)
+				{
+					// boolean res = left == right;
+					// conditionals are untyped at runtime and compared 
+					// with compareEqual, so NaN != NaN and -0.0 == 0.0
+					instrList.append(InstructionConstants.DCMPL);
+				}
+				else
+				{
+					// boolean res = Double.compare(left, right) == 0; 
+					// same as Double.equals, also for NaN and -0.0
+					instrList.append(instrFactory.createInvoke(
+						Double.class.getName(), "compare",
+						Type.INT,
+						new Type[] { Type.DOUBLE, Type.DOUBLE },
+						INVOKESTATIC));
+				}
+				BranchInstruction branch1 = instrFactory.createBranchInstruction(
+					IFEQ, null);
+				instrList.append(branch1);
+				instrList.append(new PUSH(constGen, 0));
+				BranchInstruction branch2 = 
+					instrFactory.createBranchInstruction(GOTO, null); 					
+				instrList.append(branch2);
+				branch1.setTarget(instrList.append(new PUSH(constGen, 1)));
+				branch2.setTarget(instrList.append(InstructionConstants.NOP));
 			}
 			else if (leftType == String.class && rightType == String.class)
 			{
+				compileSubExpr(expr.getLeft(), methodGen, instrList);
+				compileSubExpr(expr.getRight(), methodGen, instrList);
 				instrList.append(instrFactory.createInvoke(
 					String.class.getName(), "equals",
 					Type.BOOLEAN,
@@ -1540,6 +2375,10 @@ class LSPJVMCompiler implements Constants
 			}
 			else
 			{
+				// Object left = evalExpr(expr.getLeft());
+				compileSubExpr(expr.getLeft(), methodGen, instrList);
+				// Object right = evalExpr(expr.getRight());
+				compileSubExpr(expr.getRight(), methodGen, instrList);
 				instrList.append(instrFactory.createInvoke(
 					LSPPageBase.class.getName(),
 					"compareEqual",
@@ -1548,9 +2387,9 @@ class LSPJVMCompiler implements Constants
 					INVOKESTATIC));		
 			}
 			// if (expr.isOp(BinaryExpr.EQ))
-			// 	return Boolean.valueOf(res);
+			// 	return res;
 			// else
-			// 	return Boolean.valueOf(!res);
+			// 	return !res;
 			if (expr.isOp(BinaryExpr.NE))
 			{
 				BranchInstruction branch1 = instrFactory.createBranchInstruction(
@@ -1564,17 +2403,11 @@ class LSPJVMCompiler implements Constants
 					new PUSH(constGen, 0)));
 				branch2.setTarget(instrList.append(InstructionConstants.NOP));
 			}
-			
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));				
 			return Boolean.class;
 			}
 
 		case BinaryExpr.LT: {
-			// return Boolean.valueOf(evalExprAsNumber(expr.getLeft()) < evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) < evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DCMPG);
@@ -1587,17 +2420,11 @@ class LSPJVMCompiler implements Constants
 			instrList.append(branch2);
 			branch1.setTarget(instrList.append(new PUSH(constGen, 1)));
 			branch2.setTarget(instrList.append(InstructionConstants.NOP));
-			
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));
 			return Boolean.class;
 			}
 			
 		case BinaryExpr.LE: {
-			// return Boolean.valueOf(evalExprAsNumber(expr.getLeft()) <= evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) <= evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DCMPG);
@@ -1606,21 +2433,15 @@ class LSPJVMCompiler implements Constants
 			instrList.append(branch1);
 			instrList.append(new PUSH(constGen, 0));
 			BranchInstruction branch2 = 
-				instrFactory.createBranchInstruction(GOTO, null); 					
-			instrList.append(branch2);
-			branch1.setTarget(instrList.append(new PUSH(constGen, 1)));
-			branch2.setTarget(instrList.append(InstructionConstants.NOP));
-			
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));
+				instrFactory.createBranchInstruction(GOTO, null); 					
+			instrList.append(branch2);
+			branch1.setTarget(instrList.append(new PUSH(constGen, 1)));
+			branch2.setTarget(instrList.append(InstructionConstants.NOP));
 			return Boolean.class;
 			}
 			
 		case BinaryExpr.GT: {
-			// return Boolean.valueOf(evalExprAsNumber(expr.getLeft()) > evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) > evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DCMPL);
@@ -1633,17 +2454,11 @@ class LSPJVMCompiler implements Constants
 			instrList.append(branch2);
 			branch1.setTarget(instrList.append(new PUSH(constGen, 1)));
 			branch2.setTarget(instrList.append(InstructionConstants.NOP));
-			
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));
 			return Boolean.class;
 			}
 
 		case BinaryExpr.GE: {
-			// return Boolean.valueOf(evalExprAsNumber(expr.getLeft()) >= evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) >= evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DCMPL);
@@ -1656,78 +2471,42 @@ class LSPJVMCompiler implements Constants
 			instrList.append(branch2);
 			branch1.setTarget(instrList.append(new PUSH(constGen, 1)));
 			branch2.setTarget(instrList.append(InstructionConstants.NOP));
-			
-			instrList.append(instrFactory.createInvoke(
-				Boolean.class.getName(), "valueOf",
-				Type.getType(Boolean.class),
-				new Type[] { Type.BOOLEAN },
-				INVOKESTATIC));
 			return Boolean.class;
 			}
 
 		case BinaryExpr.PLUS:
-			// return new Double(evalExprAsNumber(expr.getLeft()) + evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) + evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DADD);
-			
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(), "doubleValueOf",
-				Type.getType(Double.class),
-				new Type[] { Type.DOUBLE },
-				INVOKESTATIC));								
 			return Double.class;
 
 		case BinaryExpr.MINUS:
-			// return new Double(evalExprAsNumber(expr.getLeft()) - evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) - evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DSUB);
-			
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(), "doubleValueOf",
-				Type.getType(Double.class),
-				new Type[] { Type.DOUBLE },
-				INVOKESTATIC));								
 			return Double.class;
 			
 		case BinaryExpr.TIMES:
-			// return new Double(evalExprAsNumber(expr.getLeft()) * evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) * evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DMUL);
-			
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(), "doubleValueOf",
-				Type.getType(Double.class),
-				new Type[] { Type.DOUBLE },
-				INVOKESTATIC));								
 			return Double.class;
 			
 		case BinaryExpr.DIV:
-			// return new Double(evalExprAsNumber(expr.getLeft()) / evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) / evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DDIV);
-			
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(), "doubleValueOf",
-				Type.getType(Double.class),
-				new Type[] { Type.DOUBLE },
-				INVOKESTATIC));								
 			return Double.class;
 
 		case BinaryExpr.MOD:
-			// return new Double(evalExprAsNumber(expr.getLeft()) % evalExprAsNumber(expr.getRight()));
+			// return evalExprAsNumber(expr.getLeft()) % evalExprAsNumber(expr.getRight());
 			compileSubExprAsNumberValue(expr.getLeft(), methodGen, instrList);
 			compileSubExprAsNumberValue(expr.getRight(), methodGen, instrList);
 			instrList.append(InstructionConstants.DREM);
-			
-			instrList.append(instrFactory.createInvoke(
-				LSPPageBase.class.getName(), "doubleValueOf",
-				Type.getType(Double.class),
-				new Type[] { Type.DOUBLE },
-				INVOKESTATIC));								
 			return Double.class;
 
 		default: throw new LSPException("Unrecognized binary operator: "
@@ -1739,6 +2518,22 @@ class LSPJVMCompiler implements Constants
 	private Class<?> compileSubExpr(UnaryExpr expr,
 			MethodGen methodGen, InstructionList instrList)	
 		throws SAXException
+	{
+		compileUnaryExprValue(expr, methodGen, instrList);
+
+		instrList.append(instrFactory.createInvoke(
+			LSPPageBase.class.getName(), "doubleValueOf",
+			Type.getType(Double.class),
+			new Type[] { Type.DOUBLE },
+			INVOKESTATIC));								
+		return Double.class;
+	}
+
+
+	// leaves a double value
+	private void compileUnaryExprValue(UnaryExpr expr,
+			MethodGen methodGen, InstructionList instrList)	
+		throws SAXException
 	{
 		LSPExpr left = expr.getLeft();
 		
@@ -1748,17 +2543,10 @@ class LSPJVMCompiler implements Constants
 		}
 		else
 		{
-			// return new Double(-evalExprAsNumber(left));
+			// return -evalExprAsNumber(left);
 			compileSubExprAsNumberValue(left, methodGen, instrList);
 			instrList.append(InstructionConstants.DNEG);
 		}								
-
-		instrList.append(instrFactory.createInvoke(
-			LSPPageBase.class.getName(), "doubleValueOf",
-			Type.getType(Double.class),
-			new Type[] { Type.DOUBLE },
-			INVOKESTATIC));								
-		return Double.class;
 	}
 
 
@@ -1783,26 +2571,38 @@ class LSPJVMCompiler implements Constants
 				throw new LSPException(
 					"concat() function must have at least 2 argument");
 
-			// StringBuffer sb = new StringBuffer(expr.getArg(0));
-			instrList.append(instrFactory.createNew(StringBuffer.class.getName()));
+			// literal parts plus a guess for each dynamic part
+			int capacity = 0;
+			for (int i = 0; i<expr.numberOfArgs(); i++)
+			{
+				if (expr.getArg(i) instanceof StringLiteral)
+					capacity += ((StringLiteral)expr.getArg(i)).getValue().length();
+				else
+					capacity += 16;
+			}
+			
+			// StringBuilder sb = new StringBuilder(capacity);
+			ObjectType stringBuilderType = 
+				(ObjectType)Type.getType(StringBuilder.class);
+			instrList.append(instrFactory.createNew(stringBuilderType));
 			instrList.append(InstructionConstants.DUP);
-			compileSubExprAsString(expr.getArg(0), methodGen, instrList);
+			instrList.append(new PUSH(constGen, capacity));
 			instrList.append(instrFactory.createInvoke(
-				StringBuffer.class.getName(), "<init>", Type.VOID, 
-				new Type[] { Type.STRING }, INVOKESPECIAL));
+				StringBuilder.class.getName(), "<init>", Type.VOID, 
+				new Type[] { Type.INT }, INVOKESPECIAL));
 			
-			for (int i = 1; i<expr.numberOfArgs(); i++)
+			for (int i = 0; i<expr.numberOfArgs(); i++)
 			{
 				// sb.append(evalExprAsString(expr.getArg(i)));
 				compileSubExprAsString(expr.getArg(i), methodGen, instrList);
 				instrList.append(instrFactory.createInvoke(
-					StringBuffer.class.getName(), "append", 
-					Type.STRINGBUFFER, 
+					StringBuilder.class.getName(), "append", 
+					stringBuilderType, 
 					new Type[] { Type.STRING }, INVOKEVIRTUAL));
 			}
 			// return sb.toString();
 			instrList.append(instrFactory.createInvoke(
-				StringBuffer.class.getName(), "toString", Type.STRING, 
+				StringBuilder.class.getName(), "toString", Type.STRING, 
 				Type.NO_ARGS, INVOKEVIRTUAL));
 				
 			return String.class;				
@@ -2227,19 +3027,27 @@ class LSPJVMCompiler implements Constants
             LSPExpr theVar = expr.getArg(0);
             if (theVar instanceof VariableReference)
             {
-                String varName = ((VariableReference)theVar).getName(); 
-                
-                instrList.append(instrFactory.createLoad(
-                    Type.getType(Environment.class), PARAM_env));
-                instrList.append(new PUSH(constGen, varName));
-                
-                instrList.append(instrFactory.createInvoke(
-                    Environment.class.getName(),
-                    "containsKey",
-                    Type.BOOLEAN,
-                    new Type[] { Type.OBJECT },
-                    INVOKEVIRTUAL));
-                    
+                String varName = ((VariableReference)theVar).getName();
+
+                if (lookupSlotVariable(varName) != null)
+                {
+                    // always bound in a local variable slot
+                    instrList.append(new PUSH(constGen, 1));
+                }
+                else
+                {
+                    instrList.append(instrFactory.createLoad(
+                        Type.getType(Environment.class), PARAM_env));
+                    instrList.append(new PUSH(constGen, varName));
+
+                    instrList.append(instrFactory.createInvoke(
+                        Environment.class.getName(),
+                        "containsKey",
+                        Type.BOOLEAN,
+                        new Type[] { Type.OBJECT },
+                        INVOKEVIRTUAL));
+                }
+
                 instrList.append(instrFactory.createInvoke(
                     Boolean.class.getName(), "valueOf",
                     Type.getType(Boolean.class),
@@ -2373,6 +3181,49 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList)	
 		throws SAXException
 	{
+		LocalVariableGen statusSlot = lookupStatusSlot(expr);
+		if (statusSlot != null)
+		{
+			Class<?> type = compileStatusField(expr, statusSlot, instrList);
+			if (type == Double.class)
+			{
+				instrList.append(instrFactory.createInvoke(
+					LSPPageBase.class.getName(), "doubleValueOf",
+					Type.getType(Double.class),
+					new Type[] { Type.DOUBLE },
+					INVOKESTATIC));
+				return Double.class;
+			}
+			else
+			{
+				instrList.append(instrFactory.createInvoke(
+					Boolean.class.getName(), "valueOf",
+					Type.getType(Boolean.class),
+					new Type[] { Type.BOOLEAN },
+					INVOKESTATIC));
+				// statically typed like a field of a materialized status, 
+				// so an attribute value does not become a boolean attribute 
+				return Object.class;
+			}
+		}
+		
+		if (expr.getKey() instanceof StringLiteral)
+		{
+			// return _tupleN.get(evalExpr(expr.getBase()));
+			instrList.append(instrFactory.createFieldAccess(className, 
+				getTupleField(expr), Type.getType(TupleAccessSite.class), 
+				GETSTATIC));
+			compileSubExpr(expr.getBase(), methodGen, instrList);
+			instrList.append(instrFactory.createInvoke(
+				TupleAccessSite.class.getName(),
+				acceptUnbound ? "getAcceptNull" : "get",
+				Type.OBJECT,
+				new Type[] { Type.OBJECT },
+				INVOKEVIRTUAL));		
+			
+			return Object.class;
+		}
+		
 		// Map tuple = evalExprAsTuple(expr.getBase());
 		compileSubExprAsTuple(expr.getBase(), methodGen, instrList);
 		// String key = evalSubExprAsString(expr.getKey());
@@ -2387,12 +3238,116 @@ class LSPJVMCompiler implements Constants
 
 		return Object.class;
 	}
+
+
+	/**
+	 * @return the loop counter slot if the expression reads a field of a 
+	 *         for-each status object which is not materialized, 
+	 *         <code>null</code> otherwise
+	 */
+	private LocalVariableGen lookupStatusSlot(LSPExpr expr)
+	{
+		if (!(expr instanceof TupleExpr)
+				|| !(((TupleExpr)expr).getBase() instanceof VariableReference))
+			return null;
+		
+		LocalVariableGen slot = lookupSlotVariable(
+			((VariableReference)((TupleExpr)expr).getBase()).getName());
+		return (slot != null && statusSlots.containsKey(slot)) ? slot : null;
+	}
+	
+	
+	// leaves a double value for Double.class (index), boolean value for 
+	// Boolean.class (the other fields), i is the 0-based loop counter
+	private Class<?> compileStatusField(TupleExpr expr, 
+			LocalVariableGen indexSlot, InstructionList instrList)
+	{
+		String field = ((StringLiteral)expr.getKey()).getValue();
+		LocalVariableGen sourceSlot = statusSlots.get(indexSlot);
+		
+		instrList.append(new ILOAD(indexSlot.getIndex()));
+		if (field.equals("index"))
+		{
+			// return (double)(i+1);
+			instrList.append(InstructionConstants.ICONST_1);
+			instrList.append(InstructionConstants.IADD);
+			instrList.append(InstructionConstants.I2D);
+			return Double.class;
+		}
+		else if (field.equals("first"))
+		{
+			// return i == 0;
+			BranchInstruction branch1 = instrFactory.createBranchInstruction(
+				IFNE, null);
+			instrList.append(branch1);
+			instrList.append(InstructionConstants.ICONST_1);
+			BranchInstruction branch2 = instrFactory.createBranchInstruction(
+				GOTO, null);
+			instrList.append(branch2);
+			branch1.setTarget(instrList.append(InstructionConstants.ICONST_0));
+			branch2.setTarget(instrList.append(InstructionConstants.NOP));
+		}
+		else if (field.equals("last"))
+		{
+			// return !theSource.hasElement(i+1);
+			instrList.append(InstructionConstants.ICONST_1);
+			instrList.append(InstructionConstants.IADD);
+			instrList.append(new ALOAD(sourceSlot.getIndex()));
+			instrList.append(InstructionConstants.SWAP);
+			instrList.append(instrFactory.createInvoke(
+				LSPForEachSource.class.getName(),
+				"hasElement",
+				Type.BOOLEAN,
+				new Type[] { Type.INT },
+				INVOKEVIRTUAL));
+			instrList.append(InstructionConstants.ICONST_1);
+			instrList.append(InstructionConstants.IXOR);
+		}
+		else if (field.equals("even"))
+		{
+			// return (i+1) % 2 == 0;
+			instrList.append(InstructionConstants.ICONST_1);
+			instrList.append(InstructionConstants.IAND);
+		}
+		else // odd
+		{
+			// return (i+1) % 2 != 0;
+			instrList.append(InstructionConstants.ICONST_1);
+			instrList.append(InstructionConstants.IAND);
+			instrList.append(InstructionConstants.ICONST_1);
+			instrList.append(InstructionConstants.IXOR);
+		}
+		return Boolean.class;
+	}
 	
 	
 	private Class<?> compileSubExpr(ConditionalExpr expr,
 			MethodGen methodGen, InstructionList instrList)	
 		throws SAXException
 	{
+		Class<?> type = LSPExprTypes.inferType(expr);
+		if (type == Double.class || type == Boolean.class)
+		{
+			compileConditionalExprValue(expr, type, methodGen, instrList);
+			if (type == Double.class)
+			{
+				instrList.append(instrFactory.createInvoke(
+					LSPPageBase.class.getName(), "doubleValueOf",
+					Type.getType(Double.class),
+					new Type[] { Type.DOUBLE },
+					INVOKESTATIC));
+			}
+			else
+			{
+				instrList.append(instrFactory.createInvoke(
+					Boolean.class.getName(), "valueOf",
+					Type.getType(Boolean.class),
+					new Type[] { Type.BOOLEAN },
+					INVOKESTATIC));
+			}
+			return type;
+		}
+		
 		// if (evalExprAsBoolean(expr.getTest()))
 		// 	return evalSubExpr(expr.getThen());	
 		// else
@@ -2413,7 +3368,69 @@ class LSPJVMCompiler implements Constants
 
 		branch2.setTarget(instrList.append(InstructionConstants.NOP));
 		
-		return Object.class;
+		// both branches have the same static type
+		return (type == String.class) ? String.class : Object.class;
+	}
+
+
+	// leaves a double value for Double.class, boolean value for Boolean.class
+	private void compileConditionalExprValue(ConditionalExpr expr, 
+			Class<?> type, MethodGen methodGen, InstructionList instrList)	
+		throws SAXException
+	{
+		compileSubExprAsBooleanValue(expr.getTest(), methodGen, instrList);
+		BranchInstruction branch1 = instrFactory.createBranchInstruction(
+			IFEQ, null);
+		instrList.append(branch1);
+
+		if (type == Double.class)
+			compileSubExprAsNumberValue(expr.getThen(), methodGen, instrList);
+		else
+			compileSubExprAsBooleanValue(expr.getThen(), methodGen, instrList);
+		BranchInstruction branch2 = instrFactory.createBranchInstruction(
+			GOTO, null);
+		instrList.append(branch2);
+		
+		branch1.setTarget(instrList.append(InstructionConstants.NOP));
+		
+		if (type == Double.class)
+			compileSubExprAsNumberValue(expr.getElse(), methodGen, instrList);
+		else
+			compileSubExprAsBooleanValue(expr.getElse(), methodGen, instrList);
+
+		branch2.setTarget(instrList.append(InstructionConstants.NOP));
+	}
+
+	
+	// leaves a double or boolean value without boxing, 
+	// only for expressions where LSPExprTypes.isPrimitive is true
+	private void compilePrimitiveValue(LSPExpr expr,
+			MethodGen methodGen, InstructionList instrList)	
+		throws SAXException
+	{
+		if (expr instanceof NumberLiteral)
+		{
+			instrList.append(
+				new PUSH(constGen, ((NumberLiteral)expr).getValue()));
+		}
+		else if (expr instanceof BinaryExpr)
+		{
+			compileBinaryExprValue((BinaryExpr)expr, methodGen, instrList);
+		}
+		else if (expr instanceof UnaryExpr)
+		{
+			compileUnaryExprValue((UnaryExpr)expr, methodGen, instrList);
+		}
+		else if (expr instanceof ConditionalExpr)
+		{
+			compileConditionalExprValue((ConditionalExpr)expr,
+				LSPExprTypes.inferType(expr), methodGen, instrList);
+		}
+		else
+		{
+			throw new LSPException("Internal error in LSP compiler: "
+				+ "unexpected primitive expression " + expr);
+		}
 	}
 
 	
@@ -2422,7 +3439,39 @@ class LSPJVMCompiler implements Constants
 		throws SAXException
 	{
 		Class<?> type = compileSubExpr(expr, methodGen, instrList);
-		if (type != String.class)
+		if (type == Double.class)
+		{
+			try {
+				instrList.delete(instrList.getEnd());
+			}
+			catch (TargetLostException e)
+			{
+				throw new LSPException("Internal error in LSP compiler: " + e.getMessage());	
+			}
+			instrList.append(instrFactory.createInvoke(
+				LSPPageBase.class.getName(),
+				"convertNumberToString",
+				Type.STRING,
+				new Type[] { Type.DOUBLE },
+				INVOKESTATIC));
+		}
+		else if (type == Boolean.class)
+		{
+			try {
+				instrList.delete(instrList.getEnd());
+			}
+			catch (TargetLostException e)
+			{
+				throw new LSPException("Internal error in LSP compiler: " + e.getMessage());	
+			}
+			instrList.append(instrFactory.createInvoke(
+				String.class.getName(),
+				"valueOf",
+				Type.STRING,
+				new Type[] { Type.BOOLEAN },
+				INVOKESTATIC));
+		}
+		else if (type != String.class)
 		{
 			instrList.append(instrFactory.createInvoke(
 				LSPPageBase.class.getName(),
@@ -2439,8 +3488,24 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList)	
 		throws SAXException
 	{
+		if (LSPExprTypes.isPrimitive(expr) 
+				&& LSPExprTypes.inferType(expr) == Double.class)
+		{
+			compilePrimitiveValue(expr, methodGen, instrList);
+			return;
+		}
+
 		Class<?> type = compileSubExpr(expr, methodGen, instrList);
-		if (type != Double.class)
+		if (type == String.class)
+		{
+			instrList.append(instrFactory.createInvoke(
+				LSPPageBase.class.getName(),
+				"convertStringToNumber",
+				Type.DOUBLE,
+				new Type[] { Type.STRING },				
+				INVOKESTATIC));		
+		}
+		else if (type != Double.class)
 		{			
 			instrList.append(instrFactory.createInvoke(
 				LSPPageBase.class.getName(),
@@ -2467,8 +3532,32 @@ class LSPJVMCompiler implements Constants
 			MethodGen methodGen, InstructionList instrList)	
 		throws SAXException
 	{
+		if (LSPExprTypes.isPrimitive(expr) 
+				&& LSPExprTypes.inferType(expr) == Boolean.class)
+		{
+			compilePrimitiveValue(expr, methodGen, instrList);
+			return;
+		}
+		
+		LocalVariableGen statusSlot = lookupStatusSlot(expr);
+		if (statusSlot != null && !((StringLiteral)((TupleExpr)expr).getKey())
+				.getValue().equals("index"))
+		{
+			compileStatusField((TupleExpr)expr, statusSlot, instrList);
+			return;
+		}
+
 		Class<?> type = compileSubExpr(expr, methodGen, instrList);
-		if (type != Boolean.class)
+		if (type == String.class)
+		{
+			instrList.append(instrFactory.createInvoke(
+				LSPPageBase.class.getName(),
+				"convertStringToBoolean",
+				Type.BOOLEAN,
+				new Type[] { Type.STRING },
+				INVOKESTATIC));
+		}
+		else if (type != Boolean.class)
 		{
 			instrList.append(instrFactory.createInvoke(
 				LSPPageBase.class.getName(),
@@ -59,6 +59,16 @@ public class NumberLiteral extends LSPExpr
 		this.value = t.getValue();
 	}
 
+	/**
+	 * Create a NumberLiteral from a number.
+	 *
+	 * @param d  the number
+	 */
+	public NumberLiteral(double d)
+	{
+		this.value = d;
+	}
+
 	/**
 	 * Get the number value.
 	 */
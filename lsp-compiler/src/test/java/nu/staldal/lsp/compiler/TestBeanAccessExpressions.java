@@ -13,6 +13,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -81,6 +82,27 @@ public class TestBeanAccessExpressions {
         }
     }
 
+    @Test
+    public void differentClassesAtSameSite() throws Exception {
+// when
+        final Map<String, String> map = new HashMap<String, String>();
+        map.put("property", "value");
+        final HashMap<String, Object> context = new HashMap<String, Object>();
+        context.put("beans", Arrays.asList(new GetterBean(), new FieldBean(),
+                new MethodBean(), map, new GetterBean(), new FieldBean()));
+// then
+        assertPageOutput("BeansList", context, XML_PROLOG + "valuevaluevaluevaluevaluevalue");
+    }
+
+    @Test(expected = LSPException.class)
+    public void missingPropertyNotAccepted() throws Exception {
+// when
+        final HashMap<String, Object> context = new HashMap<String, Object>();
+        context.put("beans", Arrays.asList(new GetterBean(), new Object()));
+// then
+        assertPageOutput("BeansList", context, XML_PROLOG + "value");
+    }
+
     private HashMap<String, Object> createContext(final Object bean) {
         final HashMap<String, Object> context = new HashMap<String, Object>();
         context.put("bean", bean);
@@ -91,9 +113,12 @@ public class TestBeanAccessExpressions {
 
     private void assertBeanPropertyReadable(final Map<String, Object> context)
             throws Exception {
-        final String expectedResult = XML_PROLOG + "value";
-        final String pageName = "Beans";
+        assertPageOutput("Beans", context, XML_PROLOG + "value");
+    }
 
+    private void assertPageOutput(final String pageName, final Map<String, Object> context,
+                                  final String expectedResult)
+            throws Exception {
         lspCompilerHelper.doCompile(pageName + ".lsp", true);
         final LSPPage thePage = lspHelper.getPage(pageName);
         assertNotNull(thePage);
@@ -1,9 +1,11 @@
 package nu.staldal.lsp.compiler;
 
 import nu.staldal.lsp.LSPException;
+import nu.staldal.lsp.LSPFragmentCache;
 import nu.staldal.lsp.LSPHelper;
 import nu.staldal.lsp.LSPPage;
 import nu.staldal.lsp.LspTestsUtils;
+import nu.staldal.xodus.Serializer;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -14,10 +16,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 
+import javax.xml.transform.stream.StreamResult;
+
+import org.xml.sax.helpers.XMLFilterImpl;
+
 import static org.junit.Assert.*;
 
 public class TestLSPCompilation
@@ -82,6 +90,19 @@ public class TestLSPCompilation
         }
         String result = baos.toString("UTF-8");
         assertEquals(expectedResult, result);
+
+        if (thePage.getOutputProperties().getProperty("stylesheet") == null)
+        {
+            // same page through a plain ContentHandler
+            ByteArrayOutputStream saxBaos = new ByteArrayOutputStream();
+            XMLFilterImpl sax = new XMLFilterImpl();
+            sax.setContentHandler(Serializer.createSerializer(
+                new StreamResult(saxBaos), thePage.getOutputProperties()));
+            sax.startDocument();
+            thePage.execute(sax, params, null);
+            sax.endDocument();
+            assertEquals("SAX output", expectedResult, saxBaos.toString("UTF-8"));
+        }
     }
 
     @Test(expected=nu.staldal.lsp.LSPException.class)
@@ -337,6 +358,224 @@ public class TestLSPCompilation
              params);
     }
 
+    @Test
+    public void testForEachSources() throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("doubles", new double[] { 1.5, 2, 3 });
+        params.put("ints", new int[] { 7, 8 });
+        params.put("objects", new Object[] { "x", "y" });
+        params.put("linked", new LinkedList<String>(Arrays.asList("p", "q", "r")));
+        params.put("empty", new String[0]);
+        doTest("ForEachSources",
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<a>1:3,2:4,3:6</a>\n"
+             + "<b>8;9;</b>\n"
+             + "<c>[xy]</c>\n"
+             + "<d>p-q-r</d>\n"
+             + "<e/>\n"
+             + "</root>",
+             params);
+    }
+
+    @Test
+    public void testConcat() throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("a", "x\r");
+        params.put("b", "\ny");
+        params.put("s", "foo");
+        params.put("n", 7);
+        params.put("empty", "");
+        params.put("cr", "\r");
+        params.put("lf", "\n");
+        doTest("Concat",
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<p a=\"foo-7-true\">x\ny/7/true/\n</p>\n"
+             + "<q><x\n></q>\n"
+             + "</root>",
+               params);
+    }
+
+    @Test
+    public void testCache() throws Exception
+    {
+        LSPFragmentCache cache = LSPFragmentCache.getDefault();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("items", Arrays.asList("1", "2", "1"));
+        params.put("v", "a");
+        String expected = 
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<p n=\"1\">[a]</p><p n=\"2\">[a]</p><p n=\"1\">[a]</p>\n"
+             + "<q>static a</q>\n"
+             + "</root>";
+        doTest("Cache", expected, params);
+
+        // 3 misses and 1 hit in the first run, all hits in the second
+        assertEquals(3, cache.getMisses() - misses);
+        assertEquals(5, cache.getHits() - hits);
+
+        // the body is not executed again
+        params.put("v", "b");
+        LSPPage thePage = lspHelper.getPage("Cache");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        lspHelper.executePage(thePage, params, null, baos);
+        assertEquals(expected, baos.toString("UTF-8"));
+
+        // keyed on the compiled page, not on the page instance
+        LSPPage otherInstance = thePage.getClass().newInstance();
+        baos = new ByteArrayOutputStream();
+        lspHelper.executePage(otherInstance, params, null, baos);
+        assertEquals(expected, baos.toString("UTF-8"));
+    }
+
+    @Test
+    public void testFlush() throws Exception
+    {
+        String expected = 
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<head>h</head>\n"
+             + "<body>b</body>\n"
+             + "</root>";
+        doTest("Flush", expected);
+
+        final int[] flushes = new int[1];
+        final int[] flushedSize = new int[1];
+        ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+            @Override
+            public void flush()
+            {
+                flushes[0]++;
+                flushedSize[0] = size();
+            }
+        };
+        LSPPage thePage = lspHelper.getPage("Flush");
+        lspHelper.executePage(thePage, Collections.<String,Object>emptyMap(), 
+            null, baos);
+        assertEquals(expected, baos.toString("UTF-8"));
+
+        // lsp:flush within lsp:cache has no effect
+        assertEquals(1, flushes[0]);
+        assertTrue(baos.toString("UTF-8").substring(0, flushedSize[0])
+            .endsWith("<head>h</head>"));
+    }
+
+    @Test
+    public void testStatusFields() throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("items", Arrays.asList("a", "b", "c"));
+        doTest("StatusFields",
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<p n=\"10\" first=\"true\" last=\"false\" even=\"false\" odd=\"true\">1</p>"
+             + "<p n=\"20\" first=\"false\" last=\"false\" even=\"true\" odd=\"false\">2</p>"
+             + "<p n=\"30\" first=\"false\" last=\"true\" even=\"false\" odd=\"true\">3</p>\n"
+             + "<q>1:false</q><q>2:false</q><q>3:true</q>\n"
+             + "<r>a</r><r>b</r><r>c</r>\n"
+             + "</root>",
+             params);
+    }
+
+    @Test
+    public void testAttributeTypes()
+		throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("empty", "");
+    	doTest("AttributeTypes",
+    			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+    		  + "<root>\n"
+    		  + "<input checked=\"checked\" size=\"5\" data=\"x\"/>\n"
+    		  + "</root>", params);
+    }
+
+    @Test
+    public void testArithmetic() throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("price", "12");
+        params.put("qty", Integer.valueOf(3));
+        doTest("Arithmetic",
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<p>37|-4|3</p>\n"
+             + "<q>true|false|true|true|true|false|false</q>\n"
+             + "<r>b</r>\n"
+             + "</root>",
+             params);
+    }
+
+    @Test
+    public void testConstantFolding() throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("flag", "");
+        doTest("ConstantFolding",
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "ab2true|-0.5\n"
+             + "3||<p class=\"cyz\" title=\"x\"/>\n"
+             + "</root>",
+             params);
+    }
+
+    @Test
+    public void testVariables() throws Exception
+    {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("param", "foo");
+        doTest("Variables",
+               "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+             + "<root>\n"
+             + "<p>1/1/outer-y</p><p>2/2/outer-y</p><p>3/3/outer-y</p>\n"
+             + "<q>outer/true/false/foo</q>\n"
+             + "</root>",
+             params);
+    }
+
+    @Test
+    public void testMethodSplitting() throws Exception
+    {
+        lspCompilerHelper.setMethodSizeLimit(50);
+        testVariables();
+
+        boolean split = false;
+        boolean varsPassed = false;
+        for (java.lang.reflect.Method m : 
+                lspHelper.getPage("Variables").getClass().getDeclaredMethods())
+        {
+            if (m.getName().startsWith("_executeSplit")) 
+            {
+                split = true;
+                Class<?>[] args = m.getParameterTypes();
+                // variables in local slots are passed as trailing arguments
+                if (args[args.length-1] == Object.class) varsPassed = true;
+            }
+        }
+        assertTrue("no split methods generated", split);
+        assertTrue("no variables passed to split methods", varsPassed);
+    }
+
+    @Test
+    public void testMethodSplittingLimits() throws Exception
+    {
+        // every limit, so that some group of children sums up to exactly it
+        for (int limit = 20; limit <= 400; limit++)
+        {
+            lspCompilerHelper.setMethodSizeLimit(limit);
+            lspHelper = new LSPHelper(new URLClassLoader(new URL[] { classDir.toURL() }));
+            testVariables();
+        }
+    }
+
   @Test
   public void shouldAcceptNullContextMap() throws Exception
   {
@@ -0,0 +1,6 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<p><lsp:value-of select="$price * $qty + 1"/>|<lsp:value-of select="-(2 * 3) + 10 mod 4"/>|<lsp:value-of select="if ($qty > 2) then $price div 4 else 0"/></p>
+<q><lsp:value-of select="1 &lt; 2 and 2 &lt;= 2"/>|<lsp:value-of select="$qty >= 4 or not(true())"/>|<lsp:value-of select="(1 = 1) = (2 > 1)"/>|<lsp:value-of select="0 div 0 = 0 div 0"/>|<lsp:value-of select="2 + 2 = 4"/>|<lsp:value-of select="2 + 2 != 4"/>|<lsp:value-of select="(if ($qty > 2) then 0 div 0 else 1) = 0 div 0"/></q>
+<lsp:if test="if ($qty = 3) then $price > 10 else false()"><r><lsp:value-of select="if (1 = 2) then 'a' else 'b'"/></r></lsp:if>
+</root>
@@ -0,0 +1,4 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<input checked="{1 = 1}" disabled="{1 = 2}" size="{2+3}"><lsp:attribute name="{concat('da','ta')}" value="x"/><lsp:attribute name="{$empty}" value="y"/></input>
+</root>
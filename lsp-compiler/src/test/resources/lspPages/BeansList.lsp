@@ -0,0 +1,2 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<lsp:root xmlns:lsp="http://staldal.nu/LSP/core"><lsp:for-each select="$beans" var="b"><lsp:value-of select="$b.property" /></lsp:for-each></lsp:root>
@@ -0,0 +1,5 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<lsp:for-each select="$items" var="i"><lsp:cache key="item-{$i}" ttl="60"><p n="{$i}">[<lsp:value-of select="$v"/>]</p></lsp:cache></lsp:for-each>
+<lsp:cache><q>static <lsp:value-of select="$v"/></q></lsp:cache>
+</root>
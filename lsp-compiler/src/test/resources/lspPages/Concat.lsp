@@ -0,0 +1,5 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<p a="{$s}-{$n}-{$n = 7}"><lsp:value-of select="concat($a, $b, '/', $n, '/', $n = 7, '/', $empty, $cr, $empty, $lf)"/></p>
+<q><lsp:value-of select="concat('&lt;', $a, '&gt;')" disable-output-escaping="yes"/></q>
+</root>
@@ -0,0 +1,5 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<lsp:if test="'feature' = 'disabled'"><x>never</x></lsp:if><lsp:if test="2 * 3 = 6">a</lsp:if><lsp:value-of select="concat('b', 1 + 1, true())"/>|<lsp:value-of select="if (string-length('abc') > 2) then -(1 div 2) else 'no'"/>
+<lsp:choose><lsp:when test="false()">1</lsp:when><lsp:when test="$flag">2</lsp:when><lsp:when test="not(0)">3</lsp:when><lsp:otherwise>4</lsp:otherwise></lsp:choose>|<lsp:choose><lsp:when test="1 > 2">5</lsp:when></lsp:choose>|<p class="{concat('c', substring('xyz', 2))}" title="x{$flag}"/>
+</root>
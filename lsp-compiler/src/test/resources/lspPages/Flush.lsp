@@ -0,0 +1,5 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<head>h</head><lsp:flush/>
+<body><lsp:cache key="flush"><lsp:flush/>b</lsp:cache></body>
+</root>
@@ -0,0 +1,8 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<a><lsp:for-each select="$doubles" var="d" status="s"><lsp:value-of select="$s.index"/>:<lsp:value-of select="$d * 2"/><lsp:if test="not($s.last)">,</lsp:if></lsp:for-each></a>
+<b><lsp:for-each select="$ints" var="i"><lsp:value-of select="$i + 1"/>;</lsp:for-each></b>
+<c><lsp:for-each select="$objects" var="o" status="s"><lsp:if test="$s.first">[</lsp:if><lsp:value-of select="$o"/><lsp:if test="$s.last">]</lsp:if></lsp:for-each></c>
+<d><lsp:for-each select="$linked" var="o" status="s"><lsp:value-of select="$o"/><lsp:if test="not($s.last)">-</lsp:if></lsp:for-each></d>
+<e><lsp:for-each select="$empty" var="o">x</lsp:for-each></e>
+</root>
@@ -0,0 +1,6 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<lsp:for-each select="$items" var="i" status="s"><p n="{$s.index * 10}" first="{$s.first}" last="{$s.last}" even="{$s.even}" odd="{$s.odd}"><lsp:value-of select="$s.index"/></p></lsp:for-each>
+<lsp:let k="'index'"><lsp:for-each select="$items" var="i" status="s"><q><lsp:value-of select="$s[$k]"/>:<lsp:value-of select="$s.last"/></q></lsp:for-each></lsp:let>
+<lsp:for-each select="$items" var="i" status="s"><lsp:for-each select="$items" var="j" status="t"><lsp:if test="$s.index = $t.index"><r><lsp:value-of select="$i"/></r></lsp:if></lsp:for-each></lsp:for-each>
+</root>
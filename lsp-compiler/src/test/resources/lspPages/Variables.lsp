@@ -0,0 +1,7 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<root xmlns:lsp="http://staldal.nu/LSP/core">
+<lsp:let x="'outer'" y="concat($x,'-y')">
+<lsp:for-each select="seq(1,3)" var="x" status="s"><p><lsp:value-of select="$x"/>/<lsp:value-of select="$s.index"/>/<lsp:value-of select="$y"/></p></lsp:for-each>
+<q><lsp:value-of select="$x"/>/<lsp:value-of select="isset($x)"/>/<lsp:value-of select="isset($s)"/>/<lsp:value-of select="$param"/></q>
+</lsp:let>
+</root>
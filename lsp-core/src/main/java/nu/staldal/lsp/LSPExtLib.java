@@ -50,7 +50,9 @@ import org.xml.sax.*;
  * namespace URI. This allows the same class to be used for several
  * namespaces.
  * <p>An LSPExtLib may be reused, but will not be executed concurrently 
- * by several threads. 
+ * by several threads. Each LSP page keeps a pool of instances, so init 
+ * is only invoked when the pool needs to grow. Implement 
+ * {@link StatelessLSPExtLib} to share one instance between all threads.
  * <p>For each LSP page to process, the startPage method will be invoked 
  * first. Then for each extension element on the LSP page:
  * <ol>
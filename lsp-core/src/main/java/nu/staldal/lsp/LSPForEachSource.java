@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp;
+
+import java.util.*;
+
+
+/**
+ * The sequence iterated by a for-each loop in a compiled LSP page.
+ *<p>
+ * The loop keeps its own counter and asks for the elements by position, 
+ * in order and each one once. Lists with random access and arrays are 
+ * read directly by index, without allocating an Iterator or a wrapper
+ * Collection. Any other value is converted to a list and iterated.
+ *<p>
+ * This class is not part of the public API, it should only be used by compiled 
+ * LSP pages. It is declared public since compiled LSP pages needs to access it.  
+ */
+public abstract class LSPForEachSource
+{
+	/**
+	 * @param index  0-based position
+	 *
+	 * @return <code>true</code> if there is an element at the given position
+	 */
+	public abstract boolean hasElement(int index);
+	
+	/**
+	 * Get the element at the given position. Must only be invoked
+	 * after {@link #hasElement(int)} returned <code>true</code> for 
+	 * the same position.
+	 *
+	 * @param index  0-based position
+	 */
+	public abstract Object element(int index);
+
+	
+	/**
+	 * Create the source for a for-each loop over the given value.
+	 *
+	 * @param value  the value of the <code>select</code> expression
+	 */
+	public static LSPForEachSource forValue(Object value) throws LSPException
+	{
+		if (value instanceof List && value instanceof RandomAccess)
+			return new ListSource((List<?>)value);
+		else if (value instanceof Object[])
+			return new ObjectArraySource((Object[])value);
+		else if (value instanceof double[])
+			return new DoubleArraySource((double[])value);
+		else if (value instanceof int[])
+			return new IntArraySource((int[])value);
+		else if (value instanceof long[])
+			return new LongArraySource((long[])value);
+		else if (value instanceof float[])
+			return new FloatArraySource((float[])value);
+		else if (value instanceof short[])
+			return new ShortArraySource((short[])value);
+		else if (value instanceof boolean[])
+			return new BooleanArraySource((boolean[])value);
+		
+		Collection<?> coll = LSPPageBase.convertToList(value);
+		if (coll instanceof List && coll instanceof RandomAccess)
+			return new ListSource((List<?>)coll);
+		else
+			return new IteratorSource(coll.iterator());
+	}
+	
+	
+	private static final class IteratorSource extends LSPForEachSource
+	{
+		private final Iterator<?> it;
+		
+		IteratorSource(Iterator<?> it)
+		{
+			this.it = it;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return it.hasNext();
+		}
+		
+		public Object element(int index)
+		{
+			return it.next();
+		}
+	}
+
+	private static final class ListSource extends LSPForEachSource
+	{
+		private final List<?> list;
+		private final int size;
+		
+		ListSource(List<?> list)
+		{
+			this.list = list;
+			this.size = list.size();
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < size;
+		}
+		
+		public Object element(int index)
+		{
+			return list.get(index);
+		}
+	}
+
+	private static final class ObjectArraySource extends LSPForEachSource
+	{
+		private final Object[] arr;
+		
+		ObjectArraySource(Object[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return arr[index];
+		}
+	}
+
+	private static final class DoubleArraySource extends LSPForEachSource
+	{
+		private final double[] arr;
+		
+		DoubleArraySource(double[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return Double.valueOf(arr[index]);
+		}
+	}
+
+	private static final class IntArraySource extends LSPForEachSource
+	{
+		private final int[] arr;
+		
+		IntArraySource(int[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return Integer.valueOf(arr[index]);
+		}
+	}
+
+	private static final class LongArraySource extends LSPForEachSource
+	{
+		private final long[] arr;
+		
+		LongArraySource(long[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return Long.valueOf(arr[index]);
+		}
+	}
+
+	private static final class FloatArraySource extends LSPForEachSource
+	{
+		private final float[] arr;
+		
+		FloatArraySource(float[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return Float.valueOf(arr[index]);
+		}
+	}
+
+	private static final class ShortArraySource extends LSPForEachSource
+	{
+		private final short[] arr;
+		
+		ShortArraySource(short[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return Short.valueOf(arr[index]);
+		}
+	}
+
+	private static final class BooleanArraySource extends LSPForEachSource
+	{
+		private final boolean[] arr;
+		
+		BooleanArraySource(boolean[] arr)
+		{
+			this.arr = arr;
+		}
+		
+		public boolean hasElement(int index)
+		{
+			return index < arr.length;
+		}
+		
+		public Object element(int index)
+		{
+			return Boolean.valueOf(arr[index]);
+		}
+	}
+}
@@ -52,22 +52,22 @@ import java.util.*;
  */
 public class LSPForEachStatus implements Map<String,Object>
 {
-    private Iterator<?> theIterator;
+    private LSPForEachSource theSource;
     private int index;
 
     /**
      * Create an LSPForEachStatus.
      * 
-     * @param theIterator   the Iterator to watch
+     * @param theSource   the for-each source to watch
      */
-    public LSPForEachStatus(Iterator<?> theIterator)
+    public LSPForEachStatus(LSPForEachSource theSource)
     {
-        this.theIterator = theIterator;
+        this.theSource = theSource;
         this.index = 0;
     }
     
     /**
-     * Should be invoked when the iterator is advanced.
+     * Should be invoked when the loop is advanced.
      */
     public void next()
     {
@@ -81,7 +81,7 @@ public class LSPForEachStatus implements Map<String,Object>
         else if (key.equals("first"))
             return Boolean.valueOf(index == 1);
         else if (key.equals("last"))
-            return Boolean.valueOf(!theIterator.hasNext());
+            return Boolean.valueOf(!theSource.hasElement(index));
         else if (key.equals("even"))
             return Boolean.valueOf(index % 2 == 0);
         else if (key.equals("odd"))
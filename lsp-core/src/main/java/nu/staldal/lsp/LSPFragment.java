@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+import nu.staldal.xodus.StaticText;
+import nu.staldal.xodus.StaticTextHandler;
+
+
+/**
+ * Output of an <code>lsp:cache</code> element, recorded as SAX events 
+ * so that it can be replayed to any {@link ContentHandler}. 
+ *<p>
+ * Static text is recorded as {@link StaticText}, and replayed through
+ * {@link StaticTextHandler} when possible. Document events and locators
+ * are ignored.
+ *<p>
+ * Not thread safe while recording, immutable and thread safe once 
+ * recorded. 
+ *<p>
+ * This class is not part of the public API, it should only be used by compiled 
+ * LSP pages. It is declared public since compiled LSP pages needs to access it.  
+ */
+public final class LSPFragment implements ContentHandler, StaticTextHandler
+{
+	private static final int START_ELEMENT = 0;
+	private static final int END_ELEMENT = 1;
+	private static final int CHARACTERS = 2;
+	private static final int IGNORABLE_WHITESPACE = 3;
+	private static final int STATIC_TEXT = 4;
+	private static final int PROCESSING_INSTRUCTION = 5;
+	private static final int START_PREFIX_MAPPING = 6;
+	private static final int END_PREFIX_MAPPING = 7;
+	private static final int SKIPPED_ENTITY = 8;
+	
+	/**
+	 * Estimated overhead of one event, in characters. 
+	 */
+	private static final int EVENT_SIZE = 8;
+
+	/**
+	 * Each event is its code, as an Integer, followed by its arguments.
+	 */
+	private Object[] events = new Object[32];
+	private int length = 0;
+	private long size = 0;
+	
+	
+	public LSPFragment()
+	{
+	}
+	
+	
+	/**
+	 * @return the estimated memory use, in characters
+	 */
+	public long size()
+	{
+		return size;
+	}
+	
+	
+	/**
+	 * Output the recorded events.
+	 */
+	public void replay(ContentHandler sax)
+		throws SAXException
+	{
+		Object[] ev = events;
+		int i = 0;
+		while (i < length)
+		{
+			switch (((Integer)ev[i++]).intValue())
+			{
+			case START_ELEMENT:
+				sax.startElement((String)ev[i], (String)ev[i+1], 
+					(String)ev[i+2], (Attributes)ev[i+3]);
+				i += 4;
+				break;
+			case END_ELEMENT:
+				sax.endElement((String)ev[i], (String)ev[i+1], (String)ev[i+2]);
+				i += 3;
+				break;
+			case CHARACTERS:
+				{
+					char[] ch = (char[])ev[i++];
+					sax.characters(ch, 0, ch.length);
+				}
+				break;
+			case IGNORABLE_WHITESPACE:
+				{
+					char[] ch = (char[])ev[i++];
+					sax.ignorableWhitespace(ch, 0, ch.length);
+				}
+				break;
+			case STATIC_TEXT:
+				LSPPageBase.outputStaticText(sax, (StaticText)ev[i++]);
+				break;
+			case PROCESSING_INSTRUCTION:
+				sax.processingInstruction((String)ev[i], (String)ev[i+1]);
+				i += 2;
+				break;
+			case START_PREFIX_MAPPING:
+				sax.startPrefixMapping((String)ev[i], (String)ev[i+1]);
+				i += 2;
+				break;
+			case END_PREFIX_MAPPING:
+				sax.endPrefixMapping((String)ev[i++]);
+				break;
+			case SKIPPED_ENTITY:
+				sax.skippedEntity((String)ev[i++]);
+				break;
+			default:
+				throw new IllegalStateException("Corrupt LSPFragment");
+			}
+		}
+	}
+
+
+	private void add(int code, int argSize, Object a)
+	{
+		ensureCapacity(2);
+		events[length++] = Integer.valueOf(code);
+		events[length++] = a;
+		size += EVENT_SIZE + argSize;
+	}
+
+	private void add(int code, int argSize, Object a, Object b)
+	{
+		ensureCapacity(3);
+		events[length++] = Integer.valueOf(code);
+		events[length++] = a;
+		events[length++] = b;
+		size += EVENT_SIZE + argSize;
+	}
+
+	private void ensureCapacity(int n)
+	{
+		if (length + n > events.length)
+		{
+			Object[] newEvents = new Object[Math.max(events.length*2, length+n)];
+			System.arraycopy(events, 0, newEvents, 0, length);
+			events = newEvents;
+		}
+	}
+	
+	private static int len(String s)
+	{
+		return (s == null) ? 0 : s.length();
+	}
+	
+	
+	public void startElement(String namespaceURI, String localName,
+			String qName, Attributes atts)
+	{
+		ensureCapacity(5);
+		events[length++] = Integer.valueOf(START_ELEMENT);
+		events[length++] = namespaceURI;
+		events[length++] = localName;
+		events[length++] = qName;
+		// the caller may reuse its Attributes
+		events[length++] = new AttributesImpl(atts);
+		
+		int argSize = len(qName);
+		for (int i = 0; i < atts.getLength(); i++)
+		{
+			argSize += EVENT_SIZE + len(atts.getQName(i)) 
+				+ len(atts.getValue(i));
+		}
+		size += EVENT_SIZE + argSize;
+	}
+
+	public void endElement(String namespaceURI, String localName, String qName)
+	{
+		ensureCapacity(4);
+		events[length++] = Integer.valueOf(END_ELEMENT);
+		events[length++] = namespaceURI;
+		events[length++] = localName;
+		events[length++] = qName;
+		size += EVENT_SIZE;
+	}
+
+	public void characters(char[] ch, int start, int len)
+	{
+		char[] copy = new char[len];
+		System.arraycopy(ch, start, copy, 0, len);
+		add(CHARACTERS, len, copy);
+	}
+
+	public void ignorableWhitespace(char[] ch, int start, int len)
+	{
+		char[] copy = new char[len];
+		System.arraycopy(ch, start, copy, 0, len);
+		add(IGNORABLE_WHITESPACE, len, copy);
+	}
+
+	public void staticText(StaticText text)
+	{
+		// shared with the page, not counted
+		add(STATIC_TEXT, 0, text);
+	}
+
+	public void processingInstruction(String target, String data)
+	{
+		add(PROCESSING_INSTRUCTION, len(target) + len(data), target, data);
+	}
+
+	public void startPrefixMapping(String prefix, String uri)
+	{
+		add(START_PREFIX_MAPPING, 0, prefix, uri);
+	}
+
+	public void endPrefixMapping(String prefix)
+	{
+		add(END_PREFIX_MAPPING, 0, prefix);
+	}
+
+	public void skippedEntity(String name)
+	{
+		add(SKIPPED_ENTITY, 0, name);
+	}
+
+	public void setDocumentLocator(Locator locator)
+	{
+		// ignore
+	}
+
+	public void startDocument()
+	{
+		// ignore
+	}
+
+	public void endDocument()
+	{
+		// ignore
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of {@link LSPFragment}s rendered by <code>lsp:cache</code> elements.
+ *<p>
+ * Bounded by the total estimated size of the fragments, see 
+ * {@link LSPFragment#size}. When the bound is exceeded, the least recently 
+ * used fragments are evicted. Fragments may also have a time to live. 
+ *<p>
+ * Lookups do not lock, only eviction is serialized.
+ */
+public final class LSPFragmentCache
+{
+	/**
+	 * Default maximum size, in characters.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 4*1024*1024;
+	
+	private static final LSPFragmentCache defaultCache = 
+		new LSPFragmentCache(DEFAULT_MAX_SIZE);
+
+	
+	private static final class Entry
+	{
+		final LSPFragment fragment;
+		final long size;
+		final long expires;
+		volatile long lastAccess;
+		
+		Entry(LSPFragment fragment, long expires)
+		{
+			this.fragment = fragment;
+			this.size = fragment.size();
+			this.expires = expires;
+			this.lastAccess = System.nanoTime();
+		}
+	}
+	
+	private final ConcurrentMap<Object,Entry> entries = 
+		new ConcurrentHashMap<Object,Entry>();
+	private final Object evictionLock = new Object();
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile long maxSize;
+	
+	
+	/**
+	 * @param maxSize  maximum total size, in characters
+	 */
+	public LSPFragmentCache(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+	
+	
+	/**
+	 * The cache used by compiled LSP pages.
+	 */
+	public static LSPFragmentCache getDefault()
+	{
+		return defaultCache;
+	}
+
+	
+	/**
+	 * @return the fragment, or <code>null</code> if not found or expired 
+	 */
+	public LSPFragment get(Object key)
+	{
+		Entry e = entries.get(key);
+		if (e == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		if (e.expires != 0 && System.currentTimeMillis() >= e.expires)
+		{
+			remove(key, e);
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		e.lastAccess = System.nanoTime();
+		hits.incrementAndGet();
+		return e.fragment;
+	}
+	
+	
+	/**
+	 * Store a fragment, replacing any previous fragment with the same key.
+	 * A fragment larger than the maximum size is not stored.
+	 * 
+	 * @param ttl  time to live in milliseconds, or 0 for no limit
+	 */
+	public void put(Object key, LSPFragment fragment, long ttl)
+	{
+		if (fragment.size() > maxSize)
+			return;
+		
+		Entry e = new Entry(fragment, 
+			(ttl > 0) ? System.currentTimeMillis() + ttl : 0);
+		Entry old = entries.put(key, e);
+		size.addAndGet((old == null) ? e.size : e.size - old.size);
+		
+		if (size.get() > maxSize)
+			evict();
+	}
+
+	
+	private void remove(Object key, Entry e)
+	{
+		if (entries.remove(key, e))
+		{
+			size.addAndGet(-e.size);
+			evictions.incrementAndGet();
+		}
+	}
+	
+	
+	private void evict()
+	{
+		synchronized (evictionLock)
+		{
+			if (size.get() <= maxSize)
+				return;
+
+			// snapshot the access times, they may change while sorting
+			List<Candidate> lru = new ArrayList<Candidate>(entries.size());
+			for (Map.Entry<Object,Entry> ent : entries.entrySet())
+			{
+				lru.add(new Candidate(ent.getKey(), ent.getValue()));
+			}
+			Collections.sort(lru);
+			
+			for (Candidate c : lru)
+			{
+				if (size.get() <= maxSize)
+					break;
+				remove(c.key, c.entry);
+			}
+		}
+	}
+
+	
+	private static final class Candidate implements Comparable<Candidate>
+	{
+		final Object key;
+		final Entry entry;
+		final long lastAccess;
+		
+		Candidate(Object key, Entry entry)
+		{
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+		
+		public int compareTo(Candidate o)
+		{
+			return (lastAccess < o.lastAccess) ? -1 
+				: ((lastAccess == o.lastAccess) ? 0 : 1);
+		}
+	}
+	
+	
+	/**
+	 * Remove all fragments. The counters are not reset.
+	 */
+	public void clear()
+	{
+		for (Map.Entry<Object,Entry> ent : entries.entrySet())
+		{
+			if (entries.remove(ent.getKey(), ent.getValue()))
+				size.addAndGet(-ent.getValue().size);
+		}
+	}
+
+	
+	/**
+	 * @param maxSize  maximum total size, in characters
+	 */
+	public void setMaxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+		if (size.get() > maxSize)
+			evict();
+	}
+
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return the total estimated size of the stored fragments, in characters
+	 */
+	public long getSize()
+	{
+		return size.get();
+	}
+
+	/**
+	 * @return the number of stored fragments
+	 */
+	public int getCount()
+	{
+		return entries.size();
+	}
+	
+	/**
+	 * @return the number of lookups which found a fragment
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups which did not find a fragment
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of fragments removed since they expired 
+	 *         or to make room for others
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+}
@@ -42,6 +42,7 @@ package nu.staldal.lsp;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.xml.sax.*;
 
@@ -81,6 +82,8 @@ public class LSPHelper
     private String xhtmlEncoding = "UTF-8";
     private String xmlEncoding = "UTF-8";
     private String textEncoding = "iso-8859-1";	
+    
+    private int outputBufferSize = 0;
 	
     
 	/**
@@ -93,8 +96,8 @@ public class LSPHelper
 	{
         this.classLoader = classLoader;
 
-		this.lspPages = new HashMap<String,LSPPage>();
-		this.stylesheets = new HashMap<String,Templates>();
+		this.lspPages = new ConcurrentHashMap<String,LSPPage>();
+		this.stylesheets = new ConcurrentHashMap<String,Templates>();
 
 		TransformerFactory tf = TransformerFactory.newInstance();
         if (!(tf.getFeature(SAXTransformerFactory.FEATURE)
@@ -230,6 +233,22 @@ public class LSPHelper
     }
 
 
+    /**
+     * Set the number of characters to buffer before encoding output, 
+     * see {@link nu.staldal.xodus.XMLCharacterEncoder}. Only applies 
+     * to pages loaded after this call.
+     *<p>
+     * Default is 0, which means the default size of 1024. Encode buffers
+     * of the default size are pooled and reused across executions.
+     *  
+     * @param outputBufferSize number of characters to buffer
+     */
+    public void setOutputBufferSize(int outputBufferSize)
+    {
+        this.outputBufferSize = outputBufferSize;    
+    }
+
+
 	/**
 	 * Get an compiled XSLT stylesheet.
      *<p>
@@ -242,14 +261,22 @@ public class LSPHelper
      *
      * @throws TransformerConfigurationException  if the stylesheet cannot be compiled
 	 */
-	public synchronized Templates getStylesheet(String stylesheetName)
+	public Templates getStylesheet(String stylesheetName)
         throws TransformerConfigurationException
 	{
 		Templates compiledStylesheet = stylesheets.get(stylesheetName);
 		
 		if (compiledStylesheet == null)
 		{
-			compiledStylesheet = loadStylesheet(stylesheetName);
+			// only lock when loading, so cached lookups never block
+			synchronized (stylesheets)
+			{
+				compiledStylesheet = stylesheets.get(stylesheetName);
+				if (compiledStylesheet == null)
+				{
+					compiledStylesheet = loadStylesheet(stylesheetName);
+				}
+			}
 		}
 		
 		return compiledStylesheet;
@@ -290,16 +317,24 @@ public class LSPHelper
      * @throws IllegalAccessException  if the LSP page cannot be loaded
      * @throws VerifyError  if the LSP page is damaged 
 	 */
-	public synchronized LSPPage getPage(String pageName)
+	public LSPPage getPage(String pageName)
         throws InstantiationException, IllegalAccessException, VerifyError 
 	{
 		LSPPage page = lspPages.get(pageName);
 		
 		if (page == null)
 		{
-			page = loadPage(pageName);
-			if (page != null) {
-			    lspPages.put(pageName, page);
+			// only lock when loading, so cached lookups never block
+			synchronized (lspPages)
+			{
+				page = lspPages.get(pageName);
+				if (page == null)
+				{
+					page = loadPage(pageName);
+					if (page != null) {
+					    lspPages.put(pageName, page);
+					}
+				}
 			}
 		}
 		
@@ -455,6 +490,37 @@ public class LSPHelper
     public void executePage(LSPPage thePage, Map<String,Object> lspParams, Object extContext,
                             StreamResult out)
         throws FileNotFoundException, SAXException, IOException
+    {
+        ContentHandler sax = createOutputHandler(thePage, extContext, out);
+                    
+        sax.startDocument();
+        thePage.execute(sax, lspParams, extContext);
+        sax.endDocument();
+    }
+
+    
+    /**
+     * Create the {@link org.xml.sax.ContentHandler} which 
+     * {@link #executePage(LSPPage,Map,Object,StreamResult)} executes 
+     * an LSP page to, for callers who need to control the execution. 
+     * Uses any stylesheet specified in the LSP page.
+     *<p>
+     * The caller must invoke <code>startDocument()</code> and 
+     * <code>endDocument()</code> on the returned handler.
+     *
+     * @param thePage     the LSP page
+     * @param extContext  external context which will be passed to ExtLibs
+     * @param out         the {@link javax.xml.transform.stream.StreamResult}
+     *
+     * @return the {@link org.xml.sax.ContentHandler} to execute the page to
+     *
+     * @throws FileNotFoundException  if the stylesheet cannot be found
+     * @throws SAXException  if the stylesheet cannot be compiled
+     * @throws IOException   if the output cannot be opened
+     */ 
+    public ContentHandler createOutputHandler(LSPPage thePage, Object extContext,
+                            StreamResult out)
+        throws FileNotFoundException, SAXException, IOException
     {
         ContentHandler sax;                     
         try {
@@ -469,6 +535,7 @@ public class LSPHelper
                     throw new FileNotFoundException(stylesheetName);
                 
                 outputProperties = compiledStylesheet.getOutputProperties();
+                fixBufferSize(outputProperties);
 
                 th = tfactory.newTransformerHandler(
                     compiledStylesheet);
@@ -492,10 +559,8 @@ public class LSPHelper
         {
             throw new SAXException(e.getMessage());
         }
-                    
-        sax.startDocument();
-        thePage.execute(sax, lspParams, extContext);
-        sax.endDocument();
+        
+        return sax;
     }
 
     
@@ -566,11 +631,44 @@ public class LSPHelper
     public void executePage(LSPPage thePage, Map<String,Object> lspParams, Object extContext,
                             Templates compiledStylesheet, StreamResult out)
         throws SAXException, IOException
+    {
+        ContentHandler sax = createOutputHandler(thePage, extContext, 
+                compiledStylesheet, out);
+                    
+        sax.startDocument();
+        thePage.execute(sax, lspParams, extContext);
+        sax.endDocument();
+    }
+
+    
+    /**
+     * Create the {@link org.xml.sax.ContentHandler} which 
+     * {@link #executePage(LSPPage,Map,Object,Templates,StreamResult)} 
+     * executes an LSP page to, for callers who need to control the 
+     * execution.
+     *<p>
+     * The caller must invoke <code>startDocument()</code> and 
+     * <code>endDocument()</code> on the returned handler.
+     *
+     * @param thePage             the LSP page
+     * @param extContext          external context which will be passed to ExtLibs
+     * @param compiledStylesheet  the compiled XSLT stylesheet
+     * @param out                 the {@link javax.xml.transform.stream.StreamResult}
+     *
+     * @return the {@link org.xml.sax.ContentHandler} to execute the page to
+     *
+     * @throws SAXException  if the transformer cannot be created
+     * @throws IOException   if the output cannot be opened
+     */ 
+    public ContentHandler createOutputHandler(LSPPage thePage, Object extContext,
+                            Templates compiledStylesheet, StreamResult out)
+        throws SAXException, IOException
     {
         ContentHandler sax;                     
         try {
             Properties outputProperties = 
                 compiledStylesheet.getOutputProperties();
+            fixBufferSize(outputProperties);
                 
             Serializer ser = Serializer.createSerializer(
                 out, outputProperties);
@@ -590,10 +688,8 @@ public class LSPHelper
         {
             throw new SAXException(e.getMessage());
         }
-                    
-        sax.startDocument();
-        thePage.execute(sax, lspParams, extContext);
-        sax.endDocument();
+        
+        return sax;
     }
 
     
@@ -729,6 +825,19 @@ public class LSPHelper
 			if (!outputProperties.containsKey(OutputKeys.ENCODING)) 
                 outputProperties.setProperty(OutputKeys.ENCODING, textEncoding); 
         }
+        
+        fixBufferSize(outputProperties);
+    }
+    
+    
+    private void fixBufferSize(Properties outputProperties)
+    {
+        if (outputBufferSize > 0 
+                && !outputProperties.containsKey(OutputConfig.BUFFER_SIZE))
+        {
+            outputProperties.setProperty(OutputConfig.BUFFER_SIZE, 
+                Integer.toString(outputBufferSize));
+        }
     }
 	    
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp;
+
+import org.xml.sax.SAXException;
+
+import nu.staldal.xodus.StaticTextHandler;
+
+
+/**
+ * Direct output from compiled LSP pages, bypassing 
+ * {@link org.xml.sax.ContentHandler} and {@link org.xml.sax.Attributes}.
+ * Implemented by {@link nu.staldal.xodus.Serializer}.
+ *<p>
+ * A start tag is written with {@link #startTag} followed by zero or more 
+ * {@link #attribute} calls. Namespace declarations are done with
+ * {@link org.xml.sax.ContentHandler#startPrefixMapping}, not as attributes.
+ */
+public interface LSPOutput extends StaticTextHandler
+{
+    /**
+     * Start an element, like {@link org.xml.sax.ContentHandler#startElement}
+     * with no attributes and no qName.
+     *
+     * @param namespaceURI  the namespace URI, or the empty string
+     * @param localName     the local name
+     */
+    public void startTag(String namespaceURI, String localName)
+        throws SAXException;
+
+    /**
+     * Add an attribute to the element just started with {@link #startTag}.
+     *
+     * @param namespaceURI  the namespace URI, or the empty string
+     * @param localName     the local name
+     * @param value         the value
+     */
+    public void attribute(String namespaceURI, String localName, String value)
+        throws SAXException;
+
+    /**
+     * End an element, like {@link org.xml.sax.ContentHandler#endElement}
+     * with no qName.
+     *
+     * @param namespaceURI  the namespace URI, or the empty string
+     * @param localName     the local name
+     */
+    public void endTag(String namespaceURI, String localName)
+        throws SAXException;
+
+    /**
+     * Character data, like {@link org.xml.sax.ContentHandler#characters}.
+     *
+     * @param cs  the text
+     */
+    public void text(CharSequence cs)
+        throws SAXException;
+}
@@ -64,7 +64,7 @@ public interface LSPPage
      * Will only be bumped with incompatibility is introduced (not necessary 
      * with each release).
      */
-    public static final int LSP_VERSION_NUM = 170;
+    public static final int LSP_VERSION_NUM = 190;
     
 
     /**
@@ -42,12 +42,16 @@ package nu.staldal.lsp;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.transform.Result;
 import org.xml.sax.*;
 import org.xml.sax.helpers.AttributesImpl;
 
 import nu.staldal.util.*;
+import nu.staldal.xodus.Serializer;
+import nu.staldal.xodus.StaticText;
+import nu.staldal.xodus.StaticTextHandler;
 
 import nu.staldal.lsp.wrapper.*;
 
@@ -72,6 +76,18 @@ public abstract class LSPPageBase implements LSPPage
 	protected final int compiledVersionNum;
     protected final Properties outputProperties;
     
+    /**
+     * Idle sets of extension library instances, keyed on class name.
+     */
+    private final Queue<Map<String,LSPExtLib>> extLibsPool = 
+        new ConcurrentLinkedQueue<Map<String,LSPExtLib>>();
+
+    /**
+     * Shared {@link StatelessLSPExtLib} instances, keyed on class name.
+     */
+    private final ConcurrentMap<String,LSPExtLib> statelessExtLibs = 
+        new ConcurrentHashMap<String,LSPExtLib>();
+    
 	
 	protected LSPPageBase(String[] extLibsURLs, String[] extLibsClassNames,
 		String[] compileDependentFiles, boolean compileDynamic, 
@@ -139,20 +155,25 @@ public abstract class LSPPageBase implements LSPPage
         
         Environment<String,Object> env = new Environment<String,Object>(params);
 
-		Map<String,LSPExtLib> extLibs = new HashMap<String,LSPExtLib>();
+		Map<String,LSPExtLib> extLibs = extLibsPool.poll();
+		if (extLibs == null)
+		{
+			extLibs = createExtLibs();
+		}
 		
 		for (int i = 0; i < extLibsURLs.length; i++)
 		{
-			String nsURI = extLibsURLs[i];
-			String className = extLibsClassNames[i];
+			LSPExtLib extLib = extLibs.get(extLibsClassNames[i]);			
 			
-			LSPExtLib extLib = lookupExtensionHandler(extLibs, nsURI, className);			
-			
-			extLib.startPage(extContext, pageName);
+			if (!(extLib instanceof StatelessLSPExtLib))
+				extLib.startPage(extContext, pageName);
 		}
 
 		try {
-			_execute(sax, env, extLibs, sax, new AttributesImpl());
+			if (sax instanceof LSPOutput)
+				_executeDirect(sax, env, extLibs, sax, new AttributesImpl(), (LSPOutput)sax);
+			else
+				_execute(sax, env, extLibs, sax, new AttributesImpl());
 		}
 		catch (IllegalArgumentException e)
 		{
@@ -161,13 +182,46 @@ public abstract class LSPPageBase implements LSPPage
 		
 		for (int i = 0; i < extLibsURLs.length; i++)
 		{
-			// String nsURI = extLibsURLs[i];
+			LSPExtLib extLib = extLibs.get(extLibsClassNames[i]);			
+			
+			if (!(extLib instanceof StatelessLSPExtLib))
+				extLib.endPage();
+		}
+		
+		// only reuse after a successful page, an exception may leave 
+		// the instances in an inconsistent state
+		extLibsPool.offer(extLibs);
+	}
+	
+	
+	private Map<String,LSPExtLib> createExtLibs()
+		throws SAXException
+	{
+		Map<String,LSPExtLib> extLibs = new HashMap<String,LSPExtLib>();
+
+		for (int i = 0; i < extLibsURLs.length; i++)
+		{
+			String nsURI = extLibsURLs[i];
 			String className = extLibsClassNames[i];
 			
-			LSPExtLib extLib = extLibs.get(className);			
+			LSPExtLib extLib = statelessExtLibs.get(className);
+			if (extLib != null)
+			{
+				extLibs.put(className, extLib);
+				continue;
+			}
 			
-			extLib.endPage();
+			extLib = lookupExtensionHandler(extLibs, nsURI, className);
+			if (extLib instanceof StatelessLSPExtLib)
+			{
+				LSPExtLib shared = 
+					statelessExtLibs.putIfAbsent(className, extLib);
+				if (shared != null) 
+					extLibs.put(className, shared);
+			}
 		}
+		
+		return extLibs;
 	}
 
 
@@ -208,214 +262,48 @@ public abstract class LSPPageBase implements LSPPage
 	}
 
 
-    protected static Object convertObjectToLSP(Object value)
-    {        
-        if (value instanceof String)
-        {
-            return value;
-        }
-        else if (value instanceof CharSequence)
-        {
-            // TODO handle CharSequence directly?
-            return value.toString();
-        }
-        else if (value instanceof Boolean)
-        {
-            return value;
-        }
-        else if (value instanceof Number)
-        {
-            return value;
-        }
-        else if (value instanceof Collection)
-        {
-            return value;
-        }
-        else if (value instanceof Map)
-        {
-            return value;
-        }
-        else if (value instanceof int[])
-        {
-            return new IntArrayCollection((int[])value);
-        }
-        else if (value instanceof short[])
-        {
-            return new ShortArrayCollection((short[])value);
-        }
-        else if (value instanceof long[])
-        {
-            return new LongArrayCollection((long[])value);
-        }
-        else if (value instanceof float[])
-        {
-            return new FloatArrayCollection((float[])value);
-        }
-        else if (value instanceof double[])
-        {
-            return new DoubleArrayCollection((double[])value);
-        }
-        else if (value instanceof boolean[])
-        {
-            return new BooleanArrayCollection((boolean[])value);
-        }
-        else if (value instanceof char[])
-        {
-            return new String((char[])value);
-        }
-        else if (value instanceof byte[])
-        {
-            try {
-                return new String((byte[])value, "ISO-8859-1");
-            }
-            catch (UnsupportedEncodingException e)
-            {
-                throw new Error("JVM doesn't support ISO-8859-1 encoding"); 
-            }
-        }
-        else if (value instanceof Object[])
-        {
-            Object[] arr = (Object[])value;
-            if (arr.length == 0)
-                return Collections.EMPTY_LIST;
-            else
-                return Arrays.asList(arr);
-        }
-        else if (value instanceof ResourceBundle)
-        {
-            return new ResourceBundleTuple((ResourceBundle)value);
-        }        
-        else if (value instanceof java.sql.ResultSet)
-        {
-            return new LSPResultSetTupleList((java.sql.ResultSet)value);    
-        }
-        else if (value instanceof Enum)
-        {
-            return value.toString();    
-        }
-        else
-        {
-            return value;
-        }
-    }
-        
-    
-	protected static String convertToString(Object _value) throws LSPException
+	// conversions and string functions are implemented in LSPValues, 
+	// shared with the compiler
+	
+	protected static Object convertObjectToLSP(Object value)
 	{
-        Object value = convertObjectToLSP(_value);
-        
-        if (value instanceof String)
-        {
-            return (String)value;
-        }
-        else if (value == Void.TYPE)
-        {
-            return "";
-        }
-		else if (value instanceof Number)
-		{
-			double d = ((Number)value).doubleValue();
-			if (d == 0)
-				return "0";
-			else if (d == Math.rint(d))
-				return Long.toString(Math.round(d));
-			else
-				return value.toString();
-		}
-		else if (value instanceof Boolean)
-		{
-			return value.toString();
-		}
-        else if (value == null)
-        {
-            throw new LSPException(
-                "Convert to string not implemented for null");
-        }
-		else
-		{
-			throw new LSPException(
-				"Convert to string not implemented for type "
-				+ value.getClass().getName());
-		}
+		return LSPValues.convertObjectToLSP(value);
 	}
 
 	
-	protected static double convertToNumber(Object _value) throws LSPException
+	protected static String convertToString(Object value) throws LSPException
 	{
-        Object value = convertObjectToLSP(_value);        
-		
-        if (value instanceof Number)
-		{
-			return ((Number)value).doubleValue();
-		}
-        else if (value == Void.TYPE)
-        {
-            return 0.0d;
-        }
-        else if (value instanceof String)
-        {
-            try {
-                return Double.valueOf((String)value).doubleValue();
-            }
-            catch (NumberFormatException e)
-            {
-                return Double.NaN;
-            }
-        }
-		else if (value instanceof Boolean)
-		{
-			return ((Boolean)value).booleanValue() ? 1.0d : 0.0d;
-		}
-        else if (value == null)
-        {
-            throw new LSPException(
-                "Convert to number not implemented for null");
-        }
-        else
-        {
-            throw new LSPException(
-                "Convert to number not implemented for type "
-                + value.getClass().getName());
-        }
+		return LSPValues.convertToString(value);
 	}
 
+	
+	protected static String convertNumberToString(double d)
+	{
+		return LSPValues.convertNumberToString(d);
+	}
 
-	protected static boolean convertToBoolean(Object _value) throws LSPException
+	
+	protected static double convertStringToNumber(String value)
 	{
-        Object value = convertObjectToLSP(_value);
-        
-		if (value instanceof Boolean)
-		{
-			return ((Boolean)value).booleanValue();
-		}
-        else if (value == Void.TYPE)
-        {
-            return false;
-        }
-		else if (value instanceof Number)
-		{
-			double d = ((Number)value).doubleValue();
-			return !((d == 0) || Double.isNaN(d));
-		}
-        else if (value instanceof String)            
-        {
-            return ((String)value).length() > 0;
-        }
-        else if (value instanceof Collection)
-        {
-            return !(((Collection<?>)value).isEmpty());
-        }
-        else if (value == null)
-        {
-            throw new LSPException(
-                "Convert to boolean not implemented for null");
-        }
-        else
-        {
-            throw new LSPException(
-                "Convert to boolean not implemented for type "
-                + value.getClass().getName());
-        }
+		return LSPValues.convertStringToNumber(value);
+	}
+
+	
+	protected static boolean convertStringToBoolean(String value)
+	{
+		return LSPValues.convertStringToBoolean(value);
+	}
+
+	
+	protected static double convertToNumber(Object value) throws LSPException
+	{
+		return LSPValues.convertToNumber(value);
+	}
+
+
+	protected static boolean convertToBoolean(Object value) throws LSPException
+	{
+		return LSPValues.convertToBoolean(value);
 	}
 
 
@@ -516,30 +404,129 @@ public abstract class LSPPageBase implements LSPPage
 	}
 
 
-	protected static void outputStringWithoutCR(ContentHandler sax, String s,
-            boolean disableOutputEscaping)
+	protected static void outputStaticText(ContentHandler sax, StaticText text)
 		throws SAXException
 	{
-		char[] cb = new char[s.length()];
-		
-		int ci = 0;
-		for (int si = 0; si<s.length(); si++)
+		if (sax instanceof StaticTextHandler)
 		{
-			char sc = s.charAt(si);
-			if (sc == '\r')
+			((StaticTextHandler)sax).staticText(text);
+		}
+		else
+		{
+			char[] chars = text.getChars();
+			sax.characters(chars, 0, chars.length);
+		}
+	}
+
+
+	/**
+	 * Send the output so far to the client, if <var>sax</var> can do that.
+	 */
+	protected static void flush(ContentHandler sax)
+		throws SAXException
+	{
+		if (sax instanceof Flushable)
+		{
+			try {
+				((Flushable)sax).flush();
+			}
+			catch (IOException e)
 			{
-				if ((si+1)<s.length() && (s.charAt(si+1) == '\n'))
-                {
-					// convert CR+LF to LF - skip this CR
-                }
+				throw new SAXException(e);
+			}
+		}
+	}
+
+
+	protected static void outputStringWithoutCR(LSPOutput out, String s)
+		throws SAXException
+	{
+		int cr = s.indexOf('\r');
+		if (cr < 0)
+		{
+			out.text(s);
+		}
+		else if (out instanceof Serializer)
+		{
+			outputSegmentsWithoutCR((Serializer)out, s, cr);
+		}
+		else
+		{
+			StringBuilder sb = new StringBuilder(s.length());
+			for (int si = 0; si<s.length(); si++)
+			{
+				char sc = s.charAt(si);
+				if (sc == '\r')
+				{
+					if ((si+1)<s.length() && (s.charAt(si+1) == '\n'))
+					{
+						// convert CR+LF to LF - skip this CR
+					}
+					else
+					{				
+						sb.append('\n'); // convert alone CR to LF
+					}
+				}
 				else
-                {				
-                    cb[ci++] = '\n'; // convert alone CR to LF
-                }
+				{
+					sb.append(sc);
+				}
 			}
+			out.text(sb);
+		}
+	}
+
+
+	protected static void outputStringWithoutCR(ContentHandler sax, String s,
+            boolean disableOutputEscaping)
+		throws SAXException
+	{
+		if (sax instanceof Serializer)
+		{
+			// no copying, the String is written as is or in segments
+			Serializer ser = (Serializer)sax;
+			if (disableOutputEscaping)
+				ser.processingInstruction(Result.PI_DISABLE_OUTPUT_ESCAPING, "");
+			int cr = s.indexOf('\r');
+			if (cr < 0)
+				ser.characters(s);
 			else
+				outputSegmentsWithoutCR(ser, s, cr);
+			if (disableOutputEscaping)
+				ser.processingInstruction(Result.PI_ENABLE_OUTPUT_ESCAPING, "");
+			return;
+		}
+		
+		char[] cb;
+		int ci;
+		if (s.indexOf('\r') < 0)
+		{
+			cb = s.toCharArray();
+			ci = cb.length;
+		}
+		else
+		{
+			cb = new char[s.length()];
+			
+			ci = 0;
+			for (int si = 0; si<s.length(); si++)
 			{
-				cb[ci++] = sc;
+				char sc = s.charAt(si);
+				if (sc == '\r')
+				{
+					if ((si+1)<s.length() && (s.charAt(si+1) == '\n'))
+	                {
+						// convert CR+LF to LF - skip this CR
+	                }
+					else
+	                {				
+	                    cb[ci++] = '\n'; // convert alone CR to LF
+	                }
+				}
+				else
+				{
+					cb[ci++] = sc;
+				}
 			}
 		}
         if (disableOutputEscaping)
@@ -550,6 +537,90 @@ public abstract class LSPPageBase implements LSPPage
 	}
 	
 	
+	/**
+	 * Output one part of a concatenation, CR is handled as if all parts 
+	 * were output as one String.
+	 * 
+	 * @param afterCR  <code>true</code> if the output so far ends with CR
+	 * 
+	 * @return <code>true</code> if the output so far ends with CR 
+	 */
+	protected static boolean outputPartWithoutCR(LSPOutput out, String s, 
+			boolean afterCR)
+		throws SAXException
+	{
+		if (s.length() == 0)
+			return afterCR;
+		
+		if (afterCR && s.charAt(0) == '\n')
+		{
+			// the CR is already output as LF
+			outputStringWithoutCR(out, s.substring(1));
+		}
+		else
+		{
+			outputStringWithoutCR(out, s);
+		}
+		return s.charAt(s.length()-1) == '\r'; 
+	}
+
+	
+	/**
+	 * Output one part of a concatenation, CR is handled as if all parts 
+	 * were output as one String.
+	 * 
+	 * @param afterCR  <code>true</code> if the output so far ends with CR
+	 * 
+	 * @return <code>true</code> if the output so far ends with CR 
+	 */
+	protected static boolean outputPartWithoutCR(ContentHandler sax, String s,
+			boolean disableOutputEscaping, boolean afterCR)
+		throws SAXException
+	{
+		if (s.length() == 0)
+			return afterCR;
+		
+		if (afterCR && s.charAt(0) == '\n')
+		{
+			// the CR is already output as LF
+			outputStringWithoutCR(sax, s.substring(1), disableOutputEscaping);
+		}
+		else
+		{
+			outputStringWithoutCR(sax, s, disableOutputEscaping);
+		}
+		return s.charAt(s.length()-1) == '\r'; 
+	}
+	
+	
+	/**
+	 * Output the parts of s between CRs, CR+LF becomes LF 
+	 * and alone CR becomes LF. 
+	 * 
+	 * @param cr  index of the first CR in s
+	 */
+	private static void outputSegmentsWithoutCR(Serializer ser, String s, int cr)
+		throws SAXException
+	{
+		int start = 0;
+		while (cr >= 0)
+		{
+			if (cr > start)
+				ser.characters(s, start, cr);
+			if (!((cr+1)<s.length() && (s.charAt(cr+1) == '\n')))
+			{
+				ser.characters("\n"); // convert alone CR to LF
+			}
+			// else convert CR+LF to LF - skip this CR
+			
+			start = cr+1;
+			cr = s.indexOf('\r', start);
+		}
+		if (start < s.length())
+			ser.characters(s, start, s.length());
+	}
+	
+	
 	protected static Double doubleValueOf(double d)
 	{
 		return new Double(d);	
@@ -623,136 +694,57 @@ public abstract class LSPPageBase implements LSPPage
 	}
 				
 
-	protected static boolean compareEqual(Object left, Object right)
-		throws LSPException
-	{		
-		if ((left instanceof Boolean) || (right instanceof Boolean))
-		{
-			return convertToBoolean(left) == convertToBoolean(right);
-		}
-		else if ((left instanceof Number) || (right instanceof Number))
-		{
-		 	return convertToNumber(left) == convertToNumber(right);
-		}
-		else
-		{
-		 	return convertToString(left).equals(convertToString(right));
-		}
+	protected static boolean compareEqual(Object left, Object right) throws LSPException
+	{
+		return LSPValues.compareEqual(left, right);
 	}
 	
 		
 	protected static boolean fnContains(String a, String b)
 	{
-		return a.indexOf(b) > -1;
+		return LSPValues.fnContains(a, b);
 	}
 		
 		
 	protected static String fnSubstringBefore(String a, String b)
 	{
-		int index = a.indexOf(b);
-
-		if (index < 0)
-			return "";
-		else
-			return a.substring(0, index);		
+		return LSPValues.fnSubstringBefore(a, b);
 	}
 		
 
 	protected static String fnSubstringAfter(String a, String b)
 	{
-		int index = a.indexOf(b);
-
-		if (index < 0)
-			return "";
-		else
-			return a.substring(index+1);
+		return LSPValues.fnSubstringAfter(a, b);
 	}
 	
 
-	protected static String fnSubstring(String a, double bd)
+	protected static String fnSubstring(String a, double b)
 	{
-		if (Double.isNaN(bd)) return "";
-				
-		int b = (int)Math.round(bd);
-		int c = a.length()+1;
-
-		if (b > a.length()) b = a.length();
-		if (c < 1) return "";
-		if (c > (a.length()-b+1)) c = a.length()-b+1;
-
-		return a.substring((b-1 < 0) ? 0 : (b-1), b-1+c);
+		return LSPValues.fnSubstring(a, b);
 	}
 
 
-	protected static String fnSubstring(String a, double bd, double cd)
+	protected static String fnSubstring(String a, double b, double c)
 	{
-		if (Double.isNaN(bd) || Double.isNaN(cd)) return "";
-
-		int b = (int)Math.round(bd);
-		int c = (int)Math.round(cd);
-
-		if (b > a.length()) b = a.length();
-		if (c < 1) return "";
-		if (c > (a.length()-b+1)) c = a.length()-b+1;
-
-		return a.substring((b-1 < 0) ? 0 : (b-1), b-1+c);
+		return LSPValues.fnSubstring(a, b, c);
 	}
 
 
 	protected static String fnNormalizeSpace(String a)
 	{
-		String x = a.trim();
-
-		StringBuffer sb = new StringBuffer(x.length());
-		boolean inSpace = false;
-		for (int i = 0; i<x.length(); i++)
-		{
-			char c = x.charAt(i);
-			if (c > ' ')
-			{
-				inSpace = false;
-				sb.append(c);
-			}
-			else
-			{
-				if (!inSpace)
-				{
-					sb.append(' ');
-					inSpace = true;
-				}
-			}
-		}
-		return sb.toString();
+		return LSPValues.fnNormalizeSpace(a);
 	}
 
 	
 	protected static String fnTranslate(String a, String b, String c)
-	{	
-		StringBuffer sb = new StringBuffer(a.length());
-		for (int i = 0; i<a.length(); i++)
-		{
-			char ch = a.charAt(i);
-			int index = b.indexOf(ch);
-			if (index < 0)
-            {			
-                sb.append(ch);
-            }
-			else if (index >= c.length())
-            {
-                // ignore char in b but not in c
-            }
-			else
-            {
-				sb.append(c.charAt(index));
-            }
-		}
-		return sb.toString();
+	{
+		return LSPValues.fnTranslate(a, b, c);
 	}
 	
 	
 	protected static double fnRound(double a)
-	{	
-		return Math.floor(a + 0.5d);
+	{
+		return LSPValues.fnRound(a);
 	}
 	
 
@@ -765,9 +757,98 @@ public abstract class LSPPageBase implements LSPPage
 		return vec;
 	}
 
+
+	/**
+	 * Key of a fragment in the {@link LSPFragmentCache}, unique for each 
+	 * <code>lsp:cache</code> element in each compiled page. Does not 
+	 * refer to the page instance, so a reloaded page and its 
+	 * {@link java.lang.ClassLoader} are not kept by the cache.
+	 */
+	private static final class FragmentKey
+	{
+		private final String pageClass;
+		private final long timeCompiled;
+		private final int cacheId;
+		private final String key;
+		
+		FragmentKey(LSPPageBase page, int cacheId, String key)
+		{
+			this.pageClass = page.getClass().getName();
+			this.timeCompiled = page.timeCompiled;
+			this.cacheId = cacheId;
+			this.key = key;
+		}
+		
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof FragmentKey)) return false;
+			FragmentKey other = (FragmentKey)o;
+			return timeCompiled == other.timeCompiled 
+				&& cacheId == other.cacheId 
+				&& pageClass.equals(other.pageClass)
+				&& key.equals(other.key);
+		}
+		
+		public int hashCode()
+		{
+			return ((pageClass.hashCode()*31 
+				+ (int)(timeCompiled ^ (timeCompiled >>> 32)))*31 + cacheId)*31 
+				+ key.hashCode();
+		}
+	}
+	
+	
+	/**
+	 * Output a fragment from the {@link LSPFragmentCache}.
+	 * 
+	 * @return <code>true</code> if found, <code>false</code> if it has to 
+	 *         be rendered
+	 */
+	protected final boolean outputCachedFragment(int cacheId, String key, 
+			ContentHandler sax)
+		throws SAXException
+	{
+		LSPFragment fragment = LSPFragmentCache.getDefault().get(
+			new FragmentKey(this, cacheId, key));
+		if (fragment == null)
+			return false;
+		
+		fragment.replay(sax);
+		return true;
+	}
+	
+
+	/**
+	 * Store a rendered fragment in the {@link LSPFragmentCache}, 
+	 * and output it.
+	 * 
+	 * @param ttl  time to live in seconds, or 0 for no limit
+	 */
+	protected final void storeCachedFragment(int cacheId, String key, 
+			LSPFragment fragment, int ttl, ContentHandler sax)
+		throws SAXException
+	{
+		LSPFragmentCache.getDefault().put(
+			new FragmentKey(this, cacheId, key), fragment, ttl*1000L);
+		
+		fragment.replay(sax);
+	}
+
 		
 	protected abstract void _execute(
 			ContentHandler sax, Environment<String,Object> env,
 			Map<String,LSPExtLib> extLibs, ContentHandler _sax, AttributesImpl attrs)
 		throws SAXException, IllegalArgumentException;	
+
+	
+	/**
+	 * Like {@link #_execute}, but elements and static text are written 
+	 * directly to <code>out</code>, which must be the same object as 
+	 * <code>sax</code>.
+	 */
+	protected abstract void _executeDirect(
+			ContentHandler sax, Environment<String,Object> env,
+			Map<String,LSPExtLib> extLibs, ContentHandler _sax, AttributesImpl attrs,
+			LSPOutput out)
+		throws SAXException, IllegalArgumentException;	
 }
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2003-2005, Mikael Ståldal
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * Note: This is known as "the modified BSD license". It's an approved
+ * Open Source and Free Software license, see
+ * http://www.opensource.org/licenses/
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+import nu.staldal.util.*;
+
+import nu.staldal.lsp.wrapper.*;
+
+
+/**
+ * Conversion of values between types, and the built-in string functions,
+ * as done by compiled LSP pages. Also used by the LSP compiler to evaluate
+ * constant expressions. All methods in this class are static.
+ */
+public final class LSPValues
+{
+    /**
+     * Private default constructor to prevent instantiation.
+     */
+    private LSPValues() 
+    {
+        // never invoked
+    }
+
+
+    // how convertObjectToLSP handles values of a class
+    private static final int KIND_AS_IS = 0;
+    private static final int KIND_CHAR_SEQUENCE = 1;
+    private static final int KIND_INT_ARRAY = 2;
+    private static final int KIND_SHORT_ARRAY = 3;
+    private static final int KIND_LONG_ARRAY = 4;
+    private static final int KIND_FLOAT_ARRAY = 5;
+    private static final int KIND_DOUBLE_ARRAY = 6;
+    private static final int KIND_BOOLEAN_ARRAY = 7;
+    private static final int KIND_CHAR_ARRAY = 8;
+    private static final int KIND_BYTE_ARRAY = 9;
+    private static final int KIND_OBJECT_ARRAY = 10;
+    private static final int KIND_RESOURCE_BUNDLE = 11;
+    private static final int KIND_RESULT_SET = 12;
+    private static final int KIND_ENUM = 13;
+
+    // runtime class -> KIND_*, computed once per class; 
+    // weak keys so that classes and their class loaders can be unloaded
+    private static final Map<Class<?>,Integer> valueKinds = 
+        Collections.synchronizedMap(new WeakHashMap<Class<?>,Integer>());
+    
+    private static int classifyValue(Class<?> c)
+    {
+        // same order as the original instanceof chain, 
+        // a class may match more than one
+        if (c == String.class)
+            return KIND_AS_IS;
+        else if (CharSequence.class.isAssignableFrom(c))
+            return KIND_CHAR_SEQUENCE;
+        else if (Boolean.class.isAssignableFrom(c)
+                || Number.class.isAssignableFrom(c)
+                || Collection.class.isAssignableFrom(c)
+                || Map.class.isAssignableFrom(c))
+            return KIND_AS_IS;
+        else if (c == int[].class)
+            return KIND_INT_ARRAY;
+        else if (c == short[].class)
+            return KIND_SHORT_ARRAY;
+        else if (c == long[].class)
+            return KIND_LONG_ARRAY;
+        else if (c == float[].class)
+            return KIND_FLOAT_ARRAY;
+        else if (c == double[].class)
+            return KIND_DOUBLE_ARRAY;
+        else if (c == boolean[].class)
+            return KIND_BOOLEAN_ARRAY;
+        else if (c == char[].class)
+            return KIND_CHAR_ARRAY;
+        else if (c == byte[].class)
+            return KIND_BYTE_ARRAY;
+        else if (Object[].class.isAssignableFrom(c))
+            return KIND_OBJECT_ARRAY;
+        else if (ResourceBundle.class.isAssignableFrom(c))
+            return KIND_RESOURCE_BUNDLE;
+        else if (java.sql.ResultSet.class.isAssignableFrom(c))
+            return KIND_RESULT_SET;
+        else if (Enum.class.isAssignableFrom(c))
+            return KIND_ENUM;
+        else
+            return KIND_AS_IS;
+    }
+    
+    private static int valueKind(Class<?> c)
+    {
+        Integer kind = valueKinds.get(c);
+        if (kind == null)
+        {
+            kind = Integer.valueOf(classifyValue(c));
+            valueKinds.put(c, kind);
+        }
+        return kind.intValue();
+    }
+
+
+    public static Object convertObjectToLSP(Object value)
+    {        
+        if (value == null)
+            return null;
+
+        Class<?> c = value.getClass(); 
+        if (c == String.class || c == Double.class || c == Boolean.class)
+            return value;
+        
+        switch (valueKind(c))
+        {
+        case KIND_CHAR_SEQUENCE:
+            // TODO handle CharSequence directly?
+            return value.toString();
+
+        case KIND_INT_ARRAY:
+            return new IntArrayCollection((int[])value);
+
+        case KIND_SHORT_ARRAY:
+            return new ShortArrayCollection((short[])value);
+
+        case KIND_LONG_ARRAY:
+            return new LongArrayCollection((long[])value);
+
+        case KIND_FLOAT_ARRAY:
+            return new FloatArrayCollection((float[])value);
+
+        case KIND_DOUBLE_ARRAY:
+            return new DoubleArrayCollection((double[])value);
+
+        case KIND_BOOLEAN_ARRAY:
+            return new BooleanArrayCollection((boolean[])value);
+
+        case KIND_CHAR_ARRAY:
+            return new String((char[])value);
+
+        case KIND_BYTE_ARRAY:
+            try {
+                return new String((byte[])value, "ISO-8859-1");
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new Error("JVM doesn't support ISO-8859-1 encoding"); 
+            }
+
+        case KIND_OBJECT_ARRAY:
+            Object[] arr = (Object[])value;
+            if (arr.length == 0)
+                return Collections.EMPTY_LIST;
+            else
+                return Arrays.asList(arr);
+
+        case KIND_RESOURCE_BUNDLE:
+            return new ResourceBundleTuple((ResourceBundle)value);
+
+        case KIND_RESULT_SET:
+            return new LSPResultSetTupleList((java.sql.ResultSet)value);    
+
+        case KIND_ENUM:
+            return value.toString();    
+
+        default:
+            return value;
+        }
+    }
+
+
+	public static String convertToString(Object _value) throws LSPException
+	{
+        Object value = convertObjectToLSP(_value);
+        
+        if (value instanceof String)
+        {
+            return (String)value;
+        }
+        else if (value == Void.TYPE)
+        {
+            return "";
+        }
+		else if (value instanceof Number)
+		{
+			double d = ((Number)value).doubleValue();
+			if (d == 0)
+				return "0";
+			else if (d == Math.rint(d))
+				return Long.toString(Math.round(d));
+			else
+				return value.toString();
+		}
+		else if (value instanceof Boolean)
+		{
+			return value.toString();
+		}
+        else if (value == null)
+        {
+            throw new LSPException(
+                "Convert to string not implemented for null");
+        }
+		else
+		{
+			throw new LSPException(
+				"Convert to string not implemented for type "
+				+ value.getClass().getName());
+		}
+	}
+
+
+	/**
+	 * Convert a number to string without boxing it, 
+	 * same result as {@link #convertToString(Object)} for a Double.
+	 */
+	public static String convertNumberToString(double d)
+	{
+		if (d == 0)
+			return "0";
+		else if (d == Math.rint(d))
+			return Long.toString(Math.round(d));
+		else
+			return Double.toString(d);
+	}
+
+
+	/**
+	 * Convert a String to number, 
+	 * same result as {@link #convertToNumber(Object)}.
+	 */
+	public static double convertStringToNumber(String value)
+	{
+		try {
+			return Double.valueOf(value).doubleValue();
+		}
+		catch (NumberFormatException e)
+		{
+			return Double.NaN;
+		}
+	}
+
+
+	/**
+	 * Convert a String to boolean, 
+	 * same result as {@link #convertToBoolean(Object)}.
+	 */
+	public static boolean convertStringToBoolean(String value)
+	{
+		return value.length() > 0;
+	}
+
+
+	public static double convertToNumber(Object _value) throws LSPException
+	{
+        Object value = convertObjectToLSP(_value);        
+		
+        if (value instanceof Number)
+		{
+			return ((Number)value).doubleValue();
+		}
+        else if (value == Void.TYPE)
+        {
+            return 0.0d;
+        }
+        else if (value instanceof String)
+        {
+            return convertStringToNumber((String)value);
+        }
+		else if (value instanceof Boolean)
+		{
+			return ((Boolean)value).booleanValue() ? 1.0d : 0.0d;
+		}
+        else if (value == null)
+        {
+            throw new LSPException(
+                "Convert to number not implemented for null");
+        }
+        else
+        {
+            throw new LSPException(
+                "Convert to number not implemented for type "
+                + value.getClass().getName());
+        }
+	}
+
+
+	public static boolean convertToBoolean(Object _value) throws LSPException
+	{
+        Object value = convertObjectToLSP(_value);
+        
+		if (value instanceof Boolean)
+		{
+			return ((Boolean)value).booleanValue();
+		}
+        else if (value == Void.TYPE)
+        {
+            return false;
+        }
+		else if (value instanceof Number)
+		{
+			double d = ((Number)value).doubleValue();
+			return !((d == 0) || Double.isNaN(d));
+		}
+        else if (value instanceof String)            
+        {
+            return ((String)value).length() > 0;
+        }
+        else if (value instanceof Collection)
+        {
+            return !(((Collection<?>)value).isEmpty());
+        }
+        else if (value == null)
+        {
+            throw new LSPException(
+                "Convert to boolean not implemented for null");
+        }
+        else
+        {
+            throw new LSPException(
+                "Convert to boolean not implemented for type "
+                + value.getClass().getName());
+        }
+	}
+
+
+	public static boolean compareEqual(Object left, Object right)
+		throws LSPException
+	{		
+		if ((left instanceof Boolean) || (right instanceof Boolean))
+		{
+			return convertToBoolean(left) == convertToBoolean(right);
+		}
+		else if ((left instanceof Number) || (right instanceof Number))
+		{
+		 	return convertToNumber(left) == convertToNumber(right);
+		}
+		else
+		{
+		 	return convertToString(left).equals(convertToString(right));
+		}
+	}
+
+
+	public static boolean fnContains(String a, String b)
+	{
+		return a.indexOf(b) > -1;
+	}
+
+
+	public static String fnSubstringBefore(String a, String b)
+	{
+		int index = a.indexOf(b);
+
+		if (index < 0)
+			return "";
+		else
+			return a.substring(0, index);		
+	}
+
+
+	public static String fnSubstringAfter(String a, String b)
+	{
+		int index = a.indexOf(b);
+
+		if (index < 0)
+			return "";
+		else
+			return a.substring(index+1);
+	}
+
+
+	public static String fnSubstring(String a, double bd)
+	{
+		if (Double.isNaN(bd)) return "";
+				
+		int b = (int)Math.round(bd);
+		int c = a.length()+1;
+
+		if (b > a.length()) b = a.length();
+		if (c < 1) return "";
+		if (c > (a.length()-b+1)) c = a.length()-b+1;
+
+		return a.substring((b-1 < 0) ? 0 : (b-1), b-1+c);
+	}
+
+
+	public static String fnSubstring(String a, double bd, double cd)
+	{
+		if (Double.isNaN(bd) || Double.isNaN(cd)) return "";
+
+		int b = (int)Math.round(bd);
+		int c = (int)Math.round(cd);
+
+		if (b > a.length()) b = a.length();
+		if (c < 1) return "";
+		if (c > (a.length()-b+1)) c = a.length()-b+1;
+
+		return a.substring((b-1 < 0) ? 0 : (b-1), b-1+c);
+	}
+
+
+	public static String fnNormalizeSpace(String a)
+	{
+		String x = a.trim();
+
+		StringBuffer sb = new StringBuffer(x.length());
+		boolean inSpace = false;
+		for (int i = 0; i<x.length(); i++)
+		{
+			char c = x.charAt(i);
+			if (c > ' ')
+			{
+				inSpace = false;
+				sb.append(c);
+			}
+			else
+			{
+				if (!inSpace)
+				{
+					sb.append(' ');
+					inSpace = true;
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+
+	public static String fnTranslate(String a, String b, String c)
+	{	
+		StringBuffer sb = new StringBuffer(a.length());
+		for (int i = 0; i<a.length(); i++)
+		{
+			char ch = a.charAt(i);
+			int index = b.indexOf(ch);
+			if (index < 0)
+            {			
+                sb.append(ch);
+            }
+			else if (index >= c.length())
+            {
+                // ignore char in b but not in c
+            }
+			else
+            {
+				sb.append(c.charAt(index));
+            }
+		}
+		return sb.toString();
+	}
+
+
+	public static double fnRound(double a)
+	{	
+		return Math.floor(a + 0.5d);
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp;
+
+import java.lang.reflect.Member;
+import java.util.Map;
+
+import nu.staldal.lsp.wrapper.ReadonlyBeanMap;
+
+
+/**
+ * Inline cache for a tuple access with a constant key, like 
+ * <code>$order.customer</code>, in a compiled LSP page.
+ *<p>
+ * Remembers the resolved property for the last few bean classes seen,
+ * so that a bean is read directly without wrapping it in a 
+ * {@link ReadonlyBeanMap}. Other values take the generic path. Thread-safe.
+ *<p>
+ * This class is not part of the public API, it should only be used by compiled 
+ * LSP pages. It is declared public since compiled LSP pages needs to access it.  
+ */
+public final class TupleAccessSite
+{
+	private static final int MAX_CLASSES = 4; 
+	
+	private final String key;
+	
+	// immutable list, replaced on update
+	private volatile Entry cache = null;
+	
+	private static final class Entry
+	{
+		final Class<?> beanClass;
+		final Member member; // null if no such property
+		final Entry next;
+		final int size;
+		
+		Entry(Class<?> beanClass, Member member, Entry next)
+		{
+			this.beanClass = beanClass;
+			this.member = member;
+			this.next = next;
+			this.size = (next == null) ? 1 : next.size+1;
+		}
+	}
+	
+
+	/**
+	 * @param key  the tuple key
+	 */
+	public TupleAccessSite(String key)
+	{
+		this.key = key;
+	}
+	
+	
+	/**
+	 * Same as <code>getElementFromTuple(convertToTuple(base), key)</code>.
+	 *
+	 * @param base  the value to get the element from
+	 *
+	 * @return the element
+	 *
+	 * @throws LSPException  if there is no such element
+	 */
+	public Object get(Object base)
+		throws LSPException
+	{
+		return get(base, false);
+	}
+
+
+	/**
+	 * Same as <code>getElementFromTupleAcceptNull(convertToTuple(base), key)</code>.
+	 *
+	 * @param base  the value to get the element from
+	 *
+	 * @return the element, or <code>Void.TYPE</code> if there is no such element
+	 */
+	public Object getAcceptNull(Object base)
+		throws LSPException
+	{
+		return get(base, true);
+	}
+	
+	
+	private Object get(Object base, boolean acceptNull)
+		throws LSPException
+	{
+		if (base != null)
+		{
+			Class<?> beanClass = base.getClass();
+			for (Entry e = cache; e != null; e = e.next)
+			{
+				if (e.beanClass == beanClass)
+					return getProperty(base, e.member, acceptNull);
+			}
+		}
+		
+		Map<?,?> tuple = LSPPageBase.convertToTuple(base);
+		
+		if ((tuple instanceof ReadonlyBeanMap) 
+				&& ((ReadonlyBeanMap)tuple).getBean() == base)
+		{
+			Class<?> beanClass = base.getClass();
+			Member member = ReadonlyBeanMap.getMember(beanClass, key);
+			
+			Entry head = cache;
+			if (head == null || head.size < MAX_CLASSES)
+			{
+				// a lost update in a race only costs a later miss
+				cache = new Entry(beanClass, member, head);
+			}
+			
+			return getProperty(base, member, acceptNull);
+		}
+		
+		return acceptNull
+			? LSPPageBase.getElementFromTupleAcceptNull(tuple, key)
+			: LSPPageBase.getElementFromTuple(tuple, key);
+	}
+	
+	
+	private Object getProperty(Object bean, Member member, boolean acceptNull)
+		throws LSPException
+	{
+		if (member != null)
+			return ReadonlyBeanMap.getProperty(bean, member);
+		else if (acceptNull)
+			return Void.TYPE;
+		else
+			throw new LSPException("Element \'" + key + "\' not found in tuple");
+	}
+}
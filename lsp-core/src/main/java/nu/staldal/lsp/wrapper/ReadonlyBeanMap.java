@@ -42,23 +42,37 @@ package nu.staldal.lsp.wrapper;
 
 import org.apache.commons.lang.StringUtils;
 
+import java.lang.ref.SoftReference;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implementation of read only Map for a Java bean. This class is <em>not</em>
  * thread-safe
+ * <p>
+ * Resolved properties are cached per bean class and shared by all instances,
+ * so wrapping a bean is cheap.
  *
  * @author Mikael Ståldal
  */
 public class ReadonlyBeanMap implements Map<String, Object> {
+    // Weak keys and soft values, so the cache does not keep bean classes
+    // and their class loaders alive. BeanClass refers to its class, so a
+    // strongly held value would keep its weak key reachable.
+    private static final Map<Class<?>, SoftReference<BeanClass>> beanClasses =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, SoftReference<BeanClass>>());
+
     private final Object bean;
 
-    private final Map<String, Member> cache;
+    private final BeanClass beanClass;
 
     /**
      * Constructor.
@@ -67,56 +81,40 @@ public class ReadonlyBeanMap implements Map<String, Object> {
      */
     public ReadonlyBeanMap(Object bean) {
         this.bean = bean;
-        this.cache = new HashMap<String, Member>();
-    }
-
-    private Member lookupMember(String property) {
-        if (property.isEmpty()) {
-            return null;
-        }
-        return tryToLookupMember(property, "get", "is");
+        this.beanClass = lookupBeanClass(bean.getClass());
     }
 
-    private Member tryToLookupMember(final String property, final String... prefixes) {
-        final Class<? extends Object> beanClass = bean.getClass();
-
-        for (final String prefix : prefixes) {
-            try {
-                final String methodName = prefix + StringUtils.capitalize(property);
-                return beanClass.getMethod(methodName);
-            } catch (NoSuchMethodException ignored) {
-            }
-        }
-
-        try {
-            return beanClass.getField(property);
-        } catch (NoSuchFieldException ignored) {
-        }
-
-        try {
-            return beanClass.getMethod(property);
-        } catch (NoSuchMethodException e) {
-            return null;
-        }
+    /**
+     * Get the wrapped bean.
+     *
+     * @return the Java bean
+     */
+    public Object getBean() {
+        return bean;
     }
 
-    private Member getMember(String property) {
-        Member member = cache.get(property);
-        if (member == null) {
-            member = lookupMember(property);
-            if (member != null) {
-                cache.put(property, member);
-            }
-        }
-        return member;
+    /**
+     * Resolve a property of a bean class.
+     *
+     * @param clazz    the bean class
+     * @param property the property name
+     *
+     * @return the {@link Method} or {@link Field} to read the property with,
+     *         or <code>null</code> if there is no such property
+     */
+    public static Member getMember(Class<?> clazz, String property) {
+        return lookupBeanClass(clazz).getMember(property);
     }
 
-    public Object get(Object key) {
-        Member member = getMember((String) key);
-        if (member == null) {
-            return null;
-        }
-
+    /**
+     * Read a property of a bean.
+     *
+     * @param bean   the Java bean
+     * @param member a member obtained from {@link #getMember} for the class of the bean
+     *
+     * @return the property value
+     */
+    public static Object getProperty(Object bean, Member member) {
         try {
             if (member instanceof Method) {
                 return ((Method) member).invoke(bean);
@@ -139,8 +137,90 @@ public class ReadonlyBeanMap implements Map<String, Object> {
         }
     }
 
+    private static BeanClass lookupBeanClass(Class<?> clazz) {
+        SoftReference<BeanClass> ref = beanClasses.get(clazz);
+        BeanClass beanClass = (ref != null) ? ref.get() : null;
+        if (beanClass == null) {
+            beanClass = new BeanClass(clazz);
+            beanClasses.put(clazz, new SoftReference<BeanClass>(beanClass));
+        }
+        return beanClass;
+    }
+
+    /**
+     * Resolved members of one bean class, including negative lookups.
+     * Thread-safe.
+     */
+    private static final class BeanClass {
+        private static final Member NOT_FOUND = Object.class.getDeclaredConstructors()[0];
+
+        private final Class<?> clazz;
+
+        private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<String, Member>();
+
+        BeanClass(Class<?> clazz) {
+            this.clazz = clazz;
+        }
+
+        Member getMember(String property) {
+            Member member = members.get(property);
+            if (member == null) {
+                member = lookupMember(property);
+                members.putIfAbsent(property, (member != null) ? member : NOT_FOUND);
+            } else if (member == NOT_FOUND) {
+                member = null;
+            }
+            return member;
+        }
+
+        private Member lookupMember(String property) {
+            if (property.isEmpty()) {
+                return null;
+            }
+            Member member = tryToLookupMember(property, "get", "is");
+            if (member != null) {
+                try {
+                    // skip access checks on each invocation
+                    ((AccessibleObject) member).setAccessible(true);
+                } catch (SecurityException ignored) {
+                }
+            }
+            return member;
+        }
+
+        private Member tryToLookupMember(final String property, final String... prefixes) {
+            for (final String prefix : prefixes) {
+                try {
+                    final String methodName = prefix + StringUtils.capitalize(property);
+                    return clazz.getMethod(methodName);
+                } catch (NoSuchMethodException ignored) {
+                }
+            }
+
+            try {
+                return clazz.getField(property);
+            } catch (NoSuchFieldException ignored) {
+            }
+
+            try {
+                return clazz.getMethod(property);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+
+    public Object get(Object key) {
+        Member member = beanClass.getMember((String) key);
+        if (member == null) {
+            return null;
+        }
+
+        return getProperty(bean, member);
+    }
+
     public boolean containsKey(Object key) {
-        return getMember((String) key) != null;
+        return beanClass.getMember((String) key) != null;
     }
 
     public int size() {
@@ -52,8 +52,11 @@ import javax.xml.transform.stream.StreamResult;
 
 public class HTMLSerializer extends Serializer
 {
+    private static final String[] HTML_ATTRIBUTE_ESCAPES = escapeTable("&\"");
+    
     private boolean disableOutputEscaping = false;
     private boolean emptyElement = false;
+    private String openTag = null; // local name of start tag from startTag()
     private int nestedCDATA = 0;
     private boolean inDTD = false;
     private boolean dtdContent = false;
@@ -179,33 +182,17 @@ public class HTMLSerializer extends Serializer
             }
             else
             {
-                // out.enableEscaping();
-                for (int i = 0; i<attValue.length(); i++)
+                int from = 0;
+                for (int amp = attValue.indexOf("&{"); amp >= 0; 
+                        amp = attValue.indexOf("&{", from))
                 {
-                    char c = attValue.charAt(i);
-                    switch (c)
-                    {
-                    case '&':
-                        if ((i+1)<attValue.length() && attValue.charAt(i+1)=='{')
-                        {
-                            // do not escape & immediately before { in HTML
-                            out.write('&');    
-                        }
-                        else
-                        {
-                            out.write("&amp;");
-                        }
-                        break;
-    
-                    case '\"':
-                        out.write("&quot;");
-                        break;
-                    
-                    default:
-                        out.write(c);
-                    }
+                    writeEscaped(attValue, from, amp, HTML_ATTRIBUTE_ESCAPES);
+                    // do not escape & immediately before { in HTML
+                    out.write('&');
+                    from = amp+1;
                 }
-                // out.disableEscaping();
+                writeEscaped(attValue, from, attValue.length(), 
+                    HTML_ATTRIBUTE_ESCAPES);
             }
             
             out.write('\"');
@@ -219,6 +206,36 @@ public class HTMLSerializer extends Serializer
     {
         fixTag();
 
+        localName = beginStartTag(localName, qName);
+
+        try {
+            for (int j = 0; j<atts.getLength(); j++)
+            {
+                String attQName = atts.getQName(j);
+                if (attQName == null || attQName.length() == 0)
+                {
+                    attQName = atts.getLocalName(j);
+                }
+                writeAttribute(attQName, atts.getValue(j));                
+            }            
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }            
+
+        endStartTag(localName);
+    }
+    
+    
+    /**
+     * Write the start of a start tag, up to the attributes.
+     *
+     * @return the local name
+     */
+    private String beginStartTag(String localName, String qName)
+	    throws SAXException
+    {
         if (localName == null || localName.length() == 0)
         {
             localName = qName;
@@ -261,22 +278,22 @@ public class HTMLSerializer extends Serializer
             }
             out.write('<');
             out.write(localName);
-
-            for (int j = 0; j<atts.getLength(); j++)
-            {
-                String attQName = atts.getQName(j);
-                if (attQName == null || attQName.length() == 0)
-                {
-                    attQName = atts.getLocalName(j);
-                }
-                writeAttribute(attQName, atts.getValue(j));                
-            }            
         }
         catch (IOException e)
         {
             throw new SAXException(e);    
         }            
-
+        
+        return localName;
+    }
+    
+    
+    /**
+     * Finish the start tag, except for the final '>'.
+     */
+    private void endStartTag(String localName)
+	    throws SAXException
+    {
         if (formattedElements.contains(localName.toLowerCase()))
             inFormattedElement++;
         
@@ -301,9 +318,23 @@ public class HTMLSerializer extends Serializer
     }
 
 
+    private void closeStartTag()
+	    throws SAXException
+    {
+        if (openTag != null)
+        {
+            String localName = openTag;
+            openTag = null;
+            endStartTag(localName);
+        }
+    }
+    
+
     private void fixTag()
         throws SAXException
     {
+        closeStartTag();
+        
         try {
             _fixTag();
         }
@@ -317,6 +348,20 @@ public class HTMLSerializer extends Serializer
     private void _fixTag()
 	    throws IOException
     {
+        if (openTag != null)
+        {
+            try {
+                closeStartTag();
+            }
+            catch (SAXException e)
+            {
+                if (e.getException() instanceof IOException)
+                    throw (IOException)e.getException();
+                else
+                    throw new IOException(e.getMessage());
+            }
+        }
+        
         if (emptyElement)
         {
             out.write('>');    
@@ -328,6 +373,8 @@ public class HTMLSerializer extends Serializer
     public void endElement(String namespaceURI, String localName, String qName)
 	    throws SAXException
     {        
+        closeStartTag();
+        
         elementDepth--;
                 
         if (localName == null || localName.length() == 0)
@@ -379,6 +426,8 @@ public class HTMLSerializer extends Serializer
             inNotEscapeElement--;        
         
         wasEndTag = true;
+        
+        endTagWritten(localName);
     }
 
     private void doFirstInCharacters()
@@ -431,12 +480,7 @@ public class HTMLSerializer extends Serializer
         }
         else
         {
-            // out.enableEscaping();
-            for (int i = start; i<end; i++)
-            {
-                outputEscapedCharacter(cs.charAt(i));
-            }
-            // out.disableEscaping();
+            writeEscaped(cs, start, end, TEXT_ESCAPES);
         }        
     }   
     
@@ -469,12 +513,30 @@ public class HTMLSerializer extends Serializer
             }
             else
             {
-                // out.enableEscaping();
-                for (int i = start; i<start+length; i++)
-                {
-                    outputEscapedCharacter(ch[i]);
-                }
-                // out.disableEscaping();
+                writeEscaped(ch, start, start+length, TEXT_ESCAPES);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }
+    }
+
+
+    public void staticText(StaticText text)
+	    throws SAXException
+    {
+        doFirstInCharacters();
+        
+        try {
+            if (disableOutputEscaping || nestedCDATA > 0
+                    || inNotEscapeElement > 0)
+            {
+                out.write(text.getChars());
+            }
+            else
+            {
+                out.write(text);
             }
         }
         catch (IOException e)
@@ -958,6 +1020,40 @@ public class HTMLSerializer extends Serializer
     }
 
     
+    // LSPOutput implementation
+    
+    public void startTag(String namespaceURI, String localName)
+	    throws SAXException
+    {
+        fixTag();
+        
+        openTag = beginStartTag(localName, null);
+    }
+
+
+    public void attribute(String namespaceURI, String localName, String value)
+	    throws SAXException
+    {
+        if (openTag == null)
+            throw new SAXException("attribute() must follow startTag()");
+        
+        try {
+            writeAttribute(localName, value);
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }            
+    }
+
+
+    public void endTag(String namespaceURI, String localName)
+	    throws SAXException
+    {
+        endElement(namespaceURI, localName, null);
+    }
+    
+
     // Appendable
     
     public Appendable append(CharSequence cs)
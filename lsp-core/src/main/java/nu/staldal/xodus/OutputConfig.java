@@ -50,6 +50,14 @@ import javax.xml.transform.OutputKeys;
  */
 public class OutputConfig
 {
+    /**
+     * Output property for the number of characters to buffer before 
+     * encoding, see {@link XMLCharacterEncoder}. Not a standard 
+     * {@link javax.xml.transform.OutputKeys} property.
+     */
+    public static final String BUFFER_SIZE = 
+        "{http://staldal.nu/xodus}buffer-size";
+    
     public String method;
     public boolean isXhtml = false;
     public boolean isText = false;
@@ -73,6 +81,8 @@ public class OutputConfig
     
     public String media_type;
     
+    public int buffer_size;
+    
     
     /**
      * Factory method.
@@ -183,6 +193,20 @@ public class OutputConfig
             else
                 media_type = "text/xml";
         }               
+        
+        String _buffer_size = outputProps.getProperty(BUFFER_SIZE);
+        if (_buffer_size == null)
+            buffer_size = 0;
+        else
+        {
+            try {
+                buffer_size = Integer.parseInt(_buffer_size.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Illegal buffer size value: " + _buffer_size);
+            }
+        }
     }
     
 }
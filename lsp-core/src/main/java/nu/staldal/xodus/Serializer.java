@@ -53,6 +53,8 @@ import org.xml.sax.ext.DeclHandler;
 
 import javax.xml.transform.stream.StreamResult;
 
+import nu.staldal.lsp.LSPOutput;
+
 
 /**
  * Serialize SAX2 events to its textual XML representation.
@@ -72,6 +74,9 @@ import javax.xml.transform.stream.StreamResult;
  * The ENCODING output property defaults to UTF-8 for XML and XHTML, 
  * and to ISO-8859-1 for Text and HTML.
  *<p>
+ * The {@link OutputConfig#BUFFER_SIZE} output property sets the buffer
+ * size of the {@link XMLCharacterEncoder}.
+ *<p>
  * The "html" output method does <em>not</em> escape non-ASCII characters 
  * in URI attribute values, as specified in the XSLT 1.0 specification.
  *<p>
@@ -86,12 +91,16 @@ import javax.xml.transform.stream.StreamResult;
  * Illegal XML/HTML output may be created for inproper input, this class does 
  * not make effort to detect errors.
  *<p>
+ * The methods specified in the {@link nu.staldal.lsp.LSPOutput} interface
+ * can be used as a faster alternative to the SAX2 events for elements.
+ *<p>
  * If the {@link javax.xml.transform.stream.StreamResult} specifies a 
  * {@link java.io.Writer} or {@link java.lang.Appendable}, non-ASCII characters
  * will not be escaped. "<", ">", "&", '"' and "'" are always escaped properly. 
  */
 public abstract class Serializer implements ContentHandler, LexicalHandler, 
-                                            DTDHandler, DeclHandler, Appendable
+                                            DTDHandler, DeclHandler, Appendable,
+                                            LSPOutput, Flushable
 {
     protected final OutputConfig outputConfig; 
     protected final String systemId;
@@ -99,6 +108,8 @@ public abstract class Serializer implements ContentHandler, LexicalHandler,
     
     private final boolean doClose;    
     
+    private String flushAfter = null;
+    
     
     /**
      * Factory method, create a new Serializer.
@@ -156,7 +167,7 @@ public abstract class Serializer implements ContentHandler, LexicalHandler,
         }
         else if (os != null)
         {
-            out = new XMLCharacterEncoder(os, outputConfig.encoding);
+            out = createEncoder(os, outputConfig);
             doClose = false;
         }
         else if (w != null)
@@ -195,7 +206,7 @@ public abstract class Serializer implements ContentHandler, LexicalHandler,
             }
             
             os = new BufferedOutputStream(_os); 
-            out = new XMLCharacterEncoder(os, outputConfig.encoding);
+            out = createEncoder(os, outputConfig);
             doClose = true;
         }
         else
@@ -205,6 +216,18 @@ public abstract class Serializer implements ContentHandler, LexicalHandler,
     }
     
     
+    private static XMLCharacterEncoder createEncoder(OutputStream os, 
+            OutputConfig outputConfig)
+        throws UnsupportedEncodingException
+    {
+        if (outputConfig.buffer_size > 0)
+            return new XMLCharacterEncoder(os, outputConfig.encoding, 
+                outputConfig.buffer_size);
+        else
+            return new XMLCharacterEncoder(os, outputConfig.encoding);
+    }
+    
+    
     /**
      * Finish writing to output. Does <em>not</em> close output if
      * an {@link java.io.OutputStream} or {@link Writer} was provided.
@@ -219,6 +242,156 @@ public abstract class Serializer implements ContentHandler, LexicalHandler,
     }
     
 
+    /**
+     * Escapes for text content, indexed by character.
+     */
+    protected static final String[] TEXT_ESCAPES = escapeTable("<>&");
+
+    /**
+     * Escapes for XML attribute values, indexed by character.
+     */
+    protected static final String[] ATTRIBUTE_ESCAPES = escapeTable("<>&\"");
+    
+    /**
+     * Create an escape table for use with {@link #writeEscaped}.
+     *
+     * @param chars  the characters to escape, 
+     *               some of "&lt;", "&gt;", "&amp;" and '"'
+     *
+     * @return the escape table
+     */
+    protected static String[] escapeTable(String chars)
+    {
+        // only ASCII characters are escaped here, the XMLCharacterEncoder
+        // inserts character entities for characters outside the encoding
+        String[] table = new String[0x80];
+        for (int i = 0; i<chars.length(); i++)
+        {
+            char c = chars.charAt(i);
+            switch (c)
+            {
+            case '<':
+                table[c] = "&lt;";
+                break;
+
+            case '>':
+                table[c] = "&gt;";
+                break;
+            
+            case '&':
+                table[c] = "&amp;";
+                break;
+
+            case '\"':
+                table[c] = "&quot;";
+                break;
+                
+            default:
+                throw new IllegalArgumentException("No escape for: " + c);
+            }
+        }
+        return table;
+    }
+    
+
+    /**
+     * Write characters, escaped with the given escape table. Runs of 
+     * characters which need no escaping are written in one call.
+     *
+     * @param cs       the characters
+     * @param start    index of the first character
+     * @param end      index after the last character
+     * @param escapes  escape table, indexed by character
+     */
+    protected final void writeEscaped(CharSequence cs, int start, int end, 
+            String[] escapes)
+        throws IOException
+    {
+        int run = start;
+        for (int i = start; i<end; i++)
+        {
+            char c = cs.charAt(i);
+            if (c < escapes.length && escapes[c] != null)
+            {
+                if (i > run) out.append(cs, run, i);
+                out.write(escapes[c]);
+                run = i+1;
+            }
+        }
+        if (end > run) out.append(cs, run, end);
+    }
+
+
+    /**
+     * Write characters, escaped with the given escape table. Runs of 
+     * characters which need no escaping are written in one call.
+     *
+     * @param ch       the characters
+     * @param start    index of the first character
+     * @param end      index after the last character
+     * @param escapes  escape table, indexed by character
+     */
+    protected final void writeEscaped(char[] ch, int start, int end, 
+            String[] escapes)
+        throws IOException
+    {
+        int run = start;
+        for (int i = start; i<end; i++)
+        {
+            char c = ch[i];
+            if (c < escapes.length && escapes[c] != null)
+            {
+                if (i > run) out.write(ch, run, i-run);
+                out.write(escapes[c]);
+                run = i+1;
+            }
+        }
+        if (end > run) out.write(ch, run, end-run);
+    }
+    
+    
+    /**
+     * Write all output so far, and flush the underlying output.
+     */
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+    
+    
+    /**
+     * Flush the output after each end tag of elements with the given 
+     * local name, compared ignoring case. 
+     *
+     * @param localName  the local name, e.g. "head", 
+     *                   or <code>null</code> to disable
+     */
+    public void setFlushAfter(String localName)
+    {
+        this.flushAfter = localName;
+    }
+    
+    
+    /**
+     * Invoked by subclasses after writing an end tag.
+     */
+    protected final void endTagWritten(String localName)
+        throws SAXException
+    {
+        if (flushAfter != null && flushAfter.equalsIgnoreCase(localName))
+        {
+            try {
+                flush();
+            }
+            catch (IOException e)
+            {
+                throw new SAXException(e);
+            }
+        }
+    }
+    
+
     /**
      * Write a newline.
      */
@@ -241,6 +414,38 @@ public abstract class Serializer implements ContentHandler, LexicalHandler,
     public abstract void characters(CharSequence cs)
         throws SAXException;
 
+    /**
+     * Output part of a {@link java.lang.CharSequence} as character data,
+     * without copying it.
+     *
+     * @param cs     the characters
+     * @param start  the start index, inclusive
+     * @param end    the end index, exclusive
+     *            
+     * @throws SAXException  declared to throw SAXException to be consistent 
+     * with {@link org.xml.sax.ContentHandler}   
+     */
+    public void characters(CharSequence cs, int start, int end)
+        throws SAXException
+    {
+        try {
+            append(cs, start, end);
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }
+    }
+
+    /**
+     * Same as {@link #characters(CharSequence)}.
+     */
+    public void text(CharSequence cs)
+        throws SAXException
+    {
+        characters(cs);
+    }
+
     /**
      * Alternative method for convenience and efficiency 
      * (no need to copy a String into a char[]).
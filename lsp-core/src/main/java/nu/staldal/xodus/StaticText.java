@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.xodus;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+
+/**
+ * Static character data which is output many times, e.g. the constant
+ * text of a compiled LSP page.
+ *<p>
+ * The text is escaped once on construction, and encoded once for each 
+ * encoding it is written with. 
+ *<p>
+ * This class is thread safe.
+ */
+public final class StaticText
+{
+    private final char[] chars;
+    private final String escaped;
+    
+    private volatile Encoded encoded = null; 
+    
+    private static final class Encoded
+    {
+        final Charset charset;
+        final byte[] bytes;
+        
+        Encoded(Charset charset, byte[] bytes)
+        {
+            this.charset = charset;
+            this.bytes = bytes;
+        }
+    }
+    
+    
+    /**
+     * Constructs a StaticText.
+     *
+     * @param text  the text, unescaped 
+     */
+    public StaticText(String text)
+    {
+        this.chars = text.toCharArray();
+        
+        StringBuilder sb = null;
+        for (int i = 0; i<chars.length; i++)
+        {
+            String entity;
+            switch (chars[i])
+            {
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '&':
+                entity = "&amp;";
+                break;
+            default:
+                entity = null;
+            }
+            if (entity != null)
+            {
+                if (sb == null)
+                {
+                    sb = new StringBuilder(chars.length + 16);
+                    sb.append(chars, 0, i);
+                }
+                sb.append(entity);
+            }
+            else if (sb != null)
+            {
+                sb.append(chars[i]);
+            }
+        }
+        this.escaped = (sb == null) ? text : sb.toString();
+    }
+    
+    
+    /**
+     * Get the unescaped text. The array is shared and 
+     * must <em>not</em> be modified.
+     */
+    public char[] getChars()
+    {
+        return chars;
+    }
+    
+
+    /**
+     * Get the text with "&lt;", "&gt;" and "&amp;" escaped.
+     */
+    public String getEscaped()
+    {
+        return escaped;
+    }
+    
+    
+    /**
+     * Get the escaped text encoded with the given charset, unmappable
+     * characters replaced with numeric character entities. The array is 
+     * shared and must <em>not</em> be modified.
+     *
+     * @param charset  a charset for which {@link #canPreEncode} is true
+     */
+    public byte[] getEncoded(Charset charset)
+        throws IOException
+    {
+        Encoded enc = encoded;
+        if (enc == null || !enc.charset.equals(charset))
+        {
+            ByteArrayOutputStream buf = 
+                new ByteArrayOutputStream(escaped.length() + 16);
+            XMLCharacterEncoder encoder = 
+                new XMLCharacterEncoder(buf, charset.name());
+            encoder.write(escaped);
+            encoder.finish();
+            enc = new Encoded(charset, buf.toByteArray());
+            encoded = enc;
+        }
+        return enc.bytes;
+    }
+
+    
+    /**
+     * Check if text can be encoded separately with the given charset 
+     * and written in the middle of a stream. This is true for stateless 
+     * encodings without byte order mark.
+     */
+    public static boolean canPreEncode(Charset charset)
+    {
+        String name = charset.name();
+        
+        return name.equals("UTF-8")
+            || name.equals("US-ASCII")
+            || name.startsWith("ISO-8859-")
+            || name.startsWith("windows-125");
+    }
+    
+}
@@ -132,6 +132,19 @@ public class TextSerializer extends Serializer
     }
 
 
+    public void staticText(StaticText text)
+	    throws SAXException
+    {
+        try {
+            out.write(text.getChars());
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }
+    }
+
+
     @Override
     public void ignorableWhitespace(CharSequence cs)
 	    throws SAXException
@@ -283,6 +296,29 @@ public class TextSerializer extends Serializer
     }
 
 
+    // LSPOutput implementation
+    
+    public void startTag(String namespaceURI, String localName)
+	    throws SAXException
+    {
+        // nothing to do    
+    }
+
+
+    public void attribute(String namespaceURI, String localName, String value)
+	    throws SAXException
+    {
+        // nothing to do    
+    }
+
+
+    public void endTag(String namespaceURI, String localName)
+	    throws SAXException
+    {
+        // nothing to do    
+    }
+    
+
     // Appendable
     
     public Appendable append(CharSequence cs)
@@ -44,6 +44,9 @@ import java.io.*;
 import java.nio.CharBuffer;
 import java.nio.ByteBuffer;
 import java.nio.charset.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -52,6 +55,9 @@ import java.nio.charset.*;
  * Inserts numeric character entities for characters which cannot be 
  * encoded in the specified encoding. 
  *<p>
+ * UTF-8, ISO-8859-1 and US-ASCII are encoded directly into the byte buffer,
+ * other encodings use a {@link java.nio.charset.CharsetEncoder}.
+ *<p>
  * <em>Note:</em> Does <em>not</em> insert the gt, lt, qout, amp and apos 
  * entites.
  *<p>
@@ -61,23 +67,43 @@ import java.nio.charset.*;
  *<p>
  * This class is <em>not</em> thread safe.
  *<p>
+ * When writing to an {@link java.io.OutputStream}, the encoder owns a
+ * character buffer and a byte buffer which are reused for all output.
+ * Buffers of the default size are taken from a shared pool and given 
+ * back by {@link #finish}, so the encoder must not be used after that.
+ *<p>
  * This class implements all <code>write</code> methods of {@link java.io.Writer},
  * but does not extend {@link java.io.Writer} due to technical reasons.
  */
-public class XMLCharacterEncoder implements Appendable, Closeable
+public class XMLCharacterEncoder implements Appendable, Closeable, Flushable
 {
     private static final int BUFFER_SIZE = 1024;
     private static final int BUFFER_TRESHOLD = 64;
+    private static final int MAX_BYTES_PER_CHAR = 4;
+    private static final int POOL_SIZE = 32;
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private static final Queue<Buffers> pool = 
+        new ConcurrentLinkedQueue<Buffers>();
+    private static final AtomicInteger pooled = new AtomicInteger();
     
     private final Charset charset;
     private final CharsetEncoder encoder;
-    private final CharBuffer encBuffer;
+    private final boolean preEncode;
+    private final boolean utf8;
+    private final int singleByteLimit;
+    
+    private Buffers buffers;
+    private CharBuffer encBuffer;
+    private ByteBuffer byteBuffer;
     
     private final Appendable appendable;
     private final Writer writer;
     private final OutputStream os;
     
     private boolean hasFinished = false;
+    private char highSurrogate = 0;
         
     /**
      * Constructs an XMLCharacterEncoder which writes to the given
@@ -91,14 +117,47 @@ public class XMLCharacterEncoder implements Appendable, Closeable
      */
     public XMLCharacterEncoder(OutputStream os, String encoding)
         throws UnsupportedEncodingException
+    {
+        this(os, encoding, BUFFER_SIZE);
+    }
+    
+
+    /**
+     * Constructs an XMLCharacterEncoder which writes to the given
+     * {@link java.io.OutputStream}, with the given buffer size.
+     *
+     * @param os  the {@link java.io.OutputStream} to write to.
+     * @param encoding  the encoding to use.
+     * @param bufferSize  the number of characters to buffer before encoding, 
+     *                    at least 64. Default is 1024.
+     *
+     * @throws java.io.UnsupportedEncodingException If the given encoding 
+     *         name is illegal or not available. 
+     * @throws IllegalArgumentException If the buffer size is too small.
+     */
+    public XMLCharacterEncoder(OutputStream os, String encoding, int bufferSize)
+        throws UnsupportedEncodingException
     {        
+        if (bufferSize < BUFFER_TRESHOLD)
+            throw new IllegalArgumentException(
+                "buffer size must be at least " + BUFFER_TRESHOLD + ": " + bufferSize);
+        
         try {
             charset = Charset.forName(encoding);
             encoder = charset.newEncoder();
             encoder.onMalformedInput(CodingErrorAction.REPORT);             
             encoder.onUnmappableCharacter(CodingErrorAction.REPORT);             
             encoder.reset();
-            encBuffer = CharBuffer.allocate(BUFFER_SIZE);
+            preEncode = StaticText.canPreEncode(charset);
+            
+            String name = charset.name();
+            utf8 = name.equals("UTF-8");
+            if (name.equals("ISO-8859-1"))
+                singleByteLimit = 0x100;
+            else if (name.equals("US-ASCII"))
+                singleByteLimit = 0x80;
+            else
+                singleByteLimit = 0;
             
             writer = null;
             appendable = null;
@@ -125,6 +184,9 @@ public class XMLCharacterEncoder implements Appendable, Closeable
             throw ee;
         }        
      
+        buffers = takeBuffers(bufferSize);
+        encBuffer = buffers.chars;
+        byteBuffer = buffers.bytes;
         this.os = os;
     }
     
@@ -139,7 +201,9 @@ public class XMLCharacterEncoder implements Appendable, Closeable
     {
         charset = null;
         encoder = null;
-        encBuffer = null;
+        preEncode = false;
+        utf8 = false;
+        singleByteLimit = 0;
 
         this.writer = writer;
         appendable = null;
@@ -158,7 +222,9 @@ public class XMLCharacterEncoder implements Appendable, Closeable
     {
         charset = null;
         encoder = null;
-        encBuffer = null;
+        preEncode = false;
+        utf8 = false;
+        singleByteLimit = 0;
 
         this.appendable = a;
         writer = null;
@@ -247,7 +313,7 @@ public class XMLCharacterEncoder implements Appendable, Closeable
             else
             {
                 _flush();
-                if (cs.length() < BUFFER_TRESHOLD)
+                if ((end-start) < BUFFER_TRESHOLD)
                 {
                     encBuffer.append(cs, start, end);                    
                 }
@@ -340,7 +406,7 @@ public class XMLCharacterEncoder implements Appendable, Closeable
             else
             {
                 _flush();
-                if (cbuf.length < BUFFER_TRESHOLD)
+                if (len < BUFFER_TRESHOLD)
                 {
                     encBuffer.put(cbuf, off, len);
                 }
@@ -406,7 +472,7 @@ public class XMLCharacterEncoder implements Appendable, Closeable
             else
             {
                 _flush();
-                if (str.length() < BUFFER_TRESHOLD)
+                if (len < BUFFER_TRESHOLD)
                 {
                     encBuffer.put(str, off, off+len);
                 }
@@ -418,6 +484,26 @@ public class XMLCharacterEncoder implements Appendable, Closeable
         }        
     }
     
+
+    /**
+     * Write static text, escaped with "&lt;", "&gt;" and "&amp;". 
+     * Uses the pre-encoded form of the text if possible.
+     */
+    public void write(StaticText text) 
+        throws IOException 
+    {
+        String str = text.getEscaped();
+        if (preEncode && str.length() >= BUFFER_TRESHOLD)
+        {
+            if (encBuffer.position() > 0) _flush();
+            os.write(text.getEncoded(charset));
+        }
+        else
+        {
+            write(str);
+        }
+    }
+    
     private void _flush() 
         throws IOException
     {
@@ -432,16 +518,33 @@ public class XMLCharacterEncoder implements Appendable, Closeable
     private void encodeWrite(CharBuffer in)
         throws IOException
     {
-        int size = (int)(in.remaining()*encoder.averageBytesPerChar()*1.1);
-        if (size % 2 > 0) size++; // make size even
-        
-        byte[] buf = new byte[size];
-        ByteBuffer out = ByteBuffer.wrap(buf);
+        if (utf8 || singleByteLimit > 0)
+        {
+            if (in.hasArray())
+            {
+                int offset = in.arrayOffset();
+                encodeDirect(in.array(), 
+                    offset+in.position(), offset+in.limit());
+                in.position(in.limit());
+            }
+            else // callers flush encBuffer before passing any other buffer
+            {
+                char[] chunk = encBuffer.array();
+                while (in.hasRemaining())
+                {
+                    int len = Math.min(in.remaining(), chunk.length);
+                    in.get(chunk, 0, len);
+                    encodeDirect(chunk, 0, len);
+                }
+            }
+            writeBytes();
+            return;
+        }
         
         CoderResult cr;
         while (true)
         {                
-            cr = encoder.encode(in, out, false);
+            cr = encoder.encode(in, byteBuffer, false);
             if (cr.isUnderflow())
             {
                 if (in.hasRemaining())
@@ -452,17 +555,18 @@ public class XMLCharacterEncoder implements Appendable, Closeable
             }
             else if (cr.isOverflow())
             {
-                os.write(buf, 0, out.position());
-                out.clear();
+                writeBytes();
             }
             else if (cr.isUnmappable())
             {
-                os.write(buf, 0, out.position());
-                out.clear();
-                for (int i = 0; i<cr.length(); i++)
+                if (cr.length() == 2)
                 {
-                    String entity = "&#x" + Integer.toHexString(in.get()) + ";";
-                    encodeWrite(CharBuffer.wrap(entity));
+                    char high = in.get();
+                    encodeEntity(Character.toCodePoint(high, in.get()));
+                }
+                else
+                {
+                    encodeEntity(in.get());
                 }
             }
             else // if (cr.isMalformed())
@@ -471,7 +575,167 @@ public class XMLCharacterEncoder implements Appendable, Closeable
                     "Malformed Unicode character: \\u" + Integer.toHexString(in.get()));
             }
         }
-        os.write(buf, 0, out.position());
+        writeBytes();
+    }
+    
+    /**
+     * Encode a numeric character entity into the byte buffer.
+     */
+    private void encodeEntity(int c)
+        throws IOException
+    {
+        CharBuffer entity = buffers.entity;
+        entity.clear();
+        entity.put('&').put('#').put('x');
+        int shift = 20;
+        while (shift > 0 && (c >>> shift) == 0) shift -= 4;
+        for (; shift >= 0; shift -= 4)
+        {
+            entity.put(HEX_DIGITS[(c >>> shift) & 0xF]);
+        }
+        entity.put(';');
+        entity.flip();
+        
+        while (encoder.encode(entity, byteBuffer, false).isOverflow())
+        {
+            writeBytes();
+        }
+    }
+    
+    /**
+     * Encode UTF-8 or a single byte encoding directly into the byte buffer.
+     * A high surrogate at the end of the input is kept for the next call.
+     */
+    private void encodeDirect(char[] a, int start, int end)
+        throws IOException
+    {
+        byte[] buf = byteBuffer.array();
+        int max = buf.length - 10; // room for the longest sequence or entity
+        int pos = byteBuffer.position();
+        int i = start;
+        
+        if (highSurrogate != 0 && i < end)
+        {
+            if (!Character.isLowSurrogate(a[i]))
+                throw malformed(highSurrogate);
+            pos = putCodePoint(buf, pos, 
+                Character.toCodePoint(highSurrogate, a[i++]));
+            highSurrogate = 0;
+        }
+        
+        while (i < end)
+        {
+            if (pos > max)
+            {
+                byteBuffer.position(pos);
+                writeBytes();
+                pos = 0;
+            }
+            
+            char c = a[i++];
+            if (c < 0x80)
+            {
+                buf[pos++] = (byte)c;
+            }
+            else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE)
+            {
+                pos = putCodePoint(buf, pos, c);
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                if (i == end)
+                {
+                    highSurrogate = c;
+                    break;
+                }
+                if (!Character.isLowSurrogate(a[i]))
+                    throw malformed(c);
+                pos = putCodePoint(buf, pos, Character.toCodePoint(c, a[i++]));
+            }
+            else
+            {
+                throw malformed(c);
+            }
+        }
+        byteBuffer.position(pos);
+    }
+    
+    private int putCodePoint(byte[] buf, int pos, int c)
+    {
+        if (utf8)
+        {
+            if (c < 0x800)
+            {
+                buf[pos++] = (byte)(0xC0 | (c >> 6));
+            }
+            else if (c < 0x10000)
+            {
+                buf[pos++] = (byte)(0xE0 | (c >> 12));
+                buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            }
+            else
+            {
+                buf[pos++] = (byte)(0xF0 | (c >> 18));
+                buf[pos++] = (byte)(0x80 | ((c >> 12) & 0x3F));
+                buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            }
+            buf[pos++] = (byte)(0x80 | (c & 0x3F));
+        }
+        else if (c < singleByteLimit)
+        {
+            buf[pos++] = (byte)c;
+        }
+        else
+        {
+            buf[pos++] = '&';
+            buf[pos++] = '#';
+            buf[pos++] = 'x';
+            int shift = 20;
+            while (shift > 0 && (c >>> shift) == 0) shift -= 4;
+            for (; shift >= 0; shift -= 4)
+            {
+                buf[pos++] = (byte)HEX_DIGITS[(c >>> shift) & 0xF];
+            }
+            buf[pos++] = ';';
+        }
+        return pos;
+    }
+    
+    private static CharConversionException malformed(char c)
+    {
+        return new CharConversionException(
+            "Malformed Unicode character: \\u" + Integer.toHexString(c));
+    }
+    
+    private void writeBytes()
+        throws IOException
+    {
+        if (byteBuffer.position() > 0)
+        {
+            os.write(byteBuffer.array(), 0, byteBuffer.position());
+            byteBuffer.clear();
+        }
+    }
+    
+    /**
+     * Write all buffered output, and flush the underlying output.
+     */
+    public void flush() 
+        throws IOException
+    {
+        if (writer != null)
+        {
+            writer.flush();
+        }
+        else if (os != null)
+        {
+            _flush();
+            os.flush();
+        }
+        else if (appendable instanceof Flushable)
+        {
+            ((Flushable)appendable).flush();
+        }
     }
     
     public void finish() 
@@ -483,42 +747,25 @@ public class XMLCharacterEncoder implements Appendable, Closeable
         {
             encBuffer.flip();
             encodeWrite(encBuffer);
+            if (highSurrogate != 0)
+                throw malformed(highSurrogate);
             encBuffer.clear();
             encBuffer.flip();
             
-            byte[] buf = new byte[16];
-            ByteBuffer out = ByteBuffer.wrap(buf);
-            
-            while (true)
+            while (encoder.encode(encBuffer, byteBuffer, true).isOverflow())
             {                
-                CoderResult cr = encoder.encode(encBuffer, out, true);
-                if (cr.isUnderflow())
-                {
-                    break;
-                }
-                else if (cr.isOverflow())
-                {
-                    os.write(buf, 0, out.position());
-                    out.clear();
-                }
+                writeBytes();
             }
-            if (out.position() > 0) os.write(buf, 0, out.position());
-            out.clear();
-            
-            while (true)
+            while (encoder.flush(byteBuffer).isOverflow())
             {                
-                CoderResult cr = encoder.flush(out);
-                if (cr.isUnderflow())
-                {
-                    break;
-                }
-                else if (cr.isOverflow())
-                {
-                    os.write(buf, 0, out.position());
-                    out.clear();
-                }
+                writeBytes();
             }
-            if (out.position() > 0) os.write(buf, 0, out.position());
+            writeBytes();
+            
+            releaseBuffers(buffers);
+            buffers = null;
+            encBuffer = null;
+            byteBuffer = null;
         }
         
         hasFinished = true;
@@ -539,4 +786,48 @@ public class XMLCharacterEncoder implements Appendable, Closeable
         }
     }
     
+    
+    private static Buffers takeBuffers(int bufferSize)
+    {
+        if (bufferSize == BUFFER_SIZE)
+        {
+            Buffers b = pool.poll();
+            if (b != null)
+            {
+                pooled.decrementAndGet();
+                return b;
+            }
+        }
+        return new Buffers(bufferSize);
+    }
+    
+    private static void releaseBuffers(Buffers b)
+    {
+        if (b.chars.capacity() != BUFFER_SIZE) return;
+        
+        if (pooled.incrementAndGet() > POOL_SIZE)
+        {
+            pooled.decrementAndGet();
+            return;
+        }        
+        b.chars.clear();
+        b.bytes.clear();
+        pool.offer(b);
+    }
+    
+    
+    private static final class Buffers
+    {
+        final CharBuffer chars;
+        final ByteBuffer bytes;
+        final CharBuffer entity;
+        
+        Buffers(int bufferSize)
+        {
+            chars = CharBuffer.allocate(bufferSize);
+            bytes = ByteBuffer.allocate(bufferSize * MAX_BYTES_PER_CHAR);
+            entity = CharBuffer.allocate(10);
+        }
+    }
+    
 }
@@ -57,6 +57,7 @@ public class XMLSerializer extends Serializer
 
     private boolean disableOutputEscaping = false;
     private boolean emptyElement = false;
+    private String openTag = null; // local name of start tag from startTag()
     private int nestedCDATA = 0;
     private boolean inDTD = false;
     private boolean dtdContent = false;
@@ -183,6 +184,8 @@ public class XMLSerializer extends Serializer
     public void startPrefixMapping(String prefix, String uri)
 	    throws SAXException
     {
+        closeStartTag();
+        
         if (!contextPushed)
         {
             nsSup.pushContext();
@@ -213,33 +216,7 @@ public class XMLSerializer extends Serializer
         }
         else
         {
-            // out.enableEscaping();
-            for (int i = 0; i<attValue.length(); i++)
-            {
-                char c = attValue.charAt(i);
-                switch (c)
-                {
-                case '<':
-                    out.write("&lt;");
-                    break;
-
-                case '>':
-                    out.write("&gt;");
-                    break;
-                
-                case '&':
-                    out.write("&amp;");
-                    break;
-
-                case '\"':
-                    out.write("&quot;");
-                    break;
-                
-                default:
-                    out.write(c);
-                }
-            }
-            // out.disableEscaping();
+            writeEscaped(attValue, 0, attValue.length(), ATTRIBUTE_ESCAPES);
         }
         
         out.write('\"');                        
@@ -252,6 +229,67 @@ public class XMLSerializer extends Serializer
     {
         fixTag();
 
+        localName = beginStartTag(namespaceURI, localName, qName);
+
+        boolean hasXmlns = false;
+        Set<String> xmlns = new HashSet<String>();
+            
+        try {
+            for (int j = 0; j<atts.getLength(); j++)
+            {
+                String attQName = atts.getQName(j);
+                if (attQName == null || attQName.length() == 0)
+                {
+                    attQName = attributeQName(atts.getURI(j), atts.getLocalName(j));
+                }
+                if (attQName.equals("xmlns"))
+                {
+                    hasXmlns = true;    
+                }
+                else if (attQName.startsWith("xmlns:"))
+                {
+                    xmlns.add(attQName.substring(6));
+                }
+                writeAttribute(attQName, atts.getValue(j));                
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }            
+        
+        endStartTag(localName, hasXmlns, xmlns);
+    }
+
+
+    private String attributeQName(String attUri, String attLocalName)
+    {
+        if (attUri.length() == 0)
+        {
+            return attLocalName;
+        }
+        else
+        {
+            String prefix = nsSup.getPrefix(attUri);
+            if (prefix == null)
+            {
+                prefix = genPrefix();
+                nsSup.declarePrefix(prefix, attUri);
+            }
+            return prefix + ':' + attLocalName;
+        }
+    }
+    
+    
+    /**
+     * Write the start of a start tag, up to the attributes.
+     *
+     * @return the local name
+     */
+    private String beginStartTag(String namespaceURI, String localName,
+			      String qName)
+	    throws SAXException
+    {
         if (!contextPushed)
         {
             nsSup.pushContext();
@@ -332,43 +370,28 @@ public class XMLSerializer extends Serializer
             }
             out.write('<');
             out.write(qName);
-
-            boolean hasXmlns = false;
-            Set<String> xmlns = new HashSet<String>();
-            
-            for (int j = 0; j<atts.getLength(); j++)
-            {
-                String attQName = atts.getQName(j);
-                if (attQName == null || attQName.length() == 0)
-                {
-                    String attUri = atts.getURI(j);
-                    String attLocalName = atts.getLocalName(j);
-                    if (attUri.length() == 0)
-                    {
-                        attQName = attLocalName;
-                    }
-                    else
-                    {
-                        String prefix = nsSup.getPrefix(attUri);
-                        if (prefix == null)
-                        {
-                            prefix = genPrefix();
-                            nsSup.declarePrefix(prefix, attUri);
-                        }
-                        attQName = prefix + ':' + attLocalName;
-                    }
-                }
-                if (attQName.equals("xmlns"))
-                {
-                    hasXmlns = true;    
-                }
-                else if (attQName.startsWith("xmlns:"))
-                {
-                    xmlns.add(attQName.substring(6));
-                }
-                writeAttribute(attQName, atts.getValue(j));                
-            }
-            
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }            
+        
+        return localName;
+    }
+    
+    
+    /**
+     * Write namespace declarations and finish the start tag, 
+     * except for the final '>'.
+     *
+     * @param xmlns  prefixes already declared with attributes, 
+     *               may be <code>null</code>
+     */
+    private void endStartTag(String localName, boolean hasXmlns, 
+            Set<String> xmlns)
+	    throws SAXException
+    {
+        try {
 			for (Enumeration<?> e = nsSup.getDeclaredPrefixes(); 
                  e.hasMoreElements(); )
 			{
@@ -386,10 +409,10 @@ public class XMLSerializer extends Serializer
     				}
     				else
     				{
-    					if (!xmlns.contains(prefix) && uri.length() > 0)
+    					if ((xmlns == null || !xmlns.contains(prefix)) 
+                                && uri.length() > 0)
                         {
                             writeAttribute("xmlns:"+prefix, uri);
-                            xmlns.add(prefix);
                         }
     				}
                 }
@@ -429,9 +452,23 @@ public class XMLSerializer extends Serializer
     }
 
 
+    private void closeStartTag()
+	    throws SAXException
+    {
+        if (openTag != null)
+        {
+            String localName = openTag;
+            openTag = null;
+            endStartTag(localName, false, null);
+        }
+    }
+    
+
     private void fixTag()
 	    throws SAXException
     {
+        closeStartTag();
+        
         try {
             _fixTag();
         }
@@ -445,6 +482,20 @@ public class XMLSerializer extends Serializer
     private void _fixTag()
         throws IOException
     {
+        if (openTag != null)
+        {
+            try {
+                closeStartTag();
+            }
+            catch (SAXException e)
+            {
+                if (e.getException() instanceof IOException)
+                    throw (IOException)e.getException();
+                else
+                    throw new IOException(e.getMessage());
+            }
+        }
+        
         if (emptyElement)
         {
             out.write('>');    
@@ -456,6 +507,8 @@ public class XMLSerializer extends Serializer
     public void endElement(String namespaceURI, String localName, String qName)
 	    throws SAXException
     {        
+        closeStartTag();
+        
         elementDepth--;
                 
         if (qName == null || qName.length() == 0)
@@ -545,6 +598,8 @@ public class XMLSerializer extends Serializer
         
         wasEndTag = true;
         
+        endTagWritten(localName);
+        
         nsSup.popContext();        
     }
 
@@ -602,12 +657,30 @@ public class XMLSerializer extends Serializer
             }
             else
             {
-                // out.enableEscaping();
-                for (int i = start; i<start+length; i++)
-                {
-                    outputEscapedCharacter(ch[i]);
-                }
-                // out.disableEscaping();
+                writeEscaped(ch, start, start+length, TEXT_ESCAPES);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }
+    }
+
+
+    public void staticText(StaticText text)
+	    throws SAXException
+    {
+        doFirstInCharacters();
+        
+        try {
+            if (disableOutputEscaping || nestedCDATA > 0
+                    || inNotEscapeElement > 0)
+            {
+                out.write(text.getChars());
+            }
+            else
+            {
+                out.write(text);
             }
         }
         catch (IOException e)
@@ -627,12 +700,7 @@ public class XMLSerializer extends Serializer
         }
         else
         {
-            // out.enableEscaping();
-            for (int i = start; i<end; i++)
-            {
-                outputEscapedCharacter(cs.charAt(i));
-            }
-            // out.disableEscaping();
+            writeEscaped(cs, start, end, TEXT_ESCAPES);
         }        
     }
 
@@ -1122,6 +1190,40 @@ public class XMLSerializer extends Serializer
     }
 
 
+    // LSPOutput implementation
+    
+    public void startTag(String namespaceURI, String localName)
+	    throws SAXException
+    {
+        fixTag();
+        
+        openTag = beginStartTag(namespaceURI, localName, null);
+    }
+
+
+    public void attribute(String namespaceURI, String localName, String value)
+	    throws SAXException
+    {
+        if (openTag == null)
+            throw new SAXException("attribute() must follow startTag()");
+        
+        try {
+            writeAttribute(attributeQName(namespaceURI, localName), value);
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);    
+        }            
+    }
+
+
+    public void endTag(String namespaceURI, String localName)
+	    throws SAXException
+    {
+        endElement(namespaceURI, localName, null);
+    }
+    
+
     // Appendable
     
     public Appendable append(CharSequence cs)
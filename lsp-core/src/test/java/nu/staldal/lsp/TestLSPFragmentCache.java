@@ -0,0 +1,78 @@
+package nu.staldal.lsp;
+
+import org.xml.sax.SAXException;
+
+import junit.framework.TestCase;
+
+public class TestLSPFragmentCache extends TestCase
+{
+    private static LSPFragment fragment(String text)
+    {
+        LSPFragment f = new LSPFragment();
+        f.characters(text.toCharArray(), 0, text.length());
+        return f;
+    }
+    
+    private static String replay(LSPFragment f) throws SAXException
+    {
+        StringHandler sax = new StringHandler();
+        f.replay(sax);
+        return sax.getBuf().toString();
+    }
+
+    public void testGetPut() throws SAXException
+    {
+        LSPFragmentCache cache = new LSPFragmentCache(1000);
+        assertNull(cache.get("a"));
+        cache.put("a", fragment("foo"), 0);
+        assertEquals("foo", replay(cache.get("a")));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        
+        cache.put("a", fragment("bar"), 0);
+        assertEquals("bar", replay(cache.get("a")));
+        assertEquals(1, cache.getCount());
+        assertEquals(fragment("bar").size(), cache.getSize());
+    }
+
+    public void testExpire() throws Exception
+    {
+        LSPFragmentCache cache = new LSPFragmentCache(1000);
+        cache.put("a", fragment("foo"), 1);
+        Thread.sleep(20);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testEvictLeastRecentlyUsed() throws Exception
+    {
+        long size = fragment("0123456789").size();
+        LSPFragmentCache cache = new LSPFragmentCache(size*3);
+        cache.put("a", fragment("aaaaaaaaaa"), 0);
+        Thread.sleep(1);
+        cache.put("b", fragment("bbbbbbbbbb"), 0);
+        Thread.sleep(1);
+        cache.put("c", fragment("cccccccccc"), 0);
+        Thread.sleep(1);
+        assertNotNull(cache.get("a"));
+        Thread.sleep(1);
+        cache.put("d", fragment("dddddddddd"), 0);
+        
+        assertEquals(3, cache.getCount());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    public void testTooLarge()
+    {
+        LSPFragmentCache cache = new LSPFragmentCache(5);
+        cache.put("a", fragment("0123456789"), 0);
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+}
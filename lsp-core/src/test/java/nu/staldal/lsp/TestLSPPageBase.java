@@ -1,6 +1,16 @@
 package nu.staldal.lsp;
 
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import nu.staldal.lsp.wrapper.IntArrayCollection;
+import nu.staldal.xodus.Serializer;
 
 import junit.framework.TestCase;
 
@@ -127,4 +137,65 @@ public class TestLSPPageBase extends TestCase
         LSPPageBase.outputStringWithoutCR(sax, "foo\n\rbar", false);
         assertEquals("foo\n\nbar", sax.getBuf().toString());
     }
+
+    
+    private enum Color { RED }
+
+    public void testConvertObjectToLSP() throws Exception
+    {
+        Object bean = new Object();
+        assertSame(bean, LSPPageBase.convertObjectToLSP(bean));
+        assertSame(bean, LSPPageBase.convertObjectToLSP(bean)); // cached kind
+        assertNull(LSPPageBase.convertObjectToLSP(null));
+        assertSame(Void.TYPE, LSPPageBase.convertObjectToLSP(Void.TYPE));
+        assertEquals("foo", LSPPageBase.convertObjectToLSP(new StringBuilder("foo")));
+        assertEquals("RED", LSPPageBase.convertObjectToLSP(Color.RED));
+        assertEquals("ab", LSPPageBase.convertObjectToLSP(new char[] { 'a', 'b' }));
+        assertTrue(LSPPageBase.convertObjectToLSP(new int[] { 1 }) instanceof IntArrayCollection);
+        assertEquals(Arrays.asList("x", "y"), 
+                     LSPPageBase.convertObjectToLSP(new String[] { "x", "y" }));
+        Integer i = Integer.valueOf(17);
+        assertSame(i, LSPPageBase.convertObjectToLSP(i));
+        List<String> list = new ArrayList<String>();
+        assertSame(list, LSPPageBase.convertObjectToLSP(list));
+    }
+
+    public void testConvertStringTo() throws Exception
+    {
+        assertEquals(2.5, LSPPageBase.convertStringToNumber("2.5"), 0.0);
+        assertTrue(Double.isNaN(LSPPageBase.convertStringToNumber("x")));
+        assertTrue(LSPPageBase.convertStringToBoolean("x"));
+        assertFalse(LSPPageBase.convertStringToBoolean(""));
+        assertEquals("3", LSPPageBase.convertNumberToString(3.0));
+        assertEquals("0.5", LSPPageBase.convertNumberToString(0.5));
+    }
+
+    private String serialize(String text, boolean direct) throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Properties outputProperties = new Properties();
+        outputProperties.setProperty(OutputKeys.METHOD, "xml");
+        outputProperties.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        Serializer ser = Serializer.createSerializer(
+            new StreamResult(os), outputProperties);
+        ser.startDocument();
+        ser.startElement("", "r", "", new AttributesImpl());
+        if (direct)
+            LSPPageBase.outputStringWithoutCR((LSPOutput)ser, text);
+        else
+            LSPPageBase.outputStringWithoutCR(ser, text, false);
+        ser.endElement("", "r", "");
+        ser.endDocument();
+        return os.toString("UTF-8");
+    }
+
+    public void testOutputStringWithoutCRSerializer() throws Exception
+    {
+        for (boolean direct : new boolean[] { false, true })
+        {
+            assertEquals("<r>a&lt;b</r>", serialize("a<b", direct));
+            assertEquals("<r>a\nb\nc\n</r>", serialize("a\r\nb\rc\r", direct));
+            assertEquals("<r>\n\n&amp;</r>", serialize("\r\r\n&", direct));
+        }
+    }
 }
@@ -84,4 +84,47 @@ public class TestHTMLSerializer
 
 		  baos.toString("UTF-8"));
 	}
+
+	@Test
+	public void testEscapeAttribute() throws Exception
+	{
+		AttributesImpl atts = new AttributesImpl();
+		atts.addAttribute("", "title", "title", "CDATA", "a<b & \"c\" &{d}&");
+		
+		ser.startDocument();
+		ser.startElement("", "p", "", atts);
+		ser.characters("a<b & c>d");
+		ser.endElement("", "p", "");
+		ser.endDocument();
+
+		assertEquals(
+			"<p title=\"a<b &amp; &quot;c&quot; &{d}&amp;\">a&lt;b &amp; c&gt;d</p>",
+			baos.toString("UTF-8"));
+	}
+
+	@Test
+	public void testFlushAfter() throws Exception
+	{
+		Attributes atts = new AttributesImpl();
+		
+		ser.setFlushAfter("head");
+		ser.startDocument();
+		ser.startElement("", "html", "", atts);
+		ser.startElement("", "head", "", atts);
+		ser.characters("foo");
+		assertEquals(0, baos.size());
+		ser.endElement("", "HEAD", "");
+		
+		String head = baos.toString("UTF-8");
+		assertTrue(head, head.endsWith("foo</HEAD>"));
+		
+		ser.startElement("", "body", "", atts);
+		ser.characters("bar");
+		ser.endElement("", "body", "");
+		assertEquals(head.length(), baos.size());
+		
+		ser.endElement("", "html", "");
+		ser.endDocument();
+		assertTrue(baos.toString("UTF-8").endsWith("<body>bar</body></html>"));
+	}
 }
@@ -107,4 +107,78 @@ public class TestXMLCharacterEncoderOutputStream
         
         assertEquals("not encoded", "A&#x102;234Zåäö***###***$$$", os.toString(ENC));
     }
+
+    @Test
+    public void testSmallBuffer()
+        throws IOException
+    {
+        encoder = new XMLCharacterEncoder(os, ENC, 64);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i<200; i++)
+        {
+            encoder.write("x\u0102");
+            expected.append("x&#x102;");
+        }
+        encoder.finish();
+        
+        assertEquals("small buffer", expected.toString(), os.toString(ENC));
+    }
+
+    @Test
+    public void testReuseBuffers()
+        throws IOException
+    {
+        encoder.write("first\u0102");
+        encoder.finish();
+        assertEquals("first", "first&#x102;", os.toString(ENC));
+        
+        os = new ByteArrayOutputStream();
+        encoder = new XMLCharacterEncoder(os, ENC);
+        encoder.write("second");
+        encoder.finish();
+        assertEquals("second", "second", os.toString(ENC));
+    }
+
+    @Test
+    public void testSupplementary()
+        throws IOException
+    {
+        encoder.write("a\uD83D\uDE00b");
+        encoder.finish();
+        
+        assertEquals("supplementary", "a&#x1f600;b", os.toString(ENC));
+    }
+
+    @Test
+    public void testUTF8()
+        throws IOException
+    {
+        String text = "ABC \u00e5\u00e4\u00f6 \u0102\u20ac \uD83D\uDE00 xyz";
+        encoder = new XMLCharacterEncoder(os, "UTF-8", 64);
+        for (int i = 0; i<50; i++)
+        {
+            encoder.write(text);
+        }
+        encoder.write("split\uD83D");
+        encoder.flush();
+        encoder.write("\uDE00");
+        encoder.finish();
+        
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i<50; i++)
+        {
+            expected.append(text);
+        }
+        expected.append("split\uD83D\uDE00");
+        assertArrayEquals("UTF-8", expected.toString().getBytes("UTF-8"), 
+            os.toByteArray());
+    }
+
+    @Test(expected=java.io.CharConversionException.class)
+    public void testMalformed()
+        throws IOException
+    {
+        encoder.write("a\uDE00b");
+        encoder.finish();
+    }
 }
@@ -63,4 +63,48 @@ public class TestXMLSerializer
                 os.toString(ENC));        
     }
 
+    @Test
+    public void testStaticText()
+        throws Exception
+    {
+        StaticText shortText = new StaticText("a<b");
+        StaticText longText = new StaticText(
+            "R\u00e4ksm\u00f6rg\u00e5s & \u0102 0123456789012345678901234567890123456789012345678901234567890123456789");
+        
+        ser.startDocument();
+        ser.startElement("", "root", "", new AttributesImpl());
+        ser.characters("x");
+        ser.staticText(shortText);
+        ser.staticText(longText);
+        ser.processingInstruction(javax.xml.transform.Result.PI_DISABLE_OUTPUT_ESCAPING, "");
+        ser.staticText(shortText);
+        ser.processingInstruction(javax.xml.transform.Result.PI_ENABLE_OUTPUT_ESCAPING, "");
+        ser.staticText(shortText);
+        ser.endElement("", "root", "");
+        ser.endDocument();
+        
+        assertEquals(
+                "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<root>xa&lt;bR\u00e4ksm\u00f6rg\u00e5s &amp; &#x102; 0123456789012345678901234567890123456789012345678901234567890123456789a<ba&lt;b</root>",
+                os.toString(ENC));        
+    }
+
+    @Test
+    public void testEscape()
+        throws Exception
+    {
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "a", "a", "CDATA", "x<y & \"z\"> \u0102");
+        
+        ser.startDocument();
+        ser.startElement("", "root", "", atts);
+        ser.characters("<<a & b>> \u0102&");
+        ser.characters("-&-x".toCharArray(), 1, 2);
+        ser.endElement("", "root", "");
+        ser.endDocument();
+        
+        assertEquals(
+                "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<root a=\"x&lt;y &amp; &quot;z&quot;&gt; &#x102;\">&lt;&lt;a &amp; b&gt;&gt; &#x102;&amp;&amp;-</root>",
+                os.toString(ENC));        
+    }
+
 }
@@ -42,6 +42,7 @@ package nu.staldal.lsp.framework;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -66,6 +67,7 @@ public class DispatcherServlet extends HttpServlet
 {
     private LSPManager lspManager;
     private Map<String,Object> serviceCache;
+    private final Object serviceLock = new Object();
     
     private List<String> servicePackages;
     String defaultService;
@@ -97,8 +99,9 @@ public class DispatcherServlet extends HttpServlet
         requestCharset = getInitParameter("RequestCharset");
         
         lspManager = LSPManager.getInstance(getServletContext());
+        lspManager.addUser();
         
-        serviceCache = new HashMap<String,Object>();
+        serviceCache = new ConcurrentHashMap<String,Object>();
 
         String dbName = getServletContext().getInitParameter("nu.staldal.lsp.servlet.framework.DB");        
         if (dbName != null)
@@ -227,8 +230,13 @@ public class DispatcherServlet extends HttpServlet
                     }
                 }           
                     
-                try {		
-                    lspManager.executePage(lspPage, pageParams, request, response);
+                try {
+                    Object fingerprint = pageParams.get(LSPManager.FINGERPRINT_KEY);
+                    if (fingerprint != null)
+                        lspManager.executeCachedPage(lspPage, pageParams, 
+                            fingerprint.toString(), request, response);
+                    else
+                        lspManager.executePage(lspPage, pageParams, request, response);
                 }
                 catch (SAXException e)
                 {
@@ -327,8 +335,14 @@ public class DispatcherServlet extends HttpServlet
         }
         
         serviceCache.clear();
+        
+        lspManager.destroy();
 
-        getServletContext().removeAttribute(getClass().getName());        
+        // unless replaced by another DispatcherServlet in the same context
+        if (getServletContext().getAttribute(DispatcherServlet.class.getName()) == this)
+        {
+            getServletContext().removeAttribute(DispatcherServlet.class.getName());
+        }
     }
 
     
@@ -382,13 +396,19 @@ public class DispatcherServlet extends HttpServlet
      * @throws IllegalAccessException  if the service cannot be instantiated
      * @throws ServletException  if the service fails to initialize
      */
-    public synchronized Object lookupService(String serviceName)
+    public Object lookupService(String serviceName)
         throws InstantiationException, IllegalAccessException, ServletException
     {
         Object s = serviceCache.get(serviceName);
+        if (s != null) return s;
         
-        if (s == null)
+        // only lock when loading, so each Service is initialized once
+        // but lookups of already loaded services never block
+        synchronized (serviceLock)
         {
+            s = serviceCache.get(serviceName);
+            if (s != null) return s;
+
             Class<?> serviceClass = null;
             
             for (Iterator<String> it = servicePackages.iterator(); it.hasNext(); )
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.servlet;
+
+import java.util.*;
+
+import javax.servlet.http.*;
+
+
+/**
+ * Request for an include running in parallel with the page, with its own 
+ * attributes so that it doesn't race with the page or other includes. 
+ * Attributes of the original request are visible unless overridden. 
+ * Other changes to the request, and creating a session (which changes the 
+ * response), throw {@link IllegalStateException}.
+ */
+final class IncludeRequest extends HttpServletRequestWrapper
+{
+	/**
+	 * A <code>null</code> value hides the original attribute.
+	 */
+	private final Map<String,Object> attributes = new HashMap<String,Object>();
+	
+	
+	IncludeRequest(HttpServletRequest request)
+	{
+		super(request);
+	}
+	
+	
+	@Override
+	public Object getAttribute(String name)
+	{
+		if (attributes.containsKey(name))
+			return attributes.get(name);
+		else
+			return super.getAttribute(name);
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public Enumeration getAttributeNames()
+	{
+		Set<String> names = new HashSet<String>();
+		for (Enumeration e = super.getAttributeNames(); e.hasMoreElements(); )
+		{
+			names.add((String)e.nextElement());
+		}
+		for (Map.Entry<String,Object> ent : attributes.entrySet())
+		{
+			if (ent.getValue() == null)
+				names.remove(ent.getKey());
+			else
+				names.add(ent.getKey());
+		}
+		return Collections.enumeration(names);
+	}
+	
+	@Override
+	public void setAttribute(String name, Object value)
+	{
+		attributes.put(name, value);
+	}
+	
+	@Override
+	public void removeAttribute(String name)
+	{
+		attributes.put(name, null);
+	}
+	
+	@Override
+	public void setCharacterEncoding(String env)
+	{
+		throw new IllegalStateException(
+			"The request cannot be changed by a parallel include");
+	}
+	
+	@Override
+	public HttpSession getSession()
+	{
+		return getSession(true);
+	}
+	
+	@Override
+	public HttpSession getSession(boolean create)
+	{
+		HttpSession session = super.getSession(false);
+		if (session == null && create)
+			throw new IllegalStateException(
+				"A session cannot be created by a parallel include");
+		return session;
+	}
+}
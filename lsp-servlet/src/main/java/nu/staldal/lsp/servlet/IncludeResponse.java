@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.servlet;
+
+import java.io.*;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.*;
+
+
+/**
+ * Response for an include running in parallel with the page. The response 
+ * is shared with the page and other includes, so only reading from it is 
+ * allowed, any attempt to change it throws {@link IllegalStateException}.
+ */
+final class IncludeResponse extends HttpServletResponseWrapper
+{
+	IncludeResponse(HttpServletResponse response)
+	{
+		super(response);
+	}
+	
+	
+	private static IllegalStateException readOnly()
+	{
+		return new IllegalStateException(
+			"The response cannot be changed by a parallel include");
+	}
+	
+	
+	@Override
+	public void addCookie(Cookie cookie)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setHeader(String name, String value)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void addHeader(String name, String value)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setIntHeader(String name, int value)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void addIntHeader(String name, int value)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setDateHeader(String name, long date)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void addDateHeader(String name, long date)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setStatus(int sc)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	@Deprecated
+	public void setStatus(int sc, String sm)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void sendError(int sc)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void sendError(int sc, String msg)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void sendRedirect(String location)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setContentType(String type)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setCharacterEncoding(String charset)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setContentLength(int len)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setLocale(java.util.Locale loc)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void setBufferSize(int size)
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void flushBuffer()
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void reset()
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public void resetBuffer()
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public ServletOutputStream getOutputStream()
+	{
+		throw readOnly();
+	}
+	
+	@Override
+	public PrintWriter getWriter()
+	{
+		throw readOnly();
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.servlet;
+
+import java.io.*;
+import java.util.StringTokenizer;
+import java.util.zip.*;
+
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Compresses the output of a page with gzip or deflate.
+ *<p>
+ * The <code>Content-Encoding</code> header is set when the first byte is 
+ * written, so nothing is changed in the response if the page fails before 
+ * producing any output. When writing to a {@link LSPRenderBuffer}, the 
+ * buffer sets the header instead, when it sends its output. 
+ *<p>
+ * Flushing sends what has been compressed so far, the compressor may hold 
+ * back some of the output until it is finished.
+ */
+final class LSPCompressor extends OutputStream
+{
+	private static final int BUFFER_SIZE = 8192;
+	
+	private final HttpServletResponse response;
+	private final OutputStream out;
+	private final String encoding;
+	private final int level;
+	
+	private DeflaterOutputStream compressed = null;
+	private Deflater deflater = null;
+	
+	
+	/**
+	 * @param response  where to set <code>Content-Encoding</code>, 
+	 *                  <code>null</code> if done by someone else
+	 * @param encoding  "gzip" or "deflate"
+	 * @param level     compression level, 1-9
+	 */
+	LSPCompressor(HttpServletResponse response, OutputStream out, 
+			String encoding, int level)
+	{
+		this.response = response;
+		this.out = out;
+		this.encoding = encoding;
+		this.level = level;
+	}
+	
+	
+	/**
+	 * Choose content encoding from an <code>Accept-Encoding</code> header.
+	 * 
+	 * @return "gzip", "deflate", or <code>null</code> if neither is accepted
+	 */
+	static String negotiate(String acceptEncoding)
+	{
+		if (acceptEncoding == null)
+			return null;
+		
+		boolean gzip = false;
+		boolean deflate = false;
+		for (StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+				st.hasMoreTokens(); )
+		{
+			String coding = st.nextToken().trim();
+			boolean accepted = true;
+			int semi = coding.indexOf(';');
+			if (semi > -1)
+			{
+				accepted = !isZeroQ(coding.substring(semi+1).trim());
+				coding = coding.substring(0, semi).trim();
+			}
+			if (!accepted)
+				continue;
+			
+			if (coding.equalsIgnoreCase("gzip") 
+					|| coding.equalsIgnoreCase("x-gzip")
+					|| coding.equals("*"))
+				gzip = true;
+			else if (coding.equalsIgnoreCase("deflate"))
+				deflate = true;
+		}
+		
+		return gzip ? "gzip" : deflate ? "deflate" : null;
+	}
+	
+	
+	private static boolean isZeroQ(String param)
+	{
+		if (!param.startsWith("q=")) 
+			return false;
+		
+		try {
+			return Double.parseDouble(param.substring(2).trim()) <= 0.0;
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+	
+	
+	private OutputStream compressed() throws IOException
+	{
+		if (compressed == null)
+		{
+			if (response != null) 
+				response.setHeader("Content-Encoding", encoding);
+			if (encoding.equals("gzip"))
+			{
+				Gzip gzip = new Gzip(out, level);
+				deflater = gzip.deflater();
+				compressed = gzip;
+			}
+			else
+			{
+				deflater = new Deflater(level);
+				compressed = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+			}
+		}
+		return compressed;
+	}
+	
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		compressed().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		compressed().write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		if (compressed != null) 
+			compressed.flush();
+		else
+			out.flush();
+	}
+	
+	
+	/**
+	 * Write the rest of the compressed output. 
+	 */
+	void finish() throws IOException
+	{
+		if (compressed != null) compressed.finish();
+	}
+	
+	
+	/**
+	 * Release the compressor. Must be invoked when done, also if the 
+	 * page fails.
+	 */
+	void release()
+	{
+		if (deflater != null) 
+		{
+			deflater.end();
+			deflater = null;
+		}
+	}
+	
+	
+	private static final class Gzip extends GZIPOutputStream
+	{
+		Gzip(OutputStream out, int level) throws IOException
+		{
+			super(out, BUFFER_SIZE);
+			def.setLevel(level);
+		}
+		
+		Deflater deflater()
+		{
+			return def;
+		}
+	}
+}
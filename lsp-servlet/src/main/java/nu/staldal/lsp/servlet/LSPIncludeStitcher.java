@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.servlet;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+import nu.staldal.lsp.*;
+import nu.staldal.xodus.StaticText;
+import nu.staldal.xodus.StaticTextHandler;
+
+
+/**
+ * Sits between an LSP page and its output, and lets 
+ * <code>&lt;s:include&gt;</code> run included services on an executor.
+ *<p>
+ * Each include renders into its own {@link LSPFragment}. The page output 
+ * after a running include is recorded, and everything is sent to the 
+ * output in document order as soon as the includes before it are done.
+ *<p>
+ * Flushing has no effect while an include is running.
+ *<p>
+ * Not thread safe, only used by the thread executing the page.
+ */
+class LSPIncludeStitcher implements ContentHandler, StaticTextHandler, Flushable
+{
+	final ContentHandler target;
+	private final ExecutorService executor;
+	
+	/**
+	 * Output not yet sent, in document order: a Future for each include
+	 * and the LSPFragment with the page output after it.
+	 */
+	private final LinkedList<Object> pending = new LinkedList<Object>();
+	
+	/**
+	 * Where page output is recorded, <code>null</code> if it is sent 
+	 * directly to the target.
+	 */
+	private LSPFragment recorder = null;
+	
+	
+	/**
+	 * Create a stitcher, which will implement {@link LSPOutput} if 
+	 * <var>target</var> does.
+	 */
+	static LSPIncludeStitcher create(ContentHandler target, 
+			ExecutorService executor)
+	{
+		if (target instanceof LSPOutput)
+			return new Direct(target, executor);
+		else
+			return new LSPIncludeStitcher(target, executor);
+	}
+	
+	
+	LSPIncludeStitcher(ContentHandler target, ExecutorService executor)
+	{
+		this.target = target;
+		this.executor = executor;
+	}
+	
+	
+	/**
+	 * Start an include, its output will be inserted at the current 
+	 * position.
+	 */
+	void include(Callable<LSPFragment> task)
+		throws SAXException
+	{
+		flushTag();
+		
+		Include include = new Include(task);
+		executor.execute(include);
+		pending.add(include);
+		recorder = new LSPFragment();
+		pending.add(recorder);
+	}
+	
+	
+	/**
+	 * Wait for all includes and send all output to the target.
+	 */
+	void finish()
+		throws SAXException
+	{
+		flushTag();
+		drain(true);
+	}
+	
+	
+	/**
+	 * Abandon all includes, after the page has failed. Includes which 
+	 * have not started are not run, this method waits for the running 
+	 * ones since they use the request and response.
+	 */
+	void cancel()
+	{
+		boolean interrupted = false;
+		for (Object o : pending)
+		{
+			if (!(o instanceof Include) || ((Include)o).abandon())
+				continue;
+			
+			while (true)
+			{
+				try {
+					((Include)o).get();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch (ExecutionException e)
+				{
+					// ignore, the page has already failed
+					break;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		
+		pending.clear();
+		recorder = null;
+	}
+	
+	
+	public void flush()
+		throws IOException
+	{
+		if (recorder == null && target instanceof Flushable)
+		{
+			((Flushable)target).flush();
+		}
+	}
+	
+	
+	/**
+	 * Record any start tag not yet recorded.
+	 */
+	void flushTag()
+		throws SAXException
+	{
+		// no start tags without the ContentHandler interface
+	}
+	
+	
+	/**
+	 * Send output which is ready to the target.
+	 *
+	 * @return where to send page output
+	 */
+	final ContentHandler out()
+		throws SAXException
+	{
+		if (recorder != null)
+		{
+			drain(false);
+		}
+		return (recorder != null) ? recorder : target;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private void drain(boolean wait)
+		throws SAXException
+	{
+		while (!pending.isEmpty())
+		{
+			Object head = pending.getFirst();
+			if (head instanceof Future<?>)
+			{
+				Future<LSPFragment> include = (Future<LSPFragment>)head;
+				if (!wait && !include.isDone()) return;
+				get(include).replay(target);
+			}
+			else
+			{
+				((LSPFragment)head).replay(target);
+			}
+			pending.removeFirst();
+		}
+		recorder = null;
+	}
+	
+	
+	/**
+	 * An include which is either run or abandoned, never both.
+	 */
+	private static final class Include extends FutureTask<LSPFragment>
+	{
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		
+		Include(Callable<LSPFragment> task)
+		{
+			super(task);
+		}
+		
+		@Override
+		public void run()
+		{
+			if (claimed.compareAndSet(false, true))
+				super.run();
+		}
+		
+		/**
+		 * Prevent the include from running.
+		 *
+		 * @return <code>false</code> if it has already started
+		 */
+		boolean abandon()
+		{
+			if (!claimed.compareAndSet(false, true))
+				return false;
+			
+			cancel(false);
+			return true;
+		}
+	}
+	
+	
+	private static LSPFragment get(Future<LSPFragment> include)
+		throws SAXException
+	{
+		try {
+			return include.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SAXException("Interrupted while waiting for include");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable ee = e.getCause();
+			if (ee instanceof SAXException)
+				throw (SAXException)ee;
+			else if (ee instanceof RuntimeException)
+				throw (RuntimeException)ee;
+			else if (ee instanceof Error)
+				throw (Error)ee;
+			else
+				throw new SAXException((Exception)ee);
+		}
+	}
+
+
+    // ContentHandler implementation
+
+	public void setDocumentLocator(Locator locator)
+	{
+		target.setDocumentLocator(locator);
+	}
+
+	public void startDocument()
+		throws SAXException
+	{
+		throw new SAXException("Unexpected startDocument");
+	}
+
+	public void endDocument()
+		throws SAXException
+	{
+		throw new SAXException("Unexpected endDocument");
+	}
+
+	public void startElement(String namespaceURI, String localName,
+			String qName, Attributes atts)
+		throws SAXException
+	{
+		flushTag();
+		out().startElement(namespaceURI, localName, qName, atts);
+	}
+
+	public void endElement(String namespaceURI, String localName, String qName)
+		throws SAXException
+	{
+		flushTag();
+		out().endElement(namespaceURI, localName, qName);
+	}
+
+	public void characters(char[] ch, int start, int length)
+		throws SAXException
+	{
+		flushTag();
+		out().characters(ch, start, length);
+	}
+
+	public void ignorableWhitespace(char[] ch, int start, int length)
+		throws SAXException
+	{
+		flushTag();
+		out().ignorableWhitespace(ch, start, length);
+	}
+
+	public void staticText(StaticText text)
+		throws SAXException
+	{
+		flushTag();
+		ContentHandler out = out();
+		if (out instanceof StaticTextHandler)
+		{
+			((StaticTextHandler)out).staticText(text);
+		}
+		else
+		{
+			char[] ch = text.getChars();
+			out.characters(ch, 0, ch.length);
+		}
+	}
+
+	public void processingInstruction(String target, String data)
+		throws SAXException
+	{
+		flushTag();
+		out().processingInstruction(target, data);
+	}
+
+	public void startPrefixMapping(String prefix, String uri)
+		throws SAXException
+	{
+		flushTag();
+		out().startPrefixMapping(prefix, uri);
+	}
+
+	public void endPrefixMapping(String prefix)
+		throws SAXException
+	{
+		flushTag();
+		out().endPrefixMapping(prefix);
+	}
+
+	public void skippedEntity(String name)
+		throws SAXException
+	{
+		flushTag();
+		out().skippedEntity(name);
+	}
+	
+	
+	/**
+	 * For a target implementing {@link LSPOutput}, so that the page can 
+	 * use it while no include is running.
+	 */
+	static final class Direct extends LSPIncludeStitcher implements LSPOutput
+	{
+		private final LSPOutput direct;
+		
+		/**
+		 * Start tag being recorded, <code>null</code> if none.
+		 */
+		private String tagNamespaceURI;
+		private String tagLocalName;
+		private AttributesImpl tagAtts;
+		
+		Direct(ContentHandler target, ExecutorService executor)
+		{
+			super(target, executor);
+			this.direct = (LSPOutput)target;
+		}
+		
+		@Override
+		void flushTag()
+			throws SAXException
+		{
+			if (tagLocalName != null)
+			{
+				String namespaceURI = tagNamespaceURI;
+				String localName = tagLocalName;
+				tagNamespaceURI = null;
+				tagLocalName = null;
+				
+				// the include before it may be done by now
+				out().startElement(namespaceURI, localName, "", tagAtts);
+			}
+		}
+		
+		public void startTag(String namespaceURI, String localName)
+			throws SAXException
+		{
+			flushTag();
+			ContentHandler out = out();
+			if (out == target)
+			{
+				direct.startTag(namespaceURI, localName);
+			}
+			else
+			{
+				tagNamespaceURI = namespaceURI;
+				tagLocalName = localName;
+				if (tagAtts == null)
+					tagAtts = new AttributesImpl();
+				else
+					tagAtts.clear();
+			}
+		}
+		
+		public void attribute(String namespaceURI, String localName, 
+				String value)
+			throws SAXException
+		{
+			if (tagLocalName != null)
+				tagAtts.addAttribute(namespaceURI, localName, "", "CDATA", value);
+			else
+				direct.attribute(namespaceURI, localName, value);
+		}
+		
+		public void endTag(String namespaceURI, String localName)
+			throws SAXException
+		{
+			flushTag();
+			ContentHandler out = out();
+			if (out == target)
+				direct.endTag(namespaceURI, localName);
+			else
+				out.endElement(namespaceURI, localName, "");
+		}
+		
+		public void text(CharSequence cs)
+			throws SAXException
+		{
+			flushTag();
+			ContentHandler out = out();
+			if (out == target)
+			{
+				direct.text(cs);
+			}
+			else
+			{
+				String s = cs.toString();
+				out.characters(s.toCharArray(), 0, s.length());
+			}
+		}
+	}
+}
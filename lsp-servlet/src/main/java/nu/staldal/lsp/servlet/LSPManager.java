@@ -42,6 +42,8 @@ package nu.staldal.lsp.servlet;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -49,8 +51,10 @@ import javax.servlet.http.*;
 import org.xml.sax.*;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamResult;
 
 import nu.staldal.lsp.*;
+import nu.staldal.xodus.Serializer;
 
 
 /**
@@ -68,6 +72,17 @@ public class LSPManager
 
     private final LocaleBundleFactory localeBundleFactory;
     private final Map<Locale,Map<String,String>> localeBundleCache;	
+    private volatile Map<String,String> defaultLocaleBundle;
+    
+    private final LSPResponseCache responseCache;
+    private final LSPRenderBuffer.ChunkPool renderBufferPool;
+    private final ExecutorService includeExecutor;
+    private final String flushAfter;
+    private final int flushInterval;
+    private final int compressionLevel;
+    
+    // components which call destroy(), guarded by this
+    private int users = 0;
     
 	
 	/**
@@ -112,8 +127,15 @@ public class LSPManager
 		
 		if (manager == null)
 		{
-			manager = new LSPManager(context, servletClassLoader);
-			context.setAttribute(LSPManager.class.getName(), manager);
+			synchronized (LSPManager.class)
+			{
+				manager = (LSPManager)context.getAttribute(LSPManager.class.getName());
+				if (manager == null)
+				{
+					manager = new LSPManager(context, servletClassLoader);
+					context.setAttribute(LSPManager.class.getName(), manager);
+				}
+			}
 		}
 		
 		return manager;
@@ -126,7 +148,7 @@ public class LSPManager
         this.servletClassLoader = servletClassLoader;
 		this.helper = new LSPHelper(servletClassLoader);
         
-        this.localeBundleCache = Collections.synchronizedMap(new HashMap<Locale,Map<String,String>>());
+        this.localeBundleCache = new ConcurrentHashMap<Locale,Map<String,String>>();
         
         String localeBundleFactortClassName = context.getInitParameter(
             "nu.staldal.lsp.servlet.LocaleBundleFactory");
@@ -143,9 +165,113 @@ public class LSPManager
         {
             throw new RuntimeException("Unable to load LocaleBundleFactory", e);    
         }
+        
+        String outputBufferSize = context.getInitParameter(
+            "nu.staldal.lsp.servlet.OutputBufferSize");
+        
+        if (outputBufferSize != null)
+            helper.setOutputBufferSize(Integer.parseInt(outputBufferSize.trim()));
+        
+        String responseCacheSize = context.getInitParameter(
+            "nu.staldal.lsp.servlet.ResponseCacheSize");
+        
+        long maxSize = (responseCacheSize == null) 
+            ? 0 
+            : Long.parseLong(responseCacheSize.trim());
+        responseCache = (maxSize > 0) ? new LSPResponseCache(maxSize) : null;
+        
+        String _renderBufferSize = context.getInitParameter(
+            "nu.staldal.lsp.servlet.RenderBufferSize");
+        
+        int renderBufferSize = (_renderBufferSize == null) 
+            ? 0 
+            : Integer.parseInt(_renderBufferSize.trim());
+        renderBufferPool = (renderBufferSize > 0) 
+            ? new LSPRenderBuffer.ChunkPool(renderBufferSize) 
+            : null;
+        
+        String _parallelIncludes = context.getInitParameter(
+            "nu.staldal.lsp.servlet.ParallelIncludes");
+        
+        int parallelIncludes = (_parallelIncludes == null) 
+            ? 0 
+            : Integer.parseInt(_parallelIncludes.trim());
+        includeExecutor = (parallelIncludes > 0)
+            ? Executors.newFixedThreadPool(parallelIncludes, new IncludeThreadFactory())
+            : null;
+        
+        flushAfter = context.getInitParameter(
+            "nu.staldal.lsp.servlet.FlushAfter");
+        
+        String _flushInterval = context.getInitParameter(
+            "nu.staldal.lsp.servlet.FlushInterval");
+        
+        flushInterval = (_flushInterval == null) 
+            ? 0 
+            : Integer.parseInt(_flushInterval.trim());
+        
+        String _compression = context.getInitParameter(
+            "nu.staldal.lsp.servlet.Compression");
+        
+        compressionLevel = (_compression == null) 
+            ? 0 
+            : Integer.parseInt(_compression.trim());
+        if (compressionLevel < 0 || compressionLevel > 9)
+        {
+            throw new IllegalArgumentException(
+                "nu.staldal.lsp.servlet.Compression must be 0-9: " + _compression);
+        }
 	}
     
     
+    private static final class IncludeThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "LSP include " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+    
+    
+    /**
+     * Register a component, e.g. a Servlet, which shares this LSPManager 
+     * with others and calls {@link #destroy()} when it is destroyed.
+     */
+    public synchronized void addUser()
+    {
+        users++;
+    }
+    
+    
+    /**
+     * Release resources held by this LSPManager, and remove it from the 
+     * {@link javax.servlet.ServletContext}. Call this when the web 
+     * application is shut down, the instance must not be used afterwards.
+     *<p>
+     * If components have been registered with {@link #addUser()}, 
+     * each of them calls this, and resources are released 
+     * when the last one does.
+     */
+    public void destroy()
+    {
+        synchronized (this)
+        {
+            if (users > 0 && --users > 0) return;
+        }
+        
+        context.removeAttribute(LSPManager.class.getName());
+        
+        if (includeExecutor != null)
+        {
+            includeExecutor.shutdown();
+        }
+    }
+    
+    
     /**
      * Obtain the underlaying {@link nu.staldal.lsp.LSPHelper}.
      *
@@ -216,6 +342,29 @@ public class LSPManager
 	 * Executes an LSP page and write the result to a 
 	 * {@link javax.servlet.http.HttpServletResponse}. Uses any stylesheet 
      * specified in the LSP page. 
+     *<p>
+     * If the context parameter 
+     * <code>nu.staldal.lsp.servlet.RenderBufferSize</code> is set, 
+     * up to that many bytes of output is buffered and sent with
+     * <code>Content-Length</code> when the page is complete. 
+     * Longer output is sent while the page is executed. The output is 
+     * still written to the client on the request thread.
+     *<p>
+     * If the context parameter 
+     * <code>nu.staldal.lsp.servlet.ParallelIncludes</code> is set, 
+     * <code>&lt;s:include&gt;</code> elements on the page are executed 
+     * in parallel on a pool with that many threads.
+     *<p>
+     * The output is flushed to the client after each end tag of the element 
+     * named by the context parameter 
+     * <code>nu.staldal.lsp.servlet.FlushAfter</code>, e.g. "head", and 
+     * each time as many bytes as the context parameter 
+     * <code>nu.staldal.lsp.servlet.FlushInterval</code> have been written, 
+     * if set. Flushing sends any buffered output.
+     *<p>
+     * If the context parameter <code>nu.staldal.lsp.servlet.Compression</code>
+     * is set to a compression level 1-9, the output is compressed with gzip 
+     * or deflate when the request accepts it.
 	 *
  	 * @param thePage     the LSP page
 	 * @param lspParams   parameters to the LSP page
@@ -230,13 +379,174 @@ public class LSPManager
 		throws SAXException, IOException
 	{		
         response.setContentType(helper.getContentType(thePage));
-            
-        OutputStream out = response.getOutputStream();        
-        helper.executePage(thePage, lspParams, 
-            new LSPServletContext(context, request, response, this), out);
+        
+        render(thePage, lspParams, null, request, response);
     }
 
     
+    /**
+     * Use this key to store a fingerprint of the page parameters in the
+     * page parameters from a service in
+     * {@link nu.staldal.lsp.framework.DispatcherServlet}, to have the
+     * response cached with {@link #executeCachedPage}.
+     * The value stored for this key must be of type {@link java.lang.String}.
+     */
+    public static final String FINGERPRINT_KEY = "nu.staldal.lsp.servlet.FINGERPRINT";
+
+
+	/**
+	 * Executes an LSP page like
+	 * {@link #executePage(LSPPage,Map,HttpServletRequest,HttpServletResponse)},
+	 * but use the response cache for GET and HEAD requests.
+	 *<p>
+	 * The response is cached with the page name, the user's locale and the
+	 * given fingerprint as key, so the fingerprint must identify everything
+	 * else the response depends on. The user's locale is the session locale
+	 * if set, otherwise the locales from the <code>Accept-Language</code>
+	 * header, and the response is sent with 
+	 * <code>Vary: Accept-Language</code>. If compression is enabled, the
+	 * response is cached compressed, once for each content encoding. 
+	 * The response is sent with an ETag, and a request with
+	 * a matching <code>If-None-Match</code> header gets status 304
+	 * (Not Modified) without a body. Anything the page does with the
+	 * request and response other than writing the body is only done when
+	 * it is rendered.
+	 *<p>
+	 * The response cache is enabled with the context parameter
+	 * <code>nu.staldal.lsp.servlet.ResponseCacheSize</code>, the maximum
+	 * total size of the cached responses in bytes. If not enabled, this
+	 * method is the same as
+	 * {@link #executePage(LSPPage,Map,HttpServletRequest,HttpServletResponse)}.
+	 *
+ 	 * @param thePage      the LSP page
+	 * @param lspParams    parameters to the LSP page
+	 * @param fingerprint  fingerprint of the parameters
+	 * @param request      the {@link javax.servlet.http.HttpServletRequest}
+	 * @param response     the {@link javax.servlet.http.HttpServletResponse}
+     *
+     * @throws SAXException  if any error occurs while executing the page
+     * @throws IOException   if any I/O error occurs while executing the page
+	 */
+	public void executeCachedPage(final LSPPage thePage,
+			final Map<String, Object> lspParams, String fingerprint,
+			final HttpServletRequest request, final HttpServletResponse response)
+		throws SAXException, IOException
+	{
+		String method = request.getMethod();
+		if (responseCache == null
+				|| !("GET".equals(method) || "HEAD".equals(method)))
+		{
+			executePage(thePage, lspParams, request, response);
+			return;
+		}
+
+		final String encoding = (compressionLevel > 0)
+			? LSPCompressor.negotiate(request.getHeader("Accept-Encoding"))
+			: null;
+		String key = thePage.getPageName() + '@' + thePage.getTimeCompiled()
+			+ '\n' + getLocaleKey(request) 
+			+ '\n' + ((encoding == null) ? "identity" : encoding)
+			+ '\n' + fingerprint;
+		LSPResponseCache.Response cached = responseCache.get(key,
+			new LSPResponseCache.Renderer() {
+				public String render(OutputStream out)
+					throws SAXException, IOException
+				{
+					LSPServletContext lspContext = new LSPServletContext(
+						context, request, response, LSPManager.this);
+					if (encoding == null)
+					{
+						helper.executePage(thePage, lspParams, lspContext, out);
+						return helper.getContentType(thePage);
+					}
+					
+					LSPCompressor compressor = new LSPCompressor(null, out, 
+						encoding, compressionLevel);
+					try {
+						helper.executePage(thePage, lspParams, lspContext, 
+							compressor);
+						compressor.finish();
+					}
+					finally
+					{
+						compressor.release();
+					}
+					return helper.getContentType(thePage);
+				}
+			});
+
+		response.addHeader("Vary", "Accept-Language");
+		if (compressionLevel > 0)
+			response.addHeader("Vary", "Accept-Encoding");
+		response.setHeader("ETag", cached.etag);
+		if (etagMatches(request.getHeader("If-None-Match"), cached.etag))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setContentType(cached.contentType);
+		if (encoding != null)
+			response.setHeader("Content-Encoding", encoding);
+		response.setContentLength(cached.body.length);
+		response.getOutputStream().write(cached.body);
+	}
+
+
+	/**
+	 * The locales <code>lang</code> and date formatting may use, 
+	 * see {@link #getLocalizedString(HttpServletRequest,String,String)}.
+	 */
+	private static String getLocaleKey(HttpServletRequest request)
+	{
+		HttpSession theSession = request.getSession(false);
+		if (theSession != null)
+		{
+			Locale sessionLocale = (Locale)theSession.getAttribute(LOCALE_KEY);
+			if (sessionLocale != null)
+				return sessionLocale.toString();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Enumeration<?> userLocales = request.getLocales();
+				userLocales.hasMoreElements(); )
+		{
+			if (sb.length() > 0) sb.append(',');
+			sb.append(userLocales.nextElement());
+		}
+		return sb.toString();
+	}
+
+
+	private static boolean etagMatches(String ifNoneMatch, String etag)
+	{
+		if (ifNoneMatch == null)
+			return false;
+
+		for (StringTokenizer st = new StringTokenizer(ifNoneMatch, ",");
+				st.hasMoreTokens(); )
+		{
+			String tag = st.nextToken().trim();
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Get the response cache used by {@link #executeCachedPage}.
+	 *
+	 * @return <code>null</code> if the response cache is not enabled
+	 */
+	public LSPResponseCache getResponseCache()
+	{
+		return responseCache;
+	}
+
+
     /**
      * Executes an LSP page and transform the the result with an
      * XSLT stylesheet.
@@ -301,10 +611,99 @@ public class LSPManager
 		
         response.setContentType(helper.getContentType(compiledStylesheet));
             
-        OutputStream out = response.getOutputStream();        
-        helper.executePage(thePage, lspParams, 
-            new LSPServletContext(context, request, response, this), 
-            compiledStylesheet, out);
+        render(thePage, lspParams, compiledStylesheet, request, response);
+    }
+    
+    
+    /**
+     * @param compiledStylesheet  <code>null</code> to use any stylesheet
+     *                            specified in the LSP page 
+     */
+    private void render(LSPPage thePage, Map<String, Object> lspParams, 
+                        Templates compiledStylesheet,
+                        HttpServletRequest request, HttpServletResponse response)
+        throws SAXException, IOException
+    {
+        LSPRenderBuffer buffer = (renderBufferPool != null)
+            ? new LSPRenderBuffer(response, renderBufferPool)
+            : null;
+        OutputStream out = (buffer != null) 
+            ? buffer 
+            : response.getOutputStream();
+        
+        LSPCompressor compressor = null;
+        if (compressionLevel > 0)
+        {
+            response.addHeader("Vary", "Accept-Encoding");
+            String encoding = LSPCompressor.negotiate(
+                request.getHeader("Accept-Encoding"));
+            if (encoding != null)
+            {
+                if (buffer != null) buffer.setContentEncoding(encoding);
+                compressor = new LSPCompressor(
+                    (buffer != null) ? null : response, out, encoding, 
+                    compressionLevel);
+                out = compressor;
+            }
+        }
+        
+        try {
+            render(thePage, lspParams, compiledStylesheet, 
+                new LSPServletContext(context, request, response, this), out);
+            if (compressor != null) compressor.finish();
+            if (buffer != null) buffer.commit();
+        }
+        finally
+        {
+            if (compressor != null) compressor.release();
+            if (buffer != null) buffer.release();
+        }
+    }
+    
+    
+    private void render(LSPPage thePage, Map<String, Object> lspParams, 
+                        Templates compiledStylesheet,
+                        LSPServletContext lspContext, OutputStream out)
+        throws SAXException, IOException
+    {
+        if (flushInterval > 0)
+        {
+            out = new AutoFlushOutputStream(out, flushInterval);
+        }
+        
+        StreamResult result = new StreamResult(out);
+        ContentHandler sax = (compiledStylesheet == null)
+            ? helper.createOutputHandler(thePage, lspContext, result)
+            : helper.createOutputHandler(thePage, lspContext, 
+                compiledStylesheet, result);
+        
+        if (flushAfter != null && sax instanceof Serializer)
+        {
+            ((Serializer)sax).setFlushAfter(flushAfter);
+        }
+        
+        if (includeExecutor == null)
+        {
+            sax.startDocument();
+            thePage.execute(sax, lspParams, lspContext);
+            sax.endDocument();
+            return;
+        }
+        
+        LSPIncludeStitcher stitcher = 
+            LSPIncludeStitcher.create(sax, includeExecutor);
+        boolean done = false;
+        try {
+            sax.startDocument();
+            thePage.execute(stitcher, lspParams, lspContext);
+            stitcher.finish();
+            sax.endDocument();
+            done = true;
+        }
+        finally
+        {
+            if (!done) stitcher.cancel();
+        }
     }
 
 
@@ -485,11 +884,18 @@ public class LSPManager
     private Map<String,String> loadBundle(Locale locale)
        throws Exception
     {
-        Map<String,String> localeBundle = localeBundleCache.get(locale);
+        // the default bundle has no locale, which ConcurrentHashMap cannot use as key
+        Map<String,String> localeBundle = (locale == null)
+            ? defaultLocaleBundle
+            : localeBundleCache.get(locale);
         if (localeBundle == null)
         {
             localeBundle = localeBundleFactory.loadBundle(locale);
-            if (localeBundle != null)
+            if (localeBundle != null && locale == null)
+            {
+                defaultLocaleBundle = localeBundle;
+            }
+            else if (localeBundle != null)
             {
                 localeBundleCache.put(locale, localeBundle);    
             }
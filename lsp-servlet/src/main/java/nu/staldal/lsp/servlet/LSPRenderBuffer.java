@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.servlet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Buffers the output of a page in pooled chunks, and sends it with 
+ * <code>Content-Length</code> when the page is complete. If the output 
+ * exceeds the budget or is flushed, the buffered output is sent and the 
+ * rest is written directly to the response. 
+ *<p>
+ * Nothing is sent if the page fails before the budget is exceeded, so 
+ * the response can still be reset. This includes the 
+ * <code>Content-Encoding</code> header, which is set when the output is 
+ * sent.
+ *<p>
+ * This only avoids partial responses and chunked transfer encoding. 
+ * The buffered output is written to the client on the request thread 
+ * when the page is complete, so a slow client still holds the thread; 
+ * Servlet 2.5 has no asynchronous output.
+ */
+final class LSPRenderBuffer extends OutputStream
+{
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * Chunks which are reused across requests by buffers with the same 
+	 * budget. Keeps at most one full buffer's worth of chunks per processor.
+	 */
+	static final class ChunkPool
+	{
+		final int budget;
+		final int chunkSize;
+		private final int maxChunks;
+		
+		private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+		private final AtomicInteger pooled = new AtomicInteger();
+
+		/**
+		 * @param budget  maximum number of bytes to buffer per page
+		 */
+		ChunkPool(int budget)
+		{
+			this.budget = budget;
+			this.chunkSize = Math.min(budget, CHUNK_SIZE);
+			int chunksPerBuffer = (budget + chunkSize - 1) / chunkSize;
+			this.maxChunks = chunksPerBuffer 
+				* Runtime.getRuntime().availableProcessors();
+		}
+		
+		byte[] take()
+		{
+			byte[] chunk = chunks.poll();
+			if (chunk == null)
+				return new byte[chunkSize];
+			pooled.decrementAndGet();
+			return chunk;
+		}
+		
+		void give(byte[] chunk)
+		{
+			if (pooled.incrementAndGet() <= maxChunks)
+				chunks.offer(chunk);
+			else
+				pooled.decrementAndGet();
+		}
+	}
+	
+	private final HttpServletResponse response;
+	private final ChunkPool pool;
+	private final int budget;
+	private final int chunkSize;
+	
+	private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+	private byte[] current = null;
+	private int pos;
+	private int size = 0;
+	private OutputStream direct = null;
+	private String contentEncoding = null;
+	
+	
+	LSPRenderBuffer(HttpServletResponse response, ChunkPool pool)
+	{
+		this.response = response;
+		this.pool = pool;
+		this.budget = pool.budget;
+		this.chunkSize = pool.chunkSize;
+		this.pos = chunkSize;
+	}
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (direct == null && size+1 > budget) spill();
+		if (direct != null)
+		{
+			direct.write(b);
+			return;
+		}
+		
+		if (pos == chunkSize) nextChunk();
+		current[pos++] = (byte)b;
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (direct == null && size+len > budget) spill();
+		if (direct != null)
+		{
+			direct.write(b, off, len);
+			return;
+		}
+		
+		size += len;
+		while (len > 0)
+		{
+			if (pos == chunkSize) nextChunk();
+			int n = Math.min(len, chunkSize-pos);
+			System.arraycopy(b, off, current, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	/**
+	 * Send the buffered output now, and write the rest directly.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (direct == null) spill();
+		direct.flush();
+	}
+	
+	
+	/**
+	 * Set the <code>Content-Encoding</code> header when the output is sent.
+	 */
+	void setContentEncoding(String contentEncoding)
+	{
+		this.contentEncoding = contentEncoding;
+	}
+	
+	
+	/**
+	 * Send the buffered output, if not already sent.
+	 */
+	void commit() throws IOException
+	{
+		if (direct == null)
+		{
+			sendHeaders();
+			response.setContentLength(size);
+			writeChunks(response.getOutputStream());
+		}
+	}
+	
+	
+	/**
+	 * Return the chunks to the pool. Must be invoked when done, 
+	 * also if the page fails.
+	 */
+	void release()
+	{
+		for (byte[] chunk : chunks)
+		{
+			pool.give(chunk);
+		}
+		chunks.clear();
+		current = null;
+		pos = chunkSize;
+	}
+
+	
+	private void nextChunk()
+	{
+		current = pool.take();
+		chunks.add(current);
+		pos = 0;
+	}
+	
+	
+	private void sendHeaders()
+	{
+		if (contentEncoding != null)
+			response.setHeader("Content-Encoding", contentEncoding);
+	}
+	
+	
+	private void spill() throws IOException
+	{
+		sendHeaders();
+		direct = response.getOutputStream();
+		writeChunks(direct);
+		release();
+	}
+	
+	
+	private void writeChunks(OutputStream os) throws IOException
+	{
+		for (int i = 0; i < chunks.size(); i++)
+		{
+			os.write(chunks.get(i), 0, 
+				(i == chunks.size()-1) ? pos : chunkSize);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2008, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lsp.servlet;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xml.sax.SAXException;
+
+
+/**
+ * Cache of whole rendered responses, used by 
+ * {@link LSPManager#executeCachedPage}.
+ *<p>
+ * Bounded by the total size of the responses. When the bound is exceeded, 
+ * the least recently used responses are evicted. Concurrent requests for a 
+ * response which is being rendered wait for that rendering instead of 
+ * rendering it again.
+ *<p>
+ * This class is thread-safe.
+ */
+public final class LSPResponseCache
+{
+	/**
+	 * A rendered response.
+	 */
+	static final class Response
+	{
+		final byte[] body;
+		final String contentType;
+		final String etag;
+		
+		Response(byte[] body, String contentType, String etag)
+		{
+			this.body = body;
+			this.contentType = contentType;
+			this.etag = etag;
+		}
+	}
+	
+	
+	/**
+	 * Renders a response on cache miss.
+	 */
+	interface Renderer
+	{
+		/**
+		 * @param out  where to write the response body 
+		 * 
+		 * @return the content type
+		 */
+		String render(OutputStream out) throws SAXException, IOException;
+	}
+	
+	
+	private static final class Entry
+	{
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Response response;
+		volatile long lastAccess = System.nanoTime();
+	}
+	
+	private final ConcurrentMap<String,Entry> entries = 
+		new ConcurrentHashMap<String,Entry>();
+	private final Object evictionLock = new Object();
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final long maxSize;
+	
+	
+	/**
+	 * @param maxSize  maximum total size of the responses, in bytes
+	 */
+	LSPResponseCache(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+	
+	
+	/**
+	 * Get a response, render it if not found. 
+	 */
+	Response get(String key, Renderer renderer)
+		throws SAXException, IOException
+	{
+		Entry e = entries.get(key);
+		if (e == null)
+		{
+			Entry newEntry = new Entry();
+			e = entries.putIfAbsent(key, newEntry);
+			if (e == null)
+			{
+				misses.incrementAndGet();
+				return render(key, newEntry, renderer);
+			}
+		}
+		
+		try {
+			e.done.await();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		
+		Response r = e.response;
+		if (r == null)
+		{
+			// rendering failed, try again without caching
+			misses.incrementAndGet();
+			return render(renderer);
+		}
+		
+		e.lastAccess = System.nanoTime();
+		hits.incrementAndGet();
+		return r;
+	}
+	
+	
+	private Response render(String key, Entry entry, Renderer renderer)
+		throws SAXException, IOException
+	{
+		Response r = null;
+		try {
+			r = render(renderer);
+			entry.response = r;
+		}
+		finally
+		{
+			if (r == null || r.body.length > maxSize)
+				entries.remove(key, entry);
+			entry.done.countDown();
+		}
+		
+		if (r.body.length <= maxSize 
+				&& size.addAndGet(r.body.length) > maxSize)
+			evict();
+			
+		return r;
+	}
+	
+	
+	private static Response render(Renderer renderer)
+		throws SAXException, IOException
+	{
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+		String contentType = renderer.render(new DigestOutputStream(body, md));
+
+		StringBuilder etag = new StringBuilder(34);
+		etag.append('"');
+		for (byte b : md.digest())
+		{
+			etag.append(Character.forDigit((b >> 4) & 0xF, 16));
+			etag.append(Character.forDigit(b & 0xF, 16));
+		}
+		etag.append('"');
+		
+		return new Response(body.toByteArray(), contentType, etag.toString());
+	}
+
+	
+	private void evict()
+	{
+		synchronized (evictionLock)
+		{
+			if (size.get() <= maxSize)
+				return;
+
+			// snapshot the access times, they may change while sorting
+			List<Candidate> lru = new ArrayList<Candidate>(entries.size());
+			for (Map.Entry<String,Entry> ent : entries.entrySet())
+			{
+				if (ent.getValue().response != null)
+					lru.add(new Candidate(ent.getKey(), ent.getValue()));
+			}
+			Collections.sort(lru);
+			
+			for (Candidate c : lru)
+			{
+				if (size.get() <= maxSize)
+					break;
+				if (entries.remove(c.key, c.entry))
+				{
+					size.addAndGet(-c.entry.response.body.length);
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	
+	private static final class Candidate implements Comparable<Candidate>
+	{
+		final String key;
+		final Entry entry;
+		final long lastAccess;
+		
+		Candidate(String key, Entry entry)
+		{
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+		
+		public int compareTo(Candidate o)
+		{
+			return (lastAccess < o.lastAccess) ? -1 
+				: ((lastAccess == o.lastAccess) ? 0 : 1);
+		}
+	}
+	
+	
+	/**
+	 * Remove all responses. The counters are not reset.
+	 */
+	public void clear()
+	{
+		for (Map.Entry<String,Entry> ent : entries.entrySet())
+		{
+			Response r = ent.getValue().response;
+			if (r != null && entries.remove(ent.getKey(), ent.getValue()))
+				size.addAndGet(-r.body.length);
+		}
+	}
+	
+	/**
+	 * @return maximum total size of the responses, in bytes
+	 */
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return the total size of the stored responses, in bytes
+	 */
+	public long getSize()
+	{
+		return size.get();
+	}
+
+	/**
+	 * @return the number of requests served from the cache, including 
+	 *         those which waited for another request to render
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of requests which rendered the page
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of responses removed to make room for others
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+}
@@ -43,6 +43,7 @@ package nu.staldal.lsp.servlet;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import javax.servlet.*;
 
@@ -115,69 +116,26 @@ public class ServletExtLib extends SimpleExtLib
                     "Included service \'"+name+"\' not found");    
             }
     
-            Map<String,Object> lspParams = new HashMap<String,Object>();
-            String templateName;
-            for (int i = 0; i < atts.getLength(); i++)
+            if (out instanceof LSPIncludeStitcher)
             {
-                String aName = atts.getLocalName(i);
-                String aValue = atts.getValue(i);
-                
-                if (!aName.equals("name"))
-                {
-                    context.getServletRequest().setAttribute(Service.INCLUDE_ATTR_PREFIX+aName, aValue);    
-                }                    
-            }
-            context.getServletRequest().setAttribute(
-                ContentHandler.class.getName(), out); 
-            try {
-                templateName = 
-                    dispatcher.executeService(service, context.getServletRequest(), 
-                                    context.getServletResponse(),
-                                    lspParams, 
-                                    Service.REQUEST_INCLUDE);
-            }
-            catch (ServletException e)
-            {
-                Throwable ee = e.getRootCause();
-                if (ee == null)
-                    throw new SAXException(e);
-                else if (ee instanceof SAXException)
-                    throw (SAXException)ee;
-                else if (ee instanceof RuntimeException)
-                    throw (RuntimeException)ee;
-                else if (ee instanceof Error)
-                    throw (Error)ee;
-                else
-                    throw new SAXException((Exception)ee);
-            }
-            catch (java.io.IOException e)
-            {
-                throw new SAXException(e);
-            }
-            context.getServletRequest().removeAttribute(
-                ContentHandler.class.getName()); 
-            
-            if (templateName == null || templateName.length() == 0)
-            {
-                return null;
-            }
-            else if (templateName.charAt(0) == '*')
-            {
-                throw new LSPException( 
-                    "Included service \'"+name+"\' attempt to forward");                    
+                includeParallel(dispatcher, service, name, atts, 
+                    (LSPIncludeStitcher)out, context);
             }
             else
             {
-                LSPPage lspPage = context.getLSPManager().getPage(templateName);
-                if (lspPage == null)
+                for (int i = 0; i < atts.getLength(); i++)
                 {
-                    throw new LSPException("Included template \'"+templateName+"\' not found");
-                }           
+                    String aName = atts.getLocalName(i);
+                    String aValue = atts.getValue(i);
                     
-                lspPage.execute(out, lspParams, context);
-                                    
-                return null;
+                    if (!aName.equals("name"))
+                    {
+                        context.getServletRequest().setAttribute(Service.INCLUDE_ATTR_PREFIX+aName, aValue);    
+                    }                    
+                }
+                include(dispatcher, service, name, out, context);
             }
+            return null;
         }
         else
         {
@@ -186,6 +144,101 @@ public class ServletExtLib extends SimpleExtLib
 	}
 		
 
+    /**
+     * Start an included service on the executor of <var>stitcher</var>, 
+     * with its own request attributes.
+     */
+    private static void includeParallel(final DispatcherServlet dispatcher, 
+                final Object service, final String name, Attributes atts, 
+                LSPIncludeStitcher stitcher, LSPServletContext context)
+        throws SAXException
+    {
+        IncludeRequest request = new IncludeRequest(context.getServletRequest());
+        for (int i = 0; i < atts.getLength(); i++)
+        {
+            String aName = atts.getLocalName(i);
+            String aValue = atts.getValue(i);
+            
+            if (!aName.equals("name"))
+            {
+                request.setAttribute(Service.INCLUDE_ATTR_PREFIX+aName, aValue);    
+            }                    
+        }
+        
+        final LSPServletContext includeContext = new LSPServletContext(
+            context.getServletContext(), request, 
+            new IncludeResponse(context.getServletResponse()), 
+            context.getLSPManager()); 
+        
+        stitcher.include(new Callable<LSPFragment>() {
+            public LSPFragment call() throws SAXException
+            {
+                LSPFragment fragment = new LSPFragment();
+                include(dispatcher, service, name, fragment, includeContext);
+                return fragment;
+            }
+        });
+    }
+    
+    
+    private static void include(DispatcherServlet dispatcher, Object service, 
+                String name, ContentHandler out, LSPServletContext context)
+        throws SAXException
+    {
+        Map<String,Object> lspParams = new HashMap<String,Object>();
+        String templateName;
+        context.getServletRequest().setAttribute(
+            ContentHandler.class.getName(), out); 
+        try {
+            templateName = 
+                dispatcher.executeService(service, context.getServletRequest(), 
+                                context.getServletResponse(),
+                                lspParams, 
+                                Service.REQUEST_INCLUDE);
+        }
+        catch (ServletException e)
+        {
+            Throwable ee = e.getRootCause();
+            if (ee == null)
+                throw new SAXException(e);
+            else if (ee instanceof SAXException)
+                throw (SAXException)ee;
+            else if (ee instanceof RuntimeException)
+                throw (RuntimeException)ee;
+            else if (ee instanceof Error)
+                throw (Error)ee;
+            else
+                throw new SAXException((Exception)ee);
+        }
+        catch (java.io.IOException e)
+        {
+            throw new SAXException(e);
+        }
+        context.getServletRequest().removeAttribute(
+            ContentHandler.class.getName()); 
+        
+        if (templateName == null || templateName.length() == 0)
+        {
+            return;
+        }
+        else if (templateName.charAt(0) == '*')
+        {
+            throw new LSPException( 
+                "Included service \'"+name+"\' attempt to forward");                    
+        }
+        else
+        {
+            LSPPage lspPage = context.getLSPManager().getPage(templateName);
+            if (lspPage == null)
+            {
+                throw new LSPException("Included template \'"+templateName+"\' not found");
+            }           
+                
+            lspPage.execute(out, lspParams, context);
+        }
+    }
+		
+
 	/**
 	 * Extension function <code>lang(key)</code>.
      * 
@@ -0,0 +1,37 @@
+package nu.staldal.lsp.framework;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nu.staldal.lsp.servlet.LSPManager;
+
+public class CachedService implements Service
+{
+    private int instanceCounter = 0;
+    
+    public void init(ServletContext context) throws ServletException
+    {
+    }
+    
+    public String execute(HttpServletRequest request,
+            HttpServletResponse response, Map<String, Object> pageParams,
+            int requestType) throws ServletException, IOException
+    {
+        instanceCounter++;
+        
+        String param = request.getParameter("param");
+        pageParams.put(LSPManager.FINGERPRINT_KEY, param);
+        pageParams.put("msg", "CachedService: param=" + param + " instanceCounter="+instanceCounter);
+        
+        return "TestPage";
+    }
+
+    public void destroy()
+    {
+    }
+}
@@ -0,0 +1,67 @@
+package nu.staldal.lsp.framework;
+
+import nu.staldal.lsp.compiler.LSPCompilerHelper;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Compiles LSP pages from <code>src/test/resources/lspPages</code> into a
+ * class directory of its own, which is used to load pages until
+ * {@link #destroy()}, and creates {@link DispatcherServlet}s for the
+ * test services.
+ */
+public class FrameworkFixture
+{
+    private final File classDir;
+    private final ClassLoader savedClassLoader;
+    private final LSPCompilerHelper lspCompilerHelper;
+
+    public FrameworkFixture(String classDirName, String... pageNames)
+        throws Exception
+    {
+        classDir = new File(classDirName);
+        classDir.mkdir();
+        savedClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[] { classDir.toURL() }));
+
+        lspCompilerHelper = new LSPCompilerHelper();
+        lspCompilerHelper.setTargetDir(classDir);
+        lspCompilerHelper.setStartDir(new File(new File(new File(new File("src"), "test"), "resources"), "lspPages"));
+        compile(pageNames);
+    }
+
+    public void compile(String... pageNames)
+        throws Exception
+    {
+        for (String pageName : pageNames)
+        {
+            lspCompilerHelper.doCompile(pageName + ".lsp", true);
+        }
+    }
+
+    /**
+     * @param initParams  additional context init parameters, as name/value pairs
+     */
+    public DispatcherServlet createServlet(String... initParams)
+        throws Exception
+    {
+        ServletContextMock servletContextMock = new ServletContextMock();
+        servletContextMock.setInitParameter("ServicePackages", "nu.staldal.lsp.framework");
+        for (int i = 0; i<initParams.length; i+=2)
+        {
+            servletContextMock.setInitParameter(initParams[i], initParams[i+1]);
+        }
+        DispatcherServlet dispatcherServlet = new DispatcherServlet();
+        dispatcherServlet.init(servletContextMock);
+        return dispatcherServlet;
+    }
+
+    public void destroy()
+    {
+        Thread.currentThread().setContextClassLoader(savedClassLoader);
+        for (File f : classDir.listFiles()) { f.delete(); }
+        classDir.delete();
+    }
+}
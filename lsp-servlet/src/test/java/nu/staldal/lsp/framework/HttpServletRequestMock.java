@@ -4,9 +4,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -31,6 +33,26 @@ public class HttpServletRequestMock implements HttpServletRequest
         parameters.put(name, new String[] { value });
     }    
 
+    private Hashtable<String,String> headers = new Hashtable<String,String>();
+    private String method = null;
+    
+    public void setHeader(String name, String value)
+    {
+        headers.put(name, value);
+    }    
+
+    public void setMethod(String method)
+    {
+        this.method = method;
+    }    
+
+    private List<Locale> locales = Collections.singletonList(Locale.getDefault());
+    
+    public void setLocales(Locale... locales)
+    {
+        this.locales = Arrays.asList(locales);
+    }    
+
     private final String servletPath;
     private final String pathInfo;
     
@@ -71,8 +93,7 @@ public class HttpServletRequestMock implements HttpServletRequest
 
     public String getHeader(String name)
     {
-        // nothing to do
-        return null;
+        return headers.get(name);
     }
 
     public Enumeration<?> getHeaderNames()
@@ -95,8 +116,7 @@ public class HttpServletRequestMock implements HttpServletRequest
 
     public String getMethod()
     {
-        // nothing to do
-        return null;
+        return method;
     }
 
     public String getPathInfo()
@@ -248,14 +268,12 @@ public class HttpServletRequestMock implements HttpServletRequest
 
     public Locale getLocale()
     {
-        // nothing to do
-        return null;
+        return locales.get(0);
     }
 
     public Enumeration<?> getLocales()
     {
-        // nothing to do
-        return null;
+        return Collections.enumeration(locales);
     }
 
     public String getParameter(String name)
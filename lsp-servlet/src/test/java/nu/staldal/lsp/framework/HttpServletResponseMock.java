@@ -2,7 +2,9 @@ package nu.staldal.lsp.framework;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
@@ -14,6 +16,8 @@ public class HttpServletResponseMock implements HttpServletResponse
     
     private int sc = SC_OK;
     private String msg = null;
+    private int contentLength = -1;
+    private final Map<String,String> headers = new HashMap<String,String>();
 
     public byte[] toByteArray()
     {
@@ -39,8 +43,8 @@ public class HttpServletResponseMock implements HttpServletResponse
 
     public void addHeader(String name, String value)
     {
-        // nothing to do
-
+        String old = headers.get(name);
+        headers.put(name, (old == null) ? value : old + ", " + value);
     }
 
     public void addIntHeader(String name, int value)
@@ -106,8 +110,7 @@ public class HttpServletResponseMock implements HttpServletResponse
 
     public void setHeader(String name, String value)
     {
-        // nothing to do
-
+        headers.put(name, value);
     }
 
     public void setIntHeader(String name, int value)
@@ -118,8 +121,7 @@ public class HttpServletResponseMock implements HttpServletResponse
 
     public void setStatus(int sc)
     {
-        // nothing to do
-
+        this.sc = sc;
     }
 
     @SuppressWarnings("deprecation")
@@ -202,8 +204,7 @@ public class HttpServletResponseMock implements HttpServletResponse
 
     public void setContentLength(int len)
     {
-        // nothing to do
-
+        contentLength = len;
     }
 
     public void setContentType(String type)
@@ -227,4 +228,14 @@ public class HttpServletResponseMock implements HttpServletResponse
     {
         return sc;
     }
+
+    public int getContentLength()
+    {
+        return contentLength;
+    }
+
+    public String getHeader(String name)
+    {
+        return headers.get(name);
+    }
 }
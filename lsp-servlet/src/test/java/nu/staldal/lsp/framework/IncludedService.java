@@ -0,0 +1,54 @@
+package nu.staldal.lsp.framework;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IncludedService extends EasyService
+{
+    /**
+     * Number of slow includes executing right now.
+     */
+    static final AtomicInteger running = new AtomicInteger();
+    
+    @PageParameter
+    public String msg;
+
+    @Override
+    public String execute() throws Exception
+    {
+        Object n = request.getAttribute(INCLUDE_ATTR_PREFIX+"n");
+        if ("1".equals(n))
+        {
+            // let the second include finish first
+            Thread.sleep(100);
+        }
+        else if ("slow".equals(n))
+        {
+            running.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            }
+            finally
+            {
+                running.decrementAndGet();
+            }
+        }
+        else if ("header".equals(n))
+        {
+            response.setHeader("X-Included", "yes");
+        }
+        else if ("fail".equals(n))
+        {
+            // fail while the slow include is running
+            for (int i = 0; i < 100 && running.get() == 0; i++)
+            {
+                Thread.sleep(10);
+            }
+            throw new IllegalStateException("include failed");
+        }
+        
+        msg = "included " + n;
+        
+        return "TestPage";
+    }
+
+}
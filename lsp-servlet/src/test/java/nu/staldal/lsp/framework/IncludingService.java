@@ -0,0 +1,17 @@
+package nu.staldal.lsp.framework;
+
+public class IncludingService extends EasyService
+{
+    @PageParameter
+    public String msg;
+
+    @Override
+    public String execute() throws Exception
+    {
+        msg = "main";
+        
+        String page = request.getParameter("page");
+        return (page != null) ? page : "IncludePage";
+    }
+
+}
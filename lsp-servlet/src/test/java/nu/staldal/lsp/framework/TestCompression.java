@@ -0,0 +1,100 @@
+package nu.staldal.lsp.framework;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestCompression
+{
+    private static final String EXPECTED = 
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<root>ThrowawayService1: servletPath=/ThrowawayService1 instanceCounter=1</root>";
+    
+    private static FrameworkFixture fixture;
+    
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        fixture = new FrameworkFixture("LSPclassesCompression", "TestPage");
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+        fixture.destroy();
+        fixture = null;
+    }
+
+    private HttpServletResponseMock doTest(String acceptEncoding, String renderBufferSize)
+        throws Exception
+    {
+        DispatcherServlet dispatcherServlet = (renderBufferSize != null)
+            ? fixture.createServlet(
+                "nu.staldal.lsp.servlet.Compression", "6",
+                "nu.staldal.lsp.servlet.RenderBufferSize", renderBufferSize)
+            : fixture.createServlet(
+                "nu.staldal.lsp.servlet.Compression", "6");
+        
+        HttpServletRequestMock request = new HttpServletRequestMock("/ThrowawayService1");
+        if (acceptEncoding != null)
+            request.setHeader("Accept-Encoding", acceptEncoding);
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        dispatcherServlet.doGet(request, response);
+        dispatcherServlet.destroy();
+
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        return response;
+    }
+    
+    private static String read(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int n;
+        while ((n = in.read(buf)) > 0)
+        {
+            baos.write(buf, 0, n);
+        }
+        return baos.toString("UTF-8");
+    }
+    
+    @Test
+    public void testGzip()
+        throws Exception
+    {
+        HttpServletResponseMock response = doTest("deflate, gzip;q=0.8", null);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(EXPECTED, read(new GZIPInputStream(
+            new ByteArrayInputStream(response.toByteArray()))));
+    }
+
+    @Test
+    public void testDeflate()
+        throws Exception
+    {
+        HttpServletResponseMock response = doTest("gzip;q=0, deflate", "100000");
+        assertEquals("deflate", response.getHeader("Content-Encoding"));
+        assertEquals(response.toByteArray().length, response.getContentLength());
+        assertEquals(EXPECTED, read(new InflaterInputStream(
+            new ByteArrayInputStream(response.toByteArray()))));
+    }
+
+    @Test
+    public void testNotAccepted()
+        throws Exception
+    {
+        HttpServletResponseMock response = doTest(null, null);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(EXPECTED, response.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,47 @@
+package nu.staldal.lsp.framework;
+
+import nu.staldal.lsp.servlet.LSPManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TestLocalization
+{
+    private LSPManager lspManager;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        lspManager = LSPManager.getInstance(new ServletContextMock(), 
+            getClass().getClassLoader());
+    }
+
+    private String lang(String key, Locale... locales)
+        throws Exception
+    {
+        HttpServletRequestMock request = new HttpServletRequestMock("/");
+        request.setLocales(locales);
+        return lspManager.getLocalizedString(request, key);
+    }
+    
+    @Test
+    public void testLocaleBundle()
+        throws Exception
+    {
+        assertEquals("Hej", lang("greeting", new Locale("sv")));
+        assertEquals("Hej", lang("greeting", Locale.GERMAN, new Locale("sv")));
+    }
+
+    @Test
+    public void testDefaultBundle()
+        throws Exception
+    {
+        // no bundle for the user's locale
+        assertEquals("Hello", lang("greeting", Locale.GERMAN));
+        assertEquals("Hello", lang("greeting", Locale.GERMAN));
+        assertNull(lang("missing", Locale.GERMAN));
+    }
+}
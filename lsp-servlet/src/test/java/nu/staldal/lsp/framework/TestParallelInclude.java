@@ -0,0 +1,140 @@
+package nu.staldal.lsp.framework;
+
+import nu.staldal.lsp.servlet.LSPManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.*;
+
+public class TestParallelInclude
+{
+    private static FrameworkFixture fixture;
+    
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        fixture = new FrameworkFixture("LSPclassesParallelInclude", 
+            "TestPage", "IncludePage", "IncludeFailPage", "IncludeHeaderPage");
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+        fixture.destroy();
+        fixture = null;
+    }
+
+    private HttpServletRequestMock doTest(String parallelIncludes)
+        throws Exception
+    {
+        DispatcherServlet dispatcherServlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.ParallelIncludes", parallelIncludes);
+        
+        HttpServletRequestMock request = new HttpServletRequestMock("/IncludingService");
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        dispatcherServlet.doGet(request, response);
+        dispatcherServlet.destroy();
+        // the include pool is shut down with the LSPManager
+        assertNull(dispatcherServlet.getServletContext().getAttribute(LSPManager.class.getName()));
+
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<page><head><root>included 1</root></head>"
+                + "<body x=\"main\"><root>included 2</root><p>after</p></body></page>",
+                response.toString("UTF-8"));
+        return request;
+    }
+    
+    @Test
+    public void testSequential()
+        throws Exception
+    {
+        doTest("0");
+    }
+
+    @Test
+    public void testParallel()
+        throws Exception
+    {
+        HttpServletRequestMock request = doTest("2");
+        // parallel includes get their own request attributes
+        assertNull(request.getAttribute(ThrowawayService.INCLUDE_ATTR_PREFIX+"n"));
+    }
+
+    @Test
+    public void testSharedManager()
+        throws Exception
+    {
+        DispatcherServlet first = fixture.createServlet(
+            "nu.staldal.lsp.servlet.ParallelIncludes", "2");
+        DispatcherServlet second = new DispatcherServlet();
+        second.init((ServletContextMock)first.getServletContext());
+        
+        // the include pool is still used by the second servlet
+        first.destroy();
+        assertNotNull(second.getServletContext().getAttribute(LSPManager.class.getName()));
+        
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        second.doGet(new HttpServletRequestMock("/IncludingService"), response);
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+        
+        second.destroy();
+        assertNull(second.getServletContext().getAttribute(LSPManager.class.getName()));
+    }
+
+    @Test
+    public void testParallelFail()
+        throws Exception
+    {
+        DispatcherServlet dispatcherServlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.ParallelIncludes", "2");
+        
+        HttpServletRequestMock request = new HttpServletRequestMock("/IncludingService");
+        request.setParameter("page", "IncludeFailPage");
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        try {
+            dispatcherServlet.doGet(request, response);
+            fail("page should fail");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        finally
+        {
+            dispatcherServlet.destroy();
+        }
+        
+        // a running include must not outlive the request
+        assertEquals(0, IncludedService.running.get());
+    }
+
+    @Test
+    public void testParallelHeader()
+        throws Exception
+    {
+        DispatcherServlet dispatcherServlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.ParallelIncludes", "2");
+        
+        HttpServletRequestMock request = new HttpServletRequestMock("/IncludingService");
+        request.setParameter("page", "IncludeHeaderPage");
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        try {
+            dispatcherServlet.doGet(request, response);
+            fail("parallel include should not change the response");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        finally
+        {
+            dispatcherServlet.destroy();
+        }
+        
+        assertNull(response.getHeader("X-Included"));
+    }
+}
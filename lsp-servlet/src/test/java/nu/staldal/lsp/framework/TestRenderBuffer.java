@@ -0,0 +1,93 @@
+package nu.staldal.lsp.framework;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.*;
+
+public class TestRenderBuffer
+{
+    private static FrameworkFixture fixture;
+    
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        fixture = new FrameworkFixture("LSPclassesRenderBuffer", "TestPage", "FailPage");
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+        fixture.destroy();
+        fixture = null;
+    }
+
+    private HttpServletResponseMock doTest(String renderBufferSize)
+        throws Exception
+    {
+        DispatcherServlet dispatcherServlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.RenderBufferSize", renderBufferSize);
+        
+        HttpServletRequestMock request = new HttpServletRequestMock("/ThrowawayService1");
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        dispatcherServlet.doGet(request, response);
+        dispatcherServlet.destroy();
+
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<root>ThrowawayService1: servletPath=/ThrowawayService1 instanceCounter=1</root>",
+                response.toString("UTF-8"));
+        return response;
+    }
+    
+    @Test
+    public void testBuffered()
+        throws Exception
+    {
+        HttpServletResponseMock response = doTest("100000");
+        assertEquals(response.toByteArray().length, response.getContentLength());
+    }
+
+    @Test
+    public void testOverBudget()
+        throws Exception
+    {
+        HttpServletResponseMock response = doTest("20");
+        assertEquals(-1, response.getContentLength());
+    }
+
+    @Test
+    public void testFailCompressed()
+        throws Exception
+    {
+        DispatcherServlet dispatcherServlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.Compression", "6",
+            "nu.staldal.lsp.servlet.RenderBufferSize", "100000",
+            "nu.staldal.lsp.servlet.OutputBufferSize", "64");
+        
+        HttpServletRequestMock request = new HttpServletRequestMock("/IncludingService");
+        request.setParameter("page", "FailPage");
+        request.setHeader("Accept-Encoding", "gzip");
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        try {
+            dispatcherServlet.doGet(request, response);
+            fail("page should fail");
+        }
+        catch (ServletException e)
+        {
+            // expected
+        }
+        finally
+        {
+            dispatcherServlet.destroy();
+        }
+        
+        // nothing sent, so the response can be reset to an error page
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(0, response.toByteArray().length);
+    }
+}
@@ -0,0 +1,172 @@
+package nu.staldal.lsp.framework;
+
+import nu.staldal.lsp.servlet.LSPManager;
+import nu.staldal.lsp.servlet.LSPResponseCache;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestResponseCache
+{
+    private static FrameworkFixture fixture;
+    
+    private static DispatcherServlet dispatcherServlet;
+    private static LSPResponseCache responseCache;
+    
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        fixture = new FrameworkFixture("LSPclassesResponseCache", "TestPage");
+        dispatcherServlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.ResponseCacheSize", "100000");
+        responseCache = LSPManager.getInstance(dispatcherServlet.getServletContext()).getResponseCache();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception
+    {
+        dispatcherServlet.destroy();
+        dispatcherServlet = null;
+        responseCache = null;
+        
+        fixture.destroy();
+        fixture = null;
+    }
+
+    private HttpServletResponseMock doGet(String param, String ifNoneMatch)
+        throws Exception
+    {
+        return doGet(param, ifNoneMatch, Locale.ENGLISH);
+    }
+
+    private HttpServletResponseMock doGet(String param, String ifNoneMatch, 
+            Locale... locales)
+        throws Exception
+    {
+        HttpServletRequestMock request = new HttpServletRequestMock("/CachedService");
+        request.setMethod("GET");
+        request.setParameter("param", param);
+        request.setLocales(locales);
+        if (ifNoneMatch != null)
+            request.setHeader("If-None-Match", ifNoneMatch);
+        HttpServletResponseMock response = new HttpServletResponseMock();
+        dispatcherServlet.doGet(request, response);
+        return response;
+    }
+    
+    @Test
+    public void testResponseCache()
+        throws Exception
+    {
+        assertNotNull(responseCache);
+        long misses = responseCache.getMisses();
+        long hits = responseCache.getHits();
+        
+        HttpServletResponseMock response = doGet("a", null);
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+              + "<root>CachedService: param=a instanceCounter=1</root>",
+              response.toString("UTF-8"));
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+        
+        // same fingerprint, the page is not executed again
+        response = doGet("a", null);
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+              + "<root>CachedService: param=a instanceCounter=1</root>",
+              response.toString("UTF-8"));
+        assertEquals(etag, response.getHeader("ETag"));
+        
+        response = doGet("b", null);
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+              + "<root>CachedService: param=b instanceCounter=3</root>",
+              response.toString("UTF-8"));
+        assertFalse(etag.equals(response.getHeader("ETag")));
+        
+        // conditional GET
+        response = doGet("a", "\"foo\", " + etag);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getSc());
+        assertEquals(0, response.toByteArray().length);
+
+        response = doGet("b", etag);
+        assertEquals(HttpServletResponse.SC_OK, response.getSc());
+
+        assertEquals(2, responseCache.getMisses() - misses);
+        assertEquals(3, responseCache.getHits() - hits);
+        assertEquals("Accept-Language", response.getHeader("Vary"));
+        
+        // the locales are part of the key
+        misses = responseCache.getMisses();
+        doGet("c", null, Locale.ENGLISH);
+        doGet("c", null, Locale.GERMAN, Locale.ENGLISH);
+        doGet("c", null, Locale.GERMAN, Locale.ENGLISH);
+        doGet("c", null, Locale.GERMAN, Locale.FRENCH);
+
+        assertEquals(3, responseCache.getMisses() - misses);
+    }
+
+    private static String gunzip(byte[] body) throws Exception
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int n;
+        while ((n = in.read(buf)) > 0)
+        {
+            baos.write(buf, 0, n);
+        }
+        return baos.toString("UTF-8");
+    }
+
+    @Test
+    public void testCompressed()
+        throws Exception
+    {
+        DispatcherServlet servlet = fixture.createServlet(
+            "nu.staldal.lsp.servlet.Compression", "6",
+            "nu.staldal.lsp.servlet.ResponseCacheSize", "100000");
+        
+        String[] acceptEncodings = { "gzip", "gzip", null };
+        HttpServletResponseMock[] responses = new HttpServletResponseMock[acceptEncodings.length];
+        for (int i = 0; i < acceptEncodings.length; i++)
+        {
+            HttpServletRequestMock request = new HttpServletRequestMock("/CachedService");
+            request.setMethod("GET");
+            request.setParameter("param", "a");
+            if (acceptEncodings[i] != null)
+                request.setHeader("Accept-Encoding", acceptEncodings[i]);
+            responses[i] = new HttpServletResponseMock();
+            servlet.doGet(request, responses[i]);
+        }
+        servlet.destroy();
+        
+        String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<root>CachedService: param=a instanceCounter=1</root>";
+        
+        assertEquals("Accept-Language, Accept-Encoding", responses[0].getHeader("Vary"));
+        assertEquals("gzip", responses[0].getHeader("Content-Encoding"));
+        assertEquals(expected, gunzip(responses[0].toByteArray()));
+        
+        // served compressed from the cache
+        assertEquals("gzip", responses[1].getHeader("Content-Encoding"));
+        assertEquals(responses[0].getHeader("ETag"), responses[1].getHeader("ETag"));
+        assertEquals(expected, gunzip(responses[1].toByteArray()));
+        
+        // the encoding is part of the key
+        assertNull(responses[2].getHeader("Content-Encoding"));
+        assertFalse(responses[0].getHeader("ETag").equals(responses[2].getHeader("ETag")));
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<root>CachedService: param=a instanceCounter=3</root>",
+            responses[2].toString("UTF-8"));
+    }
+}
@@ -1,42 +1,24 @@
 package nu.staldal.lsp.framework;
 
-import nu.staldal.lsp.compiler.LSPCompilerHelper;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
-import java.net.URL;
-import java.net.URLClassLoader;
 
 import static org.junit.Assert.assertEquals;
 
 public class TestTheFramework
 {
-    private static File classDir;
-    private static ClassLoader savedClassLoader;    
-    
-    private static LSPCompilerHelper lspCompilerHelper;
+    private static FrameworkFixture fixture;
     
     private static DispatcherServlet dispatcherServlet;
     
     @BeforeClass
     public static void setUpBeforeClass() throws Exception
     {
-        classDir = new File("LSPclasses");
-        classDir.mkdir();
-        savedClassLoader = Thread.currentThread().getContextClassLoader();
-        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[] { classDir.toURL() }));
-
-        lspCompilerHelper = new LSPCompilerHelper();
-        lspCompilerHelper.setTargetDir(classDir);
-        lspCompilerHelper.setStartDir(new File(new File(new File(new File("src"), "test"), "resources"), "lspPages"));        
-
-        ServletContextMock servletContextMock = new ServletContextMock();
-        servletContextMock.setInitParameter("ServicePackages", "nu.staldal.lsp.framework");
-        dispatcherServlet = new DispatcherServlet();
-        dispatcherServlet.init(servletContextMock);            
+        fixture = new FrameworkFixture("LSPclasses");
+        dispatcherServlet = fixture.createServlet();
     }
 
     @AfterClass
@@ -44,17 +26,15 @@ public class TestTheFramework
     {
         dispatcherServlet.destroy();
         dispatcherServlet = null;
-        lspCompilerHelper = null;
         
-        Thread.currentThread().setContextClassLoader(savedClassLoader);
-        for (File f : classDir.listFiles()) { f.delete(); }
-        classDir.delete();
+        fixture.destroy();
+        fixture = null;
     }
 
     private void doTest(String pageName, String serviceName, String expectedResult, int expectedSc, String... params)
         throws Exception
     {
-        lspCompilerHelper.doCompile(pageName + ".lsp", true);
+        fixture.compile(pageName);
         
         HttpServletRequestMock request = new HttpServletRequestMock("/"+serviceName);
         for (int i = 0; i<params.length; i+=2)
@@ -0,0 +1,2 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<page xmlns:lsp="http://staldal.nu/LSP/core"><p>This page produces some output before it fails, more than the output buffer can hold.</p><p><lsp:value-of select="$undefined"/></p></page>
@@ -0,0 +1,2 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<page xmlns:lsp="http://staldal.nu/LSP/core" xmlns:s="http://staldal.nu/LSP/ExtLib/Servlet"><s:include name="IncludedService" n="fail"/><s:include name="IncludedService" n="slow"/></page>
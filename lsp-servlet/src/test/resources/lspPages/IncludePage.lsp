@@ -0,0 +1,2 @@
+<?xml version="1.0" encoding="iso-8859-1"?>
+<page xmlns:lsp="http://staldal.nu/LSP/core" xmlns:s="http://staldal.nu/LSP/ExtLib/Servlet"><head><s:include name="IncludedService" n="1"/></head><body x="{$msg}"><s:include name="IncludedService" n="2"/><p>after</p></body></page>